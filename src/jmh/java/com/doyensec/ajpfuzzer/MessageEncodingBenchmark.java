@@ -0,0 +1,94 @@
+/*
+ * AJPFuzzer - MessageEncodingBenchmark.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.doyensec.ajp13.ForwardRequestMessage;
+import com.doyensec.ajp13.Pair;
+
+/*
+ * Cost of building a ForwardRequest with browser-like headers and attributes: with libajp13
+ * (ForwardRequestMessage.getBytes), with FUZZ replaced in every string first (as the shell test
+ * cases do), and with a precompiled FuzzTemplate (genericfuzz, parallelfuzz, niofuzz).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageEncodingBenchmark {
+
+    //Test case syntax: <name>:<value>,<name>:<value>,...
+    private static final String HEADERS = "Host:www.example.com,User-Agent:Mozilla/5.0 (X11; Linux x86_64) Gecko/20100101 Firefox/115.0,"
+            + "Accept:text/html;q=0.9,Accept-Language:en-US,Accept-Encoding:gzip,"
+            + "Cookie:JSESSIONID=6D4E2B1A8C0F3E5D7B9A1C3E5F7D9B1A; theme=FUZZ,Referer:/FUZZ,"
+            + "Connection:keep-alive,Upgrade-Insecure-Requests:1,X-Forwarded-For:10.0.0.1";
+    private static final String ATTRIBUTES = "query_string:id=FUZZ&page=1,remote_user:admin,AJP_REMOTE_PORT:51234,AJP_LOCAL_ADDR:10.0.0.2";
+    private static final String URI = "/manager/html/FUZZ";
+
+    private List<String[]> headers;
+    private List<String[]> attributes;
+    private FuzzTemplate template;
+    private String payload = "../../WEB-INF/web.xml";
+
+    @Setup
+    public void setup() {
+        headers = split(HEADERS);
+        attributes = split(ATTRIBUTES);
+        template = FuzzTemplate.compile(2, "HTTP/1.1", URI, "127.0.0.1", "localhost", "www.example.com", 80, false, HEADERS, ATTRIBUTES, Utils.FUZZ_KEY);
+    }
+
+    @Benchmark
+    public byte[] forwardRequestGetBytes() {
+        return new ForwardRequestMessage(2, "HTTP/1.1", URI, "127.0.0.1", "localhost", "www.example.com", 80, false,
+                pairs(headers, null), pairs(attributes, null)).getBytes();
+    }
+
+    @Benchmark
+    public byte[] replaceFuzzGetBytes() {
+        return new ForwardRequestMessage(2, "HTTP/1.1", Utils.replaceFuzz(URI, payload), "127.0.0.1", "localhost", "www.example.com", 80, false,
+                pairs(headers, payload), pairs(attributes, payload)).getBytes();
+    }
+
+    @Benchmark
+    public int templateEncode() {
+        return template.encode(payload).remaining();
+    }
+
+    @Benchmark
+    public byte[] templateToBytes() {
+        return template.toBytes(payload);
+    }
+
+    private static List<String[]> split(String list) {
+        List<String[]> result = new ArrayList<>();
+        for (String pair : list.split(",")) {
+            result.add(pair.split(":"));
+        }
+        return result;
+    }
+
+    private static List<Pair<String, String>> pairs(List<String[]> list, String payload) {
+        List<Pair<String, String>> result = new ArrayList<>(list.size());
+        for (String[] nameValue : list) {
+            result.add(Pair.make(nameValue[0], payload == null ? nameValue[1] : Utils.replaceFuzz(nameValue[1], payload)));
+        }
+        return result;
+    }
+}
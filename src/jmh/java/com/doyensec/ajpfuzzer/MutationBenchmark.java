@@ -0,0 +1,89 @@
+/*
+ * AJPFuzzer - MutationBenchmark.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Cost of the mutations applied to a ForwardRequest before it is sent: bit flips and slices
+ * (fuzzbit, fuzzslice), byte-level mutations (corpusfuzz), and structure-aware mutations (structfuzz),
+ * including the per-iteration reseeding used to make every mutation reproducible.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MutationBenchmark {
+
+    //Size of the mutated packet: a short GET, a request with large cookies
+    @Param({"small", "large"})
+    public String request;
+
+    private byte[] packet;
+    private ForwardRequest decoded;
+    private FuzzRandom random;
+    private Mutator mutator;
+    private ForwardRequestMutator structured;
+    private long iteration;
+
+    @Setup
+    public void setup() {
+        String headers = "Host:www.example.com,Accept:*/*,Connection:keep-alive";
+        if (request.equals("large")) {
+            headers += ",Cookie:" + "a".repeat(4096) + ",X-Forwarded-For:" + "10.0.0.1 ".repeat(256);
+        }
+        packet = FuzzTemplate.compile(2, "HTTP/1.1", "/index.jsp", "127.0.0.1", "localhost", "www.example.com", 80, false,
+                headers, "query_string:id=1", Utils.FUZZ_KEY).toBytes("");
+        decoded = ForwardRequest.decode(packet);
+        random = new FuzzRandom(42);
+        mutator = new Mutator(random);
+        structured = new ForwardRequestMutator(random);
+    }
+
+    @Benchmark
+    public byte[] flipBit() {
+        return Utils.flipBit(packet, random);
+    }
+
+    @Benchmark
+    public byte[] sliceAll() {
+        return Utils.sliceAll(packet, random);
+    }
+
+    @Benchmark
+    public byte[] sliceFromBegin() {
+        return Utils.sliceFromBegin(packet, random);
+    }
+
+    @Benchmark
+    public byte[] reseedAndFlipBit() {
+        random.reseed(iteration++);
+        return Utils.flipBit(packet, random);
+    }
+
+    @Benchmark
+    public byte[] havoc() {
+        return mutator.havoc(packet, null);
+    }
+
+    @Benchmark
+    public byte[] structureAware() {
+        return structured.mutate(decoded);
+    }
+}
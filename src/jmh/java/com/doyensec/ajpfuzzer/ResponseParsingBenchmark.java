@@ -0,0 +1,90 @@
+/*
+ * AJPFuzzer - ResponseParsingBenchmark.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.ArrayUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import com.doyensec.ajp13.AjpMessage;
+import com.doyensec.ajp13.AjpReader;
+import com.doyensec.ajp13.EndResponseMessage;
+import com.doyensec.ajp13.Pair;
+import com.doyensec.ajp13.SendBodyChunkMessage;
+import com.doyensec.ajp13.SendHeadersMessage;
+
+/*
+ * Cost of handling a typical reply (SendHeaders, a 1 KB SendBodyChunk, EndResponse): splitting the
+ * received bytes into packets, collecting them as an AjpResponse and fingerprinting it (every fuzzing
+ * loop), and decoding a packet with libajp13 (verbose test cases and hex dumps).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseParsingBenchmark {
+
+    private byte[] headers;
+    private byte[] reply;
+    private AjpPacketSplitter splitter;
+
+    @Setup
+    public void setup() {
+        List<Pair<String, String>> headersList = new LinkedList<>();
+        headersList.add(Pair.make("Content-Type", "text/html;charset=UTF-8"));
+        headersList.add(Pair.make("Content-Length", "1024"));
+        headersList.add(Pair.make("Set-Cookie", "JSESSIONID=6D4E2B1A8C0F3E5D7B9A1C3E5F7D9B1A; Path=/; HttpOnly"));
+        headersList.add(Pair.make("Date", "Tue, 17 Oct 2017 10:00:00 GMT"));
+        headers = new SendHeadersMessage(200, "OK", headersList).getBytes();
+        byte[] body = new SendBodyChunkMessage(new byte[1024]).getBytes();
+        byte[] end = new EndResponseMessage(true).getBytes();
+        reply = ArrayUtils.addAll(ArrayUtils.addAll(headers, body), end);
+        splitter = new AjpPacketSplitter(ByteBuffer.allocate(AjpPacketSplitter.MAX_PACKET_SIZE));
+    }
+
+    @Benchmark
+    public void split(Blackhole blackhole) throws IOException {
+        splitter.reset();
+        splitter.buffer().put(reply);
+        splitter.split(packet -> blackhole.consume(packet.remaining()));
+    }
+
+    @Benchmark
+    public String splitAndFingerprint() throws IOException {
+        ReceiveBuffer received = ReceiveBuffer.acquire(1024 * 1024);
+        splitter.reset();
+        splitter.buffer().put(reply);
+        splitter.split(packet -> {
+            if (received.beginPacket(packet.remaining())) {
+                packet.get(packet.position(), received.array(), received.size(), packet.remaining());
+                received.advance(packet.remaining());
+            }
+        });
+        AjpResponse response = received.toResponse(true, false, 0);
+        received.release();
+        return ResponseFingerprint.of(response);
+    }
+
+    @Benchmark
+    public AjpMessage parseMessage() throws IOException {
+        return AjpReader.parseMessage(headers);
+    }
+}
@@ -11,14 +11,15 @@ import asg.cliche.Shell;
 import asg.cliche.ShellDependent;
 import asg.cliche.ShellFactory;
 import asg.cliche.ShellManageable;
+import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import org.apache.commons.io.input.TeeInputStream;
 import org.apache.commons.io.output.TeeOutputStream;
 import com.doyensec.ajp13.AjpMessage;
@@ -30,10 +31,36 @@ public class AJPFuzzer implements ShellDependent, ShellManageable {
 
     private final String version = "0.7";
     private Shell shell;
+    //Command loops running with this handler: the shell, and the subshell once connected
+    private int loops;
     private String host;
     private int port = 0;
-    private Socket socket;
+    private AjpConnectionPool pool;
+    private final RateLimiter rateLimiter = new RateLimiter();
+    private final Metrics metrics = new Metrics();
+    private final MockContainer mock = new MockContainer();
+    private boolean connected;
+    private volatile int commandStatus = BatchRunner.EXIT_OK;
+    private boolean framedReceive = true;
+    private int receiveTimeout = 2000;
+    private int maxResponseSize = 1024 * 1024;
+    private boolean virtualThreads = false;
+    private boolean hexDump = false;
+    private boolean resultLogEnabled = true;
+    private String resultLogFile;
+    private ResultLog resultLog;
+    private boolean dedup = true;
+    private final BehaviorTable behaviors = new BehaviorTable();
+    private CorpusStore corpusStore;
+    private Long seed; //null = new random seed for each run
+    private int crashHistory = 16;
+    private int crashSilent = 3;
+    private String restartCommand;
+    private CrashMonitor crashMonitor;
+    private final AjpPacketSplitter splitter = new AjpPacketSplitter(ByteBuffer.allocate(AjpPacketSplitter.MAX_PACKET_SIZE));
+    private static String logName;
     private static FileOutputStream fos;
+    private static BufferedOutputStream logStream;
     private static TeeOutputStream myOut;
     private static TeeOutputStream myErr;
     private static TeeInputStream myIn;
@@ -56,17 +83,176 @@ public class AJPFuzzer implements ShellDependent, ShellManageable {
         this.port = port;
     }
 
-    public Socket getSocket() {
-        return socket;
+    public boolean isConnected() {
+        return connected;
     }
 
-    public void setSocket(Socket socket) {
-        this.socket = socket;
+    //Report an invalid command argument. A headless run exits with a usage error (see BatchRunner)
+    protected void invalid(String message) {
+        System.out.println("[!] " + message + "\n");
+        commandStatus = BatchRunner.EXIT_USAGE;
+    }
+
+    //Report a command that could not be carried out. A headless run exits with a failure
+    protected void failed(String message) {
+        System.out.println("[!] " + message + "\n");
+        commandStatus = BatchRunner.EXIT_FAILURE;
+    }
+
+    //Status reported by the last command, reset for the next one
+    protected int takeCommandStatus() {
+        int status = commandStatus;
+        commandStatus = BatchRunner.EXIT_OK;
+        return status;
+    }
+
+    //Created on first use: the pool keeps a reference to this shell
+    public synchronized AjpConnectionPool getPool() {
+        if (pool == null) {
+            pool = new AjpConnectionPool(this);
+        }
+        return pool;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public AjpPacketSplitter getSplitter() {
+        return splitter;
+    }
+
+    public boolean isFramedReceive() {
+        return framedReceive;
+    }
+
+    public void setFramedReceive(boolean framedReceive) {
+        this.framedReceive = framedReceive;
+    }
+
+    public int getReceiveTimeout() {
+        return receiveTimeout;
+    }
+
+    public void setReceiveTimeout(int receiveTimeout) {
+        this.receiveTimeout = receiveTimeout;
+    }
+
+    public int getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    public void setMaxResponseSize(int maxResponseSize) {
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public boolean isHexDump() {
+        return hexDump;
+    }
+
+    public void setHexDump(boolean hexDump) {
+        this.hexDump = hexDump;
+    }
+
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    public void setDedup(boolean dedup) {
+        this.dedup = dedup;
+    }
+
+    public CorpusStore getCorpusStore() {
+        return corpusStore;
+    }
+
+    private void closeCorpusStore() {
+        if (corpusStore != null) {
+            try {
+                corpusStore.close();
+            } catch (IOException ex) {
+                System.out.println("[!] Corpus close error (" + ex.getMessage() + ")\n");
+            }
+            corpusStore = null;
+        }
+    }
+
+    public BehaviorTable getBehaviors() {
+        return behaviors;
+    }
+
+    public int getCrashHistory() {
+        return crashHistory;
+    }
+
+    public int getCrashSilent() {
+        return crashSilent;
+    }
+
+    public String getRestartCommand() {
+        return restartCommand;
+    }
+
+    //Crash monitor of the current connection
+    public CrashMonitor getCrashMonitor() {
+        return crashMonitor;
+    }
+
+    public String getLogName() {
+        return logName;
+    }
+
+    //Random generator for a new fuzzing run, seeded with the fixed seed if set
+    public FuzzRandom newRandom() {
+        FuzzRandom random = new FuzzRandom(seed != null ? seed : FuzzRandom.newSeed());
+        System.out.println("[*] Seed: " + random.getSeed());
+        return random;
+    }
+
+    //Result log, created on first use. Null if disabled or if the file cannot be created
+    public synchronized ResultLog getResultLog() {
+        if (resultLog == null && resultLogEnabled) {
+            String file = resultLogFile != null ? resultLogFile : (logName != null ? logName : "AJPFuzzer_" + System.nanoTime()) + ".jsonl";
+            try {
+                resultLog = ResultLog.open(Paths.get(file));
+                System.out.println("[*] Logging results to " + file);
+            } catch (IOException ex) {
+                System.out.println("[!] Cannot create the result log '" + file + "', result logging disabled\n");
+                resultLogEnabled = false;
+            }
+        }
+        return resultLog;
+    }
+
+    private synchronized void closeResultLog() {
+        if (resultLog != null) {
+            try {
+                resultLog.close();
+            } catch (IOException ex) {
+                System.out.println("[!] Result log close error\n");
+            }
+            resultLog = null;
+        }
     }
 
     @Override
+    //Only the top-level shell is kept: subshells are created from it
     public void cliSetShell(Shell theShell) {
-        this.shell = theShell;
+        if (shell == null) {
+            this.shell = theShell;
+        }
     }
 
     public Shell cliGetShell() {
@@ -75,30 +261,36 @@ public class AJPFuzzer implements ShellDependent, ShellManageable {
 
     @Command(description = "Connect to a remote AJP13 service", name = "connect", abbrev = "cn")
     public void connect(@Param(name = "host", description = "AJP13 host") String host, @Param(name = "port", description = "AJP13 TCP port") int port) throws IOException {
-        setHost(host);
-        setPort(port);
         try {
-            System.out.println("[*] Connecting to " + host + ":" + port);
-            socket = new Socket();
-            socket.connect(new InetSocketAddress(host, port), 2000);
-            socket.setSoTimeout(8000);
+            open(host, port);
         } catch (IOException e) {
             System.out.println("[!] Connection error\n");
             System.exit(-1);
         }
-        ShellFactory.createSubshell(host + ":" + port, shell, "Connected to the remote AJP13 service", new AJPTestCases(this)).commandLoop();
+        //The settings commands of this shell are also available in the subshell, next to the test cases
+        Shell subshell = ShellFactory.createSubshell(host + ":" + port, shell, "Connected to the remote AJP13 service", new AJPTestCases(this));
+        subshell.addMainHandler(this, "");
+        subshell.commandLoop();
+    }
+
+    //Connect to the remote AJP13 service, without starting the subshell
+    public void open(String host, int port) throws IOException {
+        setHost(host);
+        setPort(port);
+        System.out.println("[*] Connecting to " + host + ":" + port);
+        AjpConnectionPool connections = getPool();
+        connections.close();
+        connections.release(connections.acquire());
+        crashMonitor = new CrashMonitor(this, host, port);
+        connected = true;
     }
 
     @Command(description = "Disconnect from a remote AJP13 service", name = "disconnect", abbrev = "dn")
     public void disconnect() {
-        if (socket != null && !socket.isClosed()) {
+        if (connected) {
             System.out.println("[*] Disconnecting...");
-            try {
-                socket.close();
-            } catch (IOException ex) {
-                System.out.println("[!] Disconnection error\n");
-                System.exit(-1);
-            }
+            getPool().close();
+            connected = false;
         } else {
             System.out.println("[!] Disconnected\n");
         }
@@ -106,21 +298,24 @@ public class AJPFuzzer implements ShellDependent, ShellManageable {
 
     @Command(description = "Disconnect and quit AJPFuzzer", name = "quit", abbrev = "quit")
     public void quit() {
-        this.cliLeaveLoop(); //Exit all
+        shutdown(); //Exit all
     }
 
+    //Throw TargetDownException if the service cannot be reached anymore
     @Command(description = "Reconnect to the remote AJP13 service", name = "reconnect", abbrev = "rc")
-    public void reconnect() {
+    public void reconnect() throws TargetDownException {
         if (host != null && port != 0) {
             System.out.println("[*] Reconnecting...");
             try {
                 System.out.println("[*] Connecting to " + host + ":" + port);
-                socket = new Socket();
-                socket.connect(new InetSocketAddress(host, port), 2000);
-                socket.setSoTimeout(8000);
+                AjpConnectionPool connections = getPool();
+                connections.close();
+                connections.release(connections.acquire());
+                crashMonitor.clear();
+                connected = true;
             } catch (IOException ex) {
                 System.out.println("[!] Connection error\n");
-                System.exit(-1);
+                throw new TargetDownException(host, port, CrashMonitor.UNREACHABLE);
             }
         } else {
             System.out.println("[!] You must connect first\n");
@@ -129,11 +324,11 @@ public class AJPFuzzer implements ShellDependent, ShellManageable {
 
     @Command(description = "Status of the connection to the remote AJP13 service", name = "status", abbrev = "sta")
     public void status() throws IOException {
-        if (socket != null && !socket.isClosed()) {
+        if (connected) {
             //Sending AJP's CPing as heartbeat
             AjpMessage msg = new CPingMessage();
-            byte[] reply = Utils.sendAndReceive(this, msg.getBytes(), "(10) cping", false);
-            AjpMessage ajpReply = AjpReader.parseMessage(reply);
+            AjpResponse reply = Utils.sendAndReceive(this, msg.getBytes(), "(10) cping", false);
+            AjpMessage ajpReply = reply.getPacketCount() == 0 ? null : AjpReader.parseMessage(reply.getPacketBytes(0));
             if (ajpReply instanceof CPongMessage) {
                 System.out.println("[*] Connected\n");
             } else {
@@ -144,18 +339,403 @@ public class AJPFuzzer implements ShellDependent, ShellManageable {
         }
     }
 
+    @Command(description = "Benchmark the remote AJP13 service with pipelined CPing messages over multiple connections", name = "cpingbench", abbrev = "cb")
+    public void cpingBench(@Param(name = "connections", description = "Number of AJP13 connections (e.g. 8)") int connections,
+                           @Param(name = "depth", description = "CPing messages in flight per connection (e.g. 16)") int depth,
+                           @Param(name = "count", description = "CPing messages per connection (e.g. 100000)") int count) throws IOException {
+        if (host == null || port == 0) {
+            invalid("You must connect first");
+            return;
+        }
+        if (connections <= 0 || depth <= 0 || count <= 0) {
+            invalid("Connections, depth and count must be greater than 0");
+            return;
+        }
+        new CPingBenchmark(host, port, connections, depth, count, receiveTimeout).run();
+    }
+
+    @Command(description = "Select how replies are read: 'framed' (AJP13 length headers, stop at EndResponse) or 'poll' (legacy sleep and poll)", name = "receivemode", abbrev = "rm")
+    public void receiveMode(@Param(name = "mode", description = "framed or poll") String mode) {
+        if (mode.equalsIgnoreCase("framed")) {
+            setFramedReceive(true);
+        } else if (mode.equalsIgnoreCase("poll")) {
+            setFramedReceive(false);
+        } else {
+            invalid("Unknown receive mode '" + mode + "'");
+            return;
+        }
+        System.out.println("[*] Receive mode: " + (framedReceive ? "framed" : "poll") + "\n");
+    }
+
+    @Command(description = "Set the deadline (ms) for reading replies in framed receive mode", name = "receivetimeout", abbrev = "rt")
+    public void receiveTimeout(@Param(name = "timeout", description = "Receive deadline in milliseconds (e.g. 2000)") int timeout) {
+        if (timeout <= 0) {
+            invalid("The receive timeout must be greater than 0");
+            return;
+        }
+        setReceiveTimeout(timeout);
+        System.out.println("[*] Receive timeout: " + timeout + " ms\n");
+    }
+
+    @Command(description = "Set the maximum size (bytes) of a response, larger responses are truncated", name = "maxresponse", abbrev = "mr")
+    public void maxResponse(@Param(name = "size", description = "Maximum response size in bytes (e.g. 1048576)") int size) {
+        if (size < AjpPacketSplitter.MAX_PACKET_SIZE) {
+            invalid("The maximum response size must be at least " + AjpPacketSplitter.MAX_PACKET_SIZE + " bytes");
+            return;
+        }
+        setMaxResponseSize(size);
+        System.out.println("[*] Maximum response size: " + size + " bytes\n");
+    }
+
+    @Command(description = "Log requests and responses to a JSON lines file (default AJPFuzzer_<host>_<time>.jsonl), or 'off'", name = "resultlog", abbrev = "rl")
+    public void resultLog(@Param(name = "file", description = "Result log file, or off") String file) {
+        closeResultLog();
+        if (file.equalsIgnoreCase("off")) {
+            resultLogEnabled = false;
+            System.out.println("[*] Result logging disabled\n");
+            return;
+        }
+        resultLogEnabled = true;
+        resultLogFile = file;
+        getResultLog();
+        System.out.println();
+    }
+
+    @Command(description = "Print full hex dumps of requests and responses on the console ('on'), or a one-line summary ('off')", name = "hexdump", abbrev = "hd")
+    public void hexDump(@Param(name = "mode", description = "on or off") String mode) {
+        if (mode.equalsIgnoreCase("on")) {
+            setHexDump(true);
+        } else if (mode.equalsIgnoreCase("off")) {
+            setHexDump(false);
+        } else {
+            invalid("Unknown hex dump mode '" + mode + "'");
+            return;
+        }
+        System.out.println("[*] Console hex dumps: " + (hexDump ? "on" : "off") + "\n");
+    }
+
+    @Command(description = "Report and log only the first response of each behavior ('on'), every response ('off'), or forget the behaviors seen so far ('reset')", name = "dedup", abbrev = "dd")
+    public void dedup(@Param(name = "mode", description = "on, off or reset") String mode) {
+        if (mode.equalsIgnoreCase("on")) {
+            setDedup(true);
+        } else if (mode.equalsIgnoreCase("off")) {
+            setDedup(false);
+        } else if (mode.equalsIgnoreCase("reset")) {
+            behaviors.reset();
+            System.out.println("[*] Behaviors reset\n");
+            return;
+        } else {
+            invalid("Unknown dedup mode '" + mode + "'");
+            return;
+        }
+        System.out.println("[*] Response deduplication: " + (dedup ? "on" : "off") + "\n");
+    }
+
+    @Command(description = "Store the inputs producing new behaviors in a corpus directory, and resume from it ('off' to stop storing)", name = "corpus", abbrev = "co")
+    public void corpus(@Param(name = "directory", description = "Corpus directory, or off") String directory) {
+        closeCorpusStore();
+        if (directory.equalsIgnoreCase("off")) {
+            System.out.println("[*] Corpus store: off\n");
+            return;
+        }
+        try {
+            corpusStore = CorpusStore.open(Paths.get(directory));
+        } catch (IOException ex) {
+            failed("Cannot open corpus " + directory + " (" + ex.getMessage() + ")");
+            return;
+        }
+        //Behaviors of the stored inputs are known already
+        for (CorpusStore.Input input : corpusStore.inputs()) {
+            if (input.getFingerprint() != null) {
+                behaviors.record(input.getFingerprint(), input.getTestCase(), -1, input.getPayload());
+            }
+        }
+        corpusStore.printStats();
+    }
+
+    @Command(description = "Inputs of the corpus store, by test case", name = "corpus", abbrev = "co")
+    public void corpus() {
+        if (corpusStore == null) {
+            invalid("No corpus store, set one with 'corpus <directory>'");
+            return;
+        }
+        corpusStore.printStats();
+    }
+
+    @Command(description = "Copy into the corpus store the inputs of another corpus directory (e.g. from another machine) it does not hold yet", name = "corpusmerge", abbrev = "cg")
+    public void corpusMerge(@Param(name = "directory", description = "Corpus directory to merge") String directory) {
+        if (corpusStore == null) {
+            invalid("No corpus store, set one with 'corpus <directory>'");
+            return;
+        }
+        try {
+            System.out.println("[*] Merged " + corpusStore.merge(Paths.get(directory)) + " new inputs from " + directory);
+        } catch (IOException ex) {
+            failed("Corpus merge error (" + ex.getMessage() + ")");
+            return;
+        }
+        corpusStore.printStats();
+    }
+
+    @Command(description = "Keep only the smallest input of each behavior in the corpus store", name = "corpusmin", abbrev = "cz")
+    public void corpusMinimize() {
+        if (corpusStore == null) {
+            invalid("No corpus store, set one with 'corpus <directory>'");
+            return;
+        }
+        try {
+            System.out.println("[*] Removed " + corpusStore.minimize() + " inputs with the behavior of a smaller one");
+        } catch (IOException ex) {
+            failed("Corpus minimisation error (" + ex.getMessage() + ")");
+            return;
+        }
+        corpusStore.printStats();
+    }
+
+    @Command(description = "Seed the random mutations of the following runs with a fixed number, to reproduce a campaign, or with a new random seed for each run ('random')", name = "seed", abbrev = "sd")
+    public void seed(@Param(name = "seed", description = "A number, or random") String value) {
+        if (value.equalsIgnoreCase("random")) {
+            seed = null;
+            System.out.println("[*] New random seed for each run\n");
+            return;
+        }
+        try {
+            seed = Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            invalid("Invalid seed '" + value + "'");
+            return;
+        }
+        System.out.println("[*] Seed: " + seed + "\n");
+    }
+
+    @Command(description = "Keep the last <inputs> sent on the connection and save them when the target crashes or hangs (0 = off)", name = "crashdetect", abbrev = "cd")
+    public void crashDetect(@Param(name = "inputs", description = "Number of inputs to keep, 0 to disable crash detection") int inputs) {
+        crashDetect(inputs, crashSilent);
+    }
+
+    @Command(description = "Keep the last <inputs> sent on the connection, probe the target after <silent> consecutive exchanges without reply, and save the inputs when it crashes or hangs (0 = off)", name = "crashdetect", abbrev = "cd")
+    public void crashDetect(@Param(name = "inputs", description = "Number of inputs to keep, 0 to disable crash detection") int inputs,
+                            @Param(name = "silent", description = "Consecutive exchanges without reply before probing the target (e.g. 3)") int silent) {
+        if (inputs < 0) {
+            invalid("The number of inputs must be 0 or greater");
+            return;
+        }
+        if (silent < 1) {
+            invalid("The number of exchanges without reply must be 1 or greater");
+            return;
+        }
+        crashHistory = inputs;
+        crashSilent = silent;
+        if (crashMonitor != null) {
+            crashMonitor = new CrashMonitor(this, host, port);
+        }
+        System.out.println("[*] Crash detection: " + (inputs == 0 ? "off" : "last " + inputs + " inputs, probe after " + silent + " exchanges without reply") + "\n");
+    }
+
+    @Command(description = "Shell command restarting a local target, used to minimise the inputs that crashed it ('off' to disable)", name = "restartcmd", abbrev = "rs")
+    public void restartCommand(@Param(name = "command", description = "Restart command, or off") String command) {
+        restartCommand = command.equalsIgnoreCase("off") ? null : command;
+        System.out.println("[*] Restart command: " + (restartCommand == null ? "none" : restartCommand) + "\n");
+    }
+
+    @Command(description = "Open a fresh connection for each test ('fresh'), or reuse connections until the target closes them or an error occurs ('untilerror')", name = "connpolicy", abbrev = "cp")
+    public void connectionPolicy(@Param(name = "policy", description = "fresh or untilerror") String policy) {
+        if (policy.equalsIgnoreCase("fresh")) {
+            getPool().setPolicy(AjpConnectionPool.Policy.FRESH, 1);
+        } else if (policy.equalsIgnoreCase("untilerror")) {
+            getPool().setPolicy(AjpConnectionPool.Policy.UNTIL_ERROR, getPool().getMaxUses());
+        } else {
+            invalid("Unknown connection policy '" + policy + "'");
+            return;
+        }
+        System.out.println("[*] Connection policy: " + getPool().describe() + "\n");
+    }
+
+    @Command(description = "Reuse each connection for <uses> tests, then open a new one", name = "connpolicy", abbrev = "cp")
+    public void connectionPolicy(@Param(name = "policy", description = "reuse") String policy,
+                                 @Param(name = "uses", description = "Tests per connection") int uses) {
+        if (!policy.equalsIgnoreCase("reuse") || uses <= 0) {
+            invalid("Usage: connpolicy reuse <uses>, with uses greater than 0");
+            return;
+        }
+        getPool().setPolicy(AjpConnectionPool.Policy.REUSE, uses);
+        System.out.println("[*] Connection policy: " + getPool().describe() + "\n");
+    }
+
+    @Command(description = "Check idle pooled connections with a CPing before reusing them", name = "healthcheck", abbrev = "hc")
+    public void healthCheck(@Param(name = "mode", description = "on or off") String mode) {
+        if (mode.equalsIgnoreCase("on")) {
+            getPool().setHealthCheck(true);
+        } else if (mode.equalsIgnoreCase("off")) {
+            getPool().setHealthCheck(false);
+        } else {
+            invalid("Unknown health check mode '" + mode + "'");
+            return;
+        }
+        System.out.println("[*] Connection health checks: " + (getPool().isHealthCheck() ? "on" : "off") + "\n");
+    }
+
+    @Command(description = "Limit the requests per second sent to the target by all connections (0 = unlimited)", name = "ratelimit", abbrev = "rr")
+    public void rateLimit(@Param(name = "rate", description = "Requests per second, 0 for unlimited") double rate) {
+        rateLimit(rate, rateLimiter.getConnectionRate());
+    }
+
+    @Command(description = "Limit the requests per second sent to the target by all connections, and by each connection (0 = unlimited)", name = "ratelimit", abbrev = "rr")
+    public void rateLimit(@Param(name = "rate", description = "Requests per second, 0 for unlimited") double rate,
+                          @Param(name = "connection rate", description = "Requests per second on each connection, 0 for unlimited") double connectionRate) {
+        if (rate < 0 || connectionRate < 0) {
+            invalid("Rates must be 0 or greater");
+            return;
+        }
+        rateLimiter.setRates(rate, connectionRate);
+        System.out.println("[*] Rate limit: " + rateLimiter.describe() + "\n");
+    }
+
+    @Command(description = "Slow down when the target latency or resets climb, and speed up to the rate limit while it keeps up", name = "adaptiverate", abbrev = "ar")
+    public void adaptiveRate(@Param(name = "mode", description = "on or off") String mode) {
+        if (mode.equalsIgnoreCase("on")) {
+            if (!rateLimiter.isLimited()) {
+                invalid("Set a rate limit first, it is the maximum rate in adaptive mode");
+                return;
+            }
+            rateLimiter.setAdaptive(true);
+        } else if (mode.equalsIgnoreCase("off")) {
+            rateLimiter.setAdaptive(false);
+        } else {
+            invalid("Unknown adaptive rate mode '" + mode + "'");
+            return;
+        }
+        System.out.println("[*] Rate limit: " + rateLimiter.describe() + "\n");
+    }
+
+    @Command(description = "Connection pool policy and counters (opened, reused, retired connections)", name = "pool", abbrev = "pl")
+    public void poolStats() {
+        getPool().printStats();
+    }
+
+    @Command(description = "Requests, replies by message type, resets, timeouts and latency percentiles of each test case", name = "metrics", abbrev = "mt")
+    public void metrics() {
+        metrics.print();
+    }
+
+    @Command(description = "Print a status line with requests/s, errors and latency every <seconds> (0 = off)", name = "statusline", abbrev = "sl")
+    public void statusLine(@Param(name = "seconds", description = "Interval in seconds, 0 to disable") int seconds) {
+        if (seconds < 0) {
+            invalid("The interval must be 0 or greater");
+            return;
+        }
+        metrics.setStatusInterval(seconds);
+        System.out.println("[*] Status line: " + (seconds > 0 ? "every " + seconds + " s" : "off") + "\n");
+    }
+
+    @Command(description = "Serve the metrics in Prometheus text format on http://127.0.0.1:<port>/metrics (0 = off)", name = "metricsserver", abbrev = "ms")
+    public void metricsServer(@Param(name = "port", description = "Local port, 0 to disable") int port) {
+        try {
+            metrics.setServerPort(port);
+        } catch (IOException ex) {
+            failed("Cannot listen on port " + port + " (" + ex.getMessage() + ")");
+            return;
+        }
+        System.out.println("[*] Metrics endpoint: " + (port > 0 ? "http://127.0.0.1:" + port + "/metrics" : "off") + "\n");
+    }
+
+    @Command(description = "Start a loopback AJP13 container on 127.0.0.1:<port>, to run the fuzzer without a real target (0 = stop)", name = "mockserver", abbrev = "mk")
+    public void mockServer(@Param(name = "port", description = "Local port, 0 to stop the container") int port) {
+        if (port <= 0) {
+            mock.close();
+            System.out.println("[*] Mock container stopped\n");
+            return;
+        }
+        try {
+            mock.start(port);
+        } catch (IOException ex) {
+            failed("Cannot listen on port " + port + " (" + ex.getMessage() + ")");
+            return;
+        }
+        System.out.println("[*] Mock container listening, use: connect 127.0.0.1 " + mock.getPort() + "\n");
+    }
+
+    @Command(description = "Mock container settings and counters", name = "mockserver", abbrev = "mk")
+    public void mockServer() {
+        mock.printStats();
+    }
+
+    @Command(description = "Reply to ForwardRequest from the mock container with <status> and a body of <size> bytes in chunks of <chunk> bytes", name = "mockreply", abbrev = "my")
+    public void mockReply(@Param(name = "status", description = "HTTP status code") int status,
+            @Param(name = "size", description = "Body size in bytes, e.g. larger than maxresponse for oversized replies") int size,
+            @Param(name = "chunk", description = "Body bytes per SendBodyChunk packet") int chunk) {
+        if (status < 0 || status > 0xFFFF) {
+            invalid("The status code must be between 0 and 65535");
+            return;
+        }
+        if (size < 0 || chunk <= 0) {
+            invalid("The body size must be 0 or greater and the chunk size greater than 0");
+            return;
+        }
+        mock.setReply(status, size, chunk);
+        mock.printStats();
+    }
+
+    @Command(description = "Inject faults in the mock container: delay before every reply, share of connections reset and of requests without reply", name = "mockfaults", abbrev = "mf")
+    public void mockFaults(@Param(name = "latency", description = "Delay in ms") int latency,
+            @Param(name = "resets", description = "Percentage of replies replaced by a connection reset") double resets,
+            @Param(name = "hangs", description = "Percentage of requests without reply") double hangs) {
+        if (latency < 0) {
+            invalid("The latency must be 0 or greater");
+            return;
+        }
+        if (!(resets >= 0 && resets <= 100 && hangs >= 0 && hangs <= 100)) {
+            invalid("Percentages must be between 0 and 100");
+            return;
+        }
+        mock.setFaults(latency, resets / 100, hangs / 100);
+        mock.printStats();
+    }
+
+    @Command(description = "Stop the mock container when a request contains <marker>, to exercise crash detection ('off' to disable)", name = "mockcrash", abbrev = "mx")
+    public void mockCrash(@Param(name = "marker", description = "Crash marker, or off") String marker) {
+        mock.setCrashMarker(marker.equalsIgnoreCase("off") ? null : marker);
+        mock.printStats();
+    }
+
+    @Command(description = "List the distinct behaviors (response fingerprints) of the target, rarest first", name = "behaviors", abbrev = "bh")
+    public void behaviors() {
+        behaviors.print();
+    }
+
+    @Command(description = "Select how parallel test cases run connections: 'platform' (fixed thread pool) or 'virtual' (one virtual thread each)", name = "executormode", abbrev = "em")
+    public void executorMode(@Param(name = "mode", description = "platform or virtual") String mode) {
+        if (mode.equalsIgnoreCase("virtual")) {
+            setVirtualThreads(true);
+        } else if (mode.equalsIgnoreCase("platform")) {
+            setVirtualThreads(false);
+        } else {
+            invalid("Unknown executor mode '" + mode + "'");
+            return;
+        }
+        System.out.println("[*] Executor mode: " + (virtualThreads ? "virtual" : "platform") + "\n");
+    }
+
     public static void main(String[] args) throws IOException {
         //Initialize logging
         try {
-            fos = new FileOutputStream("AJPFuzzer_" + InetAddress.getLocalHost().getHostName() + "_" + System.nanoTime() + ".log");
-            myOut = new TeeOutputStream(System.out, fos);
-            myErr = new TeeOutputStream(System.err, fos);
+            logName = "AJPFuzzer_" + InetAddress.getLocalHost().getHostName() + "_" + System.nanoTime();
+            fos = new FileOutputStream(logName + ".log");
+            logStream = new BufferedOutputStream(fos, 64 * 1024);
+            myOut = new TeeOutputStream(System.out, logStream);
+            myErr = new TeeOutputStream(System.err, logStream);
             myIn = new TeeInputStream(System.in, myOut);
             psOut = new PrintStream(myOut);
             psErr = new PrintStream(myErr);
             System.setOut(psOut);
             System.setErr(psErr);
             System.setIn(myIn);
+
+            //The session log is buffered: flush it on System.exit as well
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                psOut.flush();
+                psErr.flush();
+            }));
         } catch (UnknownHostException | FileNotFoundException e) {
             System.out.println("[!] Logging setup error\n");
         }
@@ -163,6 +743,14 @@ public class AJPFuzzer implements ShellDependent, ShellManageable {
         //Start the fuzzer
         AJPFuzzer myFuzzer = new AJPFuzzer();
         myFuzzer.banner();
+
+        //Headless mode: run a test case or a campaign file, then exit with its status code
+        if (args.length > 0) {
+            int exitStatus = new BatchRunner(myFuzzer).run(args);
+            myFuzzer.cliLeaveLoop();
+            System.exit(exitStatus);
+        }
+
         Shell myShell = ShellFactory.createConsoleShell("AJPFuzzer", "", new AJPFuzzer());
         myFuzzer.cliSetShell(myShell);
         myShell.commandLoop();
@@ -170,16 +758,35 @@ public class AJPFuzzer implements ShellDependent, ShellManageable {
 
     @Override
     public void cliEnterLoop() {
-        //do nothing
+        loops++;
     }
 
+    //Leaving a subshell keeps the connection and the settings, only the top-level shell shuts down
     @Override
     public void cliLeaveLoop() {
-        if (socket != null && !socket.isClosed()) {
+        if (loops > 0) {
+            loops--;
+        }
+        if (loops == 0) {
+            shutdown();
+        }
+    }
+
+    private void shutdown() {
+        if (connected) {
             disconnect();
         }
+        closeResultLog();
+        closeCorpusStore();
+        metrics.close();
+        mock.close();
+        if (fos == null) {
+            return; //Logging was not set up
+        }
         try {
-            fos.close();
+            psOut.flush();
+            psErr.flush();
+            logStream.close();
             myOut.close();
             myErr.close();
             myIn.close();
@@ -9,14 +9,16 @@ import asg.cliche.Command;
 import asg.cliche.Param;
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.io.UnsupportedEncodingException;
 import java.io.File;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.io.IOException;
 import java.net.URL;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jdk.jshell.execution.Util;
 import org.apache.commons.lang3.ArrayUtils;
@@ -43,22 +45,6 @@ public class AJPTestCases {
         this.ajpsocket = ajpsocket;
     }
 
-    //Expose socket Status, Reconnect, Quit in the subshell
-    @Command(description = "Status of the connection to the remote AJP13 service", name = "status", abbrev = "sta")
-    public void status() throws IOException {
-        ajpsocket.status();
-    }
-
-    @Command(description = "Reconnect to the remote AJP13 service", name = "reconnect", abbrev = "rc")
-    public void reconnect() {
-        ajpsocket.reconnect();
-    }
-
-    @Command(description = "Disconnect and quit AJPFuzzer", name = "quit", abbrev = "quit")
-    public void quit() {
-        ajpsocket.quit();
-    }
-
     /*
      * Test Case id: 1
      * Test Case name: body
@@ -265,11 +251,6 @@ public class AJPTestCases {
         for (int type : test) {
             msgInBytes[4] = (byte) type;
             Utils.sendAndReceiveVerbose(ajpsocket, msgInBytes, "(11) forwardreqalltypes - type:" + type);
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException ex) {
-                Thread.currentThread().interrupt();
-            }
         }
 
     }
@@ -310,33 +291,39 @@ public class AJPTestCases {
     /*
      * Test Case id: 14
      * Test Case name: hugelengthsmallbody
-     * Description: Send ForwardRequest+Body messages, with a big Content-Length and small Body
+     * Description: Send ForwardRequest+Body messages in one write, with a big Content-Length and small Body
      * Usage example: AJPFuzzer/192.168.80.131:8009> hugelengthsmallbody "http://192.168.80.131:8009"
      */
     @Command(description = "Send a POST ForwardRequest (type 2) with big Content-Length, followed by a small Body AJP13 packet", name = "hugelengthsmallbody", abbrev = "14")
     public void bodyHugeMessage(@Param(name = "url", description = "Forward Request URL") String url) throws UnsupportedEncodingException, IOException {
-        AjpMessage msg = ForwardRequestMessage.ForwardRequestMessagePostBuilder(new URL(url), 100000);
-        Utils.sendAndReceiveVerbose(ajpsocket, msg.getBytes(), "(14) hugelengthsmallbody");
-        msg = new BodyMessage("HugeContentLengthSmallBody".getBytes());
-        Utils.sendAndReceiveVerbose(ajpsocket, msg.getBytes(), "(14) hugelengthsmallbody");
+        AjpSequence sequence = new AjpSequence()
+                .add("ForwardRequest POST", ForwardRequestMessage.ForwardRequestMessagePostBuilder(new URL(url), 100000).getBytes())
+                .add("Body", new BodyMessage("HugeContentLengthSmallBody".getBytes()).getBytes())
+                .expectReplies(1); //The container asks for the rest of the body, or gives up
+        Utils.sendSequence(ajpsocket, sequence, "(14) hugelengthsmallbody");
     }
 
     /*
      * Test Case id: 15
      * Test Case name: hugeheader
-     * Description: Send two AJP13 ForwardRequest packets with header length greater than 0x9999 (e.g. A010)
+     * Description: Send two pipelined AJP13 ForwardRequest packets with header length greater than 0x9999 (e.g. A010)
      * Usage example: AJPFuzzer/192.168.80.131:8009> hugeheader "http://192.168.80.131:8009"
      */
     @Command(description = "Send two GET ForwardRequest (type 2) packets with header larger than 0x9999 (0xA010)", name = "hugeheader", abbrev = "15")
     public void hugeHeaderMessage(@Param(name = "url", description = "Forward Request URL") String url) throws UnsupportedEncodingException, IOException {
         List<Pair<String, String>> headers = new LinkedList<>();
         headers.add(Pair.make(StringUtils.repeat("A", 40976), "BBBB"));
-        AjpMessage msg = new ForwardRequestMessage(2, new URL(url), headers, null);
-        Utils.sendAndReceiveVerbose(ajpsocket, msg.getBytes(), "(15) hugeheader - name 40976 bytes");
+        AjpMessage first = new ForwardRequestMessage(2, new URL(url), headers, null);
         headers = new LinkedList<>();
         headers.add(Pair.make(StringUtils.repeat("C", 40976), StringUtils.repeat("D", 40976)));
-        msg = new ForwardRequestMessage(2, new URL(url), headers, null);
-        Utils.sendAndReceiveVerbose(ajpsocket, msg.getBytes(), "(15) hugeheader - name and value 40976 bytes each");
+        AjpMessage second = new ForwardRequestMessage(2, new URL(url), headers, null);
+        //Pipelined: the second request is parsed wherever the container stopped reading the first one.
+        //Both exceed the 8 KB packet limit, so a single reply (usually an error) is expected, not one each
+        AjpSequence sequence = new AjpSequence()
+                .add("ForwardRequest header name 40976 bytes", first.getBytes())
+                .add("ForwardRequest header name and value 40976 bytes each", second.getBytes())
+                .expectReplies(1);
+        Utils.sendSequence(ajpsocket, sequence, "(15) hugeheader");
     }
 
     /*
@@ -344,9 +331,33 @@ public class AJPTestCases {
      * Test Case name: fuzzbit
      * Description: Create a complex AJP13 ForwardRequest and start bit flipping
      * Usage example: AJPFuzzer/192.168.80.131:8009> fuzzbit "http://192.168.80.131:8009"
+     *                AJPFuzzer/192.168.80.131:8009> fuzzbit "http://192.168.80.131:8009" 100000
      */
     @Command(description = "Create a complex GET ForwardRequest (type 2) and start bit flipping (infite loop)", name = "fuzzbit", abbrev = "16")
     public void fuzzBitMessage(@Param(name = "url", description = "Forward Request URL") String url) throws UnsupportedEncodingException, IOException {
+        fuzzBitMessage(url, 0);
+    }
+
+    @Command(description = "Create a complex GET ForwardRequest (type 2) and start bit flipping - the number of iterations (0 = infinite loop) should be passed as the last argument", name = "fuzzbit", abbrev = "16")
+    public void fuzzBitMessage(@Param(name = "url", description = "Forward Request URL") String url,
+                               @Param(name = "iterations", description = "Number of iterations, 0 for an infinite loop") long iterations) throws UnsupportedEncodingException, IOException {
+        if (iterations < 0) {
+            ajpsocket.invalid("The number of iterations must be 0 or greater");
+            return;
+        }
+        byte[] msgGene = complexGetMessage(url);
+        //First, send msg as it is
+        Utils.sendAndReceiveVerbose(ajpsocket, msgGene, "(16) fuzzbit - original");
+        //Start bit flipping. Flips accumulate, iteration n is replayed by applying flips 0 to n
+        FuzzRandom random = ajpsocket.newRandom();
+        for (long iteration = 0; iterations == 0 || iteration < iterations; iteration++) {
+            random.reseed(iteration);
+            Utils.sendAndReceive(ajpsocket, Utils.flipBit(msgGene, random), "(16) fuzzbit - iteration", iteration, random.describe(iteration), true);
+        }
+    }
+
+    //GET ForwardRequest with many headers and attributes (fuzzbit)
+    private static byte[] complexGetMessage(String url) throws IOException {
         List<Pair<String, String>> headers = new LinkedList<>();
         headers.add(Pair.make("Content-Type", "text/html; charset=utf-8"));
         //Add additional headers to bypass potential checks or WAF
@@ -371,13 +382,7 @@ public class AJPTestCases {
                 headers,
                 attributes
         );
-        byte[] msgGene = msg.getBytes();
-        //First, send msg as it is
-        Utils.sendAndReceiveVerbose(ajpsocket, msgGene, "(16) fuzzbit - original");
-        //Start bit flipping
-        while (true) {
-            Utils.sendAndReceiveVerbose(ajpsocket, Utils.flipBit(msgGene), "(16) fuzzbit - iteration");
-        }
+        return msg.getBytes();
     }
 
     /*
@@ -385,13 +390,76 @@ public class AJPTestCases {
      * Test Case name: fuzzslice
      * Description: Create an AJP13 ForwardRequest, SendHeaders, ShutDown, 0xFF, 0x00. Slice and send.
      * Usage example: AJPFuzzer/192.168.80.131:8009> fuzzslice "http://192.168.80.131:8009/path"
+     *                AJPFuzzer/192.168.80.131:8009> fuzzslice "http://192.168.80.131:8009/path" 100000
      */
     @Command(description = "Create a complex POST ForwardRequest (type 2), SendHeaders, ShutDown, 0xFF, 0x00. Slice and send. (Infite Loop)", name = "fuzzslice", abbrev = "17")
     public void fuzzSliceMessage(@Param(name = "url", description = "Forward Request URL") String url) throws UnsupportedEncodingException, IOException {
+        fuzzSliceMessage(url, 0);
+    }
+
+    @Command(description = "Create a complex POST ForwardRequest (type 2), SendHeaders, ShutDown, 0xFF, 0x00. Slice and send - the number of iterations (0 = infinite loop) should be passed as the last argument", name = "fuzzslice", abbrev = "17")
+    public void fuzzSliceMessage(@Param(name = "url", description = "Forward Request URL") String url,
+                                 @Param(name = "iterations", description = "Number of iterations, 0 for an infinite loop") long iterations) throws UnsupportedEncodingException, IOException {
+        if (iterations < 0) {
+            ajpsocket.invalid("The number of iterations must be 0 or greater");
+            return;
+        }
+        byte[] msgFwd = complexPostMessage(url);
+
+        //First, send msg as it is
+        Utils.sendAndReceiveVerbose(ajpsocket, msgFwd, "(17) fuzzslice - original");
+
+        //Start slicing 1-msgFwd, 2-msgSHead, 3-msgShut, 4-msgFinal, 5-msgNull
+        byte[][] messages = sliceMessages(msgFwd);
+        FuzzRandom random = ajpsocket.newRandom();
+        for (long iteration = 0; iterations == 0 || iteration < iterations; iteration++) {
+            sendSlices(messages, random, iteration);
+        }
+    }
+
+    //fuzzslice messages: msgFwd, msgSHead, msgShut, msgFinal, msgNull
+    private static byte[][] sliceMessages(byte[] msgFwd) throws IOException {
+        AjpMessage msg = new SendHeadersMessage(404, "NOT FOUND", sliceHeaders());
+        byte[] msgSHead = msg.getBytes();
+
+        msg = new ShutdownMessage();
+        byte[] msgShut = msg.getBytes();
+
+        byte[] msgFinal = new byte[1];
+        msgFinal[0] = (byte) 0xFF;
+
+        byte[] msgNull = new byte[1];
+        msgNull[0] = (byte) 0x00;
+        return new byte[][]{msgFwd, msgSHead, msgShut, msgFinal, msgNull};
+    }
+
+    //One fuzzslice iteration: slice each message and send msgFwd followed by each of the others
+    private void sendSlices(byte[][] messages, FuzzRandom random, long iteration) throws IOException {
+        random.reseed(iteration);
+        byte[] slice1 = Utils.sliceFromBegin(messages[0], random);
+        byte[] slice2 = Utils.sliceAll(messages[1], random);
+        byte[] slice3 = Utils.sliceAll(messages[2], random);
+        byte[] slice4 = Utils.sliceAll(messages[3], random);
+        byte[] slice5 = Utils.sliceAll(messages[4], random);
+        String replay = random.describe(iteration);
+        Utils.sendAndReceive(ajpsocket, ArrayUtils.addAll(slice1, slice2), "(17) fuzzslice - msgFwd and msgSHead", iteration, replay, true);
+        Utils.sendAndReceive(ajpsocket, ArrayUtils.addAll(slice1, slice3), "(17) fuzzslice - msgFwd and msgShut", iteration, replay, true);
+        Utils.sendAndReceive(ajpsocket, ArrayUtils.addAll(slice1, slice4), "(17) fuzzslice - msgFwd and msgFinal", iteration, replay, true);
+        Utils.sendAndReceive(ajpsocket, ArrayUtils.addAll(slice1, slice5), "(17) fuzzslice - msgFwd and msgNull", iteration, replay, true);
+    }
+
+    //Headers of the fuzzslice messages
+    private static List<Pair<String, String>> sliceHeaders() {
         List<Pair<String, String>> headers = new LinkedList<>();
         headers.add(Pair.make("Content-Type", "binary/octet-stream"));
         headers.add(Pair.make("Accept-Charset", "iso-8859-5, unicode-1-1;q=0.8"));
         headers.add(Pair.make("User-Agent", "Mozilla/5.0 (iPhone; U; CPU like Mac OS X; en) AppleWebKit/420.1 (KHTML, like Gecko) Version/3.0 Mobile/3B48b Safari/419.3"));
+        return headers;
+    }
+
+    //POST ForwardRequest with all coded attributes (fuzzslice)
+    private static byte[] complexPostMessage(String url) throws IOException {
+        List<Pair<String, String>> headers = sliceHeaders();
         List<Pair<String, String>> attributes = new LinkedList<>();
         attributes.add(Pair.make("context", "1111"));
         attributes.add(Pair.make("servlet_path", "2222"));
@@ -404,36 +472,7 @@ public class AJPTestCases {
         attributes.add(Pair.make("secret", "9999"));
         URL ulrv = new URL(url);
         AjpMessage msg = new ForwardRequestMessage(4, "HTTP/1.1", ulrv.getPath(), "127.0.0.1", "localhost", ulrv.getHost(), ((ulrv.getPort() == -1) ? ulrv.getDefaultPort() : ulrv.getPort()), ulrv.getProtocol().equalsIgnoreCase("https"), headers, attributes);
-        byte[] msgFwd = msg.getBytes();
-
-        //First, send msg as it is
-        Utils.sendAndReceiveVerbose(ajpsocket, msgFwd, "(17) fuzzslice - original");
-
-        //Create other packets
-        msg = new SendHeadersMessage(404, "NOT FOUND", headers);
-        byte[] msgSHead = msg.getBytes();
-
-        msg = new ShutdownMessage();
-        byte[] msgShut = msg.getBytes();
-
-        byte[] msgFinal = new byte[1];
-        msgFinal[0] = (byte) 0xFF;
-
-        byte[] msgNull = new byte[1];
-        msgNull[0] = (byte) 0x00;
-
-        //Start slicing 1-msgFwd, 2-msgSHead, 3-msgShut, 4-msgFinal, 5-msgNull
-        while (true) {
-            byte[] slice1 = Utils.sliceFromBegin(msgFwd);
-            byte[] slice2 = Utils.sliceAll(msgSHead);
-            byte[] slice3 = Utils.sliceAll(msgShut);
-            byte[] slice4 = Utils.sliceAll(msgFinal);
-            byte[] slice5 = Utils.sliceAll(msgNull);
-            Utils.sendAndReceiveVerbose(ajpsocket, ArrayUtils.addAll(slice1, slice2), "(17) fuzzslice - msgFwd and msgSHead");
-            Utils.sendAndReceiveVerbose(ajpsocket, ArrayUtils.addAll(slice1, slice3), "(17) fuzzslice - msgFwd and msgShut");
-            Utils.sendAndReceiveVerbose(ajpsocket, ArrayUtils.addAll(slice1, slice4), "(17) fuzzslice - msgFwd and msgFinal");
-            Utils.sendAndReceiveVerbose(ajpsocket, ArrayUtils.addAll(slice1, slice5), "(17) fuzzslice - msgFwd and msgNull");
-        }
+        return msg.getBytes();
     }
 
     /*
@@ -544,54 +583,415 @@ public class AJPTestCases {
             @Param(name = "path", description = "Fuzzing file") String pathFile
     ) throws UnsupportedEncodingException, IOException {
 
-        List<String> allLines = Files.readAllLines(Paths.get(pathFile));
-        for (String singleLine : allLines) {
+        genericFuzz(method, protocol, requestUri, remoteAddr, remoteHost, serverName, serverPort, isSsl, headers, attributes, pathFile, 0);
+    }
+
+    //Same as above, resuming the fuzzing list at the given line index
+    @Command(description = "Create an AJP13 ForwardRequest (GET) that allows fuzzing arbitrary message elements - the fuzzing list and the line to resume from should be passed as the last arguments", name = "genericfuzz", abbrev = "22")
+    public void dirTraversalMessage(
+            @Param(name = "method", description = "HTTP verb (e.g. GET=2)") int method,
+            @Param(name = "protocol", description = "HTTP protocol (e.g. HTTP/1.1)") String protocol,
+            @Param(name = "requestUri", description = "Request URI (e.g. /api/)") String requestUri,
+            @Param(name = "remoteAddr", description = "Client IP address") String remoteAddr,
+            @Param(name = "remoteHost", description = "Client FQDN") String remoteHost,
+            @Param(name = "serverName", description = "Server FQDN") String serverName,
+            @Param(name = "serverPort", description = "Server TCP port") int serverPort,
+            @Param(name = "isSsl", description = "Is SSL? Boolean") boolean isSsl,
+            @Param(name = "headers", description = "HTTP headers as <name>:<value>,<name>:<value>,...") String headers,
+            @Param(name = "attributes", description = "HTTP attributes as <name>:<value>,<name>:<value>,...") String attributes,
+            @Param(name = "path", description = "Fuzzing file") String pathFile,
+            @Param(name = "startLine", description = "Index of the first line to send (0 = first line)") long startLine
+    ) throws UnsupportedEncodingException, IOException {
+        genericFuzz(method, protocol, requestUri, remoteAddr, remoteHost, serverName, serverPort, isSsl, headers, attributes, pathFile, startLine);
+    }
+
+    private void genericFuzz(int method, String protocol, String requestUri, String remoteAddr, String remoteHost, String serverName,
+                             int serverPort, boolean isSsl, String headers, String attributes, String pathFile, long startLine) throws IOException {
+        FuzzTemplate template = compileTemplate(method, protocol, requestUri, remoteAddr, remoteHost, serverName, serverPort, isSsl, headers, attributes, Utils.FUZZ_KEY);
+        if (template == null) {
+            return;
+        }
+        try (Wordlist wordlist = new Wordlist(Paths.get(pathFile), startLine)) {
+            while (wordlist.hasNext()) {
+                long index = wordlist.getIndex();
+                String singleLine = wordlist.next();
+
+                System.out.println("current (" + index + "): " + singleLine);
+
+                byte[] message;
+                try {
+                    message = template.toBytes(singleLine);
+                } catch (IllegalArgumentException ex) {
+                    System.out.println("[!] Line skipped: " + ex.getMessage() + "\n");
+                    continue;
+                }
+                Utils.sendAndReceive(ajpsocket, message, "(22) genericfuzz", index, singleLine, true);
+            }
+        }
+    }
+
+    /*
+     * Test Case id: 23
+     * Test Case name: parallelfuzz
+     * Description: Same as genericfuzz, but the fuzzing list is split across multiple independent AJP13 connections
+     * Usage example: AJPFuzzer/192.168.80.131:8009> parallelfuzz 2 "HTTP/1.1" "/test.html" "127.0.0.1" "127.0.0.1" "server.name.test" 8009 false "Cookie:AAAA=BBBB" "secret:FUZZ" /path/list.txt 16
+     */
+    @Command(description = "Same as genericfuzz, using multiple parallel AJP13 connections - the fuzzing list and the number of connections should be passed as the last arguments", name = "parallelfuzz", abbrev = "23")
+    public void parallelFuzzMessage(
+            @Param(name = "method", description = "HTTP verb (e.g. GET=2)") int method,
+            @Param(name = "protocol", description = "HTTP protocol (e.g. HTTP/1.1)") String protocol,
+            @Param(name = "requestUri", description = "Request URI (e.g. /api/)") String requestUri,
+            @Param(name = "remoteAddr", description = "Client IP address") String remoteAddr,
+            @Param(name = "remoteHost", description = "Client FQDN") String remoteHost,
+            @Param(name = "serverName", description = "Server FQDN") String serverName,
+            @Param(name = "serverPort", description = "Server TCP port") int serverPort,
+            @Param(name = "isSsl", description = "Is SSL? Boolean") boolean isSsl,
+            @Param(name = "headers", description = "HTTP headers as <name>:<value>,<name>:<value>,...") String headers,
+            @Param(name = "attributes", description = "HTTP attributes as <name>:<value>,<name>:<value>,...") String attributes,
+            @Param(name = "path", description = "Fuzzing file") String pathFile,
+            @Param(name = "connections", description = "Number of parallel AJP13 connections (e.g. 16)") int connections
+    ) throws UnsupportedEncodingException, IOException {
+        if (connections <= 0) {
+            ajpsocket.invalid("The number of connections must be greater than 0");
+            return;
+        }
+        FuzzTemplate template = compileTemplate(method, protocol, requestUri, remoteAddr, remoteHost, serverName, serverPort, isSsl, headers, attributes, Utils.FUZZ_KEY);
+        if (template == null) {
+            return;
+        }
+        ParallelFuzzer fuzzer = new ParallelFuzzer(ajpsocket, connections);
+        try (Wordlist wordlist = new Wordlist(Paths.get(pathFile))) {
+            fuzzer.run(wordlist, template::encode, "(23) parallelfuzz");
+        }
+    }
+
+    /*
+     * Test Case id: 24
+     * Test Case name: sessionflood
+     * Description: Open many concurrent AJP13 sessions, each sending a POST ForwardRequest with a big Content-Length and no Body, and hold them open
+     * Usage example: AJPFuzzer/192.168.80.131:8009> sessionflood "http://192.168.80.131:8009/upload" 5000 30
+     */
+    @Command(description = "Open many concurrent sessions sending a POST ForwardRequest (type 2) without Body, and hold them open (connector exhaustion)", name = "sessionflood", abbrev = "24")
+    public void sessionFloodMessage(@Param(name = "url", description = "Forward Request URL") String url,
+                                    @Param(name = "sessions", description = "Number of concurrent AJP13 sessions (e.g. 5000)") int sessions,
+                                    @Param(name = "hold", description = "Seconds to hold each session open") int hold) throws UnsupportedEncodingException, IOException {
+        if (sessions <= 0 || hold < 0) {
+            ajpsocket.invalid("Invalid number of sessions or hold time");
+            return;
+        }
+        byte[] msgInBytes = ForwardRequestMessage.ForwardRequestMessagePostBuilder(new URL(url), 100000).getBytes();
+        AtomicInteger connected = new AtomicInteger();
+        AtomicInteger refused = new AtomicInteger();
+        AtomicInteger replied = new AtomicInteger();
+        AtomicInteger dropped = new AtomicInteger();
+
+        System.out.println("[*] Opening " + sessions + " sessions to " + ajpsocket.getHost() + ":" + ajpsocket.getPort() + (ajpsocket.isVirtualThreads() ? " (virtual threads)" : ""));
+        try (ExecutorService pool = ParallelFuzzer.newExecutor(sessions, ajpsocket.isVirtualThreads())) {
+            for (int i = 0; i < sessions; i++) {
+                pool.execute(() -> {
+                    try (AjpConnection connection = new AjpConnection(ajpsocket.getHost(), ajpsocket.getPort(), ajpsocket.getMaxResponseSize())) {
+                        try {
+                            connection.connect();
+                        } catch (IOException ex) {
+                            refused.incrementAndGet();
+                            return;
+                        }
+                        connected.incrementAndGet();
+                        try {
+                            if (connection.exchange(msgInBytes, ajpsocket.getReceiveTimeout()).getPacketCount() > 0) {
+                                replied.incrementAndGet();
+                            }
+                            Thread.sleep(hold * 1000L);
+                        } catch (IOException ex) {
+                            dropped.incrementAndGet();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+        }
+        System.out.println("[*] (24) sessionflood - connected: " + connected.get() + ", refused: " + refused.get() + ", replied: " + replied.get() + ", dropped: " + dropped.get() + "\n");
+    }
 
-            System.out.println("current: " + singleLine);
+    /*
+     * Test Case id: 25
+     * Test Case name: niofuzz
+     * Description: Same as genericfuzz, multiplexing many non-blocking AJP13 connections on a single thread
+     * Usage example: AJPFuzzer/192.168.80.131:8009> niofuzz 2 "HTTP/1.1" "/test.html" "127.0.0.1" "127.0.0.1" "server.name.test" 8009 false "Cookie:AAAA=BBBB" "secret:FUZZ" /path/list.txt 200
+     */
+    @Command(description = "Same as genericfuzz, multiplexing non-blocking AJP13 connections on a single thread - the fuzzing list and the number of connections should be passed as the last arguments", name = "niofuzz", abbrev = "25")
+    public void nioFuzzMessage(
+            @Param(name = "method", description = "HTTP verb (e.g. GET=2)") int method,
+            @Param(name = "protocol", description = "HTTP protocol (e.g. HTTP/1.1)") String protocol,
+            @Param(name = "requestUri", description = "Request URI (e.g. /api/)") String requestUri,
+            @Param(name = "remoteAddr", description = "Client IP address") String remoteAddr,
+            @Param(name = "remoteHost", description = "Client FQDN") String remoteHost,
+            @Param(name = "serverName", description = "Server FQDN") String serverName,
+            @Param(name = "serverPort", description = "Server TCP port") int serverPort,
+            @Param(name = "isSsl", description = "Is SSL? Boolean") boolean isSsl,
+            @Param(name = "headers", description = "HTTP headers as <name>:<value>,<name>:<value>,...") String headers,
+            @Param(name = "attributes", description = "HTTP attributes as <name>:<value>,<name>:<value>,...") String attributes,
+            @Param(name = "path", description = "Fuzzing file") String pathFile,
+            @Param(name = "connections", description = "Number of multiplexed AJP13 connections (e.g. 200)") int connections
+    ) throws UnsupportedEncodingException, IOException {
+        if (connections <= 0) {
+            ajpsocket.invalid("The number of connections must be greater than 0");
+            return;
+        }
+        FuzzTemplate template = compileTemplate(method, protocol, requestUri, remoteAddr, remoteHost, serverName, serverPort, isSsl, headers, attributes, Utils.FUZZ_KEY);
+        if (template == null) {
+            return;
+        }
+        NioFuzzer<String> fuzzer = new NioFuzzer<>(ajpsocket, connections);
+        try (Wordlist wordlist = new Wordlist(Paths.get(pathFile))) {
+            fuzzer.run(wordlist, template::encode, "(25) niofuzz");
+        }
+    }
 
-            String protocol_replaced = Utils.replaceFuzz(protocol, singleLine);
-            String requestUri_replaced = Utils.replaceFuzz(requestUri, singleLine);
-            String remoteAddr_replaced = Utils.replaceFuzz(remoteAddr, singleLine);
-            String remoteHost_replaced = Utils.replaceFuzz(remoteHost, singleLine);
-            String serverName_replaced = Utils.replaceFuzz(serverName, singleLine);
+    /*
+     * Test Case id: 26
+     * Test Case name: multifuzz
+     * Description: Create an AJP13 ForwardRequest fuzzing several elements at once, marker FUZZ<n> taking its values from the n-th fuzzing list
+     *              Modes: sniper (one marker at a time), pitchfork (n-th line of each list together), clusterbomb (all combinations)
+     * Usage example: AJPFuzzer/192.168.80.131:8009> multifuzz 2 "HTTP/1.1" "/FUZZ1" "127.0.0.1" "127.0.0.1" "server.name.test" 8009 false "Cookie:AAAA=BBBB" "secret:FUZZ2" clusterbomb /path/paths.txt,/path/secrets.txt 16
+     */
+    @Command(description = "Create an AJP13 ForwardRequest fuzzing several elements (FUZZ1, FUZZ2, ...) with one fuzzing list each - mode (sniper, pitchfork, clusterbomb), comma-separated lists and number of connections should be passed as the last arguments", name = "multifuzz", abbrev = "26")
+    public void multiFuzzMessage(
+            @Param(name = "method", description = "HTTP verb (e.g. GET=2)") int method,
+            @Param(name = "protocol", description = "HTTP protocol (e.g. HTTP/1.1)") String protocol,
+            @Param(name = "requestUri", description = "Request URI (e.g. /api/)") String requestUri,
+            @Param(name = "remoteAddr", description = "Client IP address") String remoteAddr,
+            @Param(name = "remoteHost", description = "Client FQDN") String remoteHost,
+            @Param(name = "serverName", description = "Server FQDN") String serverName,
+            @Param(name = "serverPort", description = "Server TCP port") int serverPort,
+            @Param(name = "isSsl", description = "Is SSL? Boolean") boolean isSsl,
+            @Param(name = "headers", description = "HTTP headers as <name>:<value>,<name>:<value>,...") String headers,
+            @Param(name = "attributes", description = "HTTP attributes as <name>:<value>,<name>:<value>,...") String attributes,
+            @Param(name = "mode", description = "sniper, pitchfork or clusterbomb") String mode,
+            @Param(name = "paths", description = "Fuzzing files as <FUZZ1 file>,<FUZZ2 file>,...") String pathFiles,
+            @Param(name = "connections", description = "Number of parallel AJP13 connections (e.g. 16)") int connections
+    ) throws UnsupportedEncodingException, IOException {
+        FuzzCombinator.Mode combination;
+        try {
+            combination = FuzzCombinator.Mode.parse(mode);
+        } catch (IllegalArgumentException ex) {
+            ajpsocket.invalid("Unknown mode '" + mode + "'");
+            return;
+        }
+        if (connections <= 0) {
+            ajpsocket.invalid("The number of connections must be greater than 0");
+            return;
+        }
+        String[] files = pathFiles.split(",");
+        Path[] paths = new Path[files.length];
+        for (int i = 0; i < files.length; i++) {
+            paths[i] = Paths.get(files[i]);
+        }
+        FuzzTemplate template = compileTemplate(method, protocol, requestUri, remoteAddr, remoteHost, serverName, serverPort, isSsl, headers, attributes, FuzzCombinator.markers(files.length));
+        if (template == null) {
+            return;
+        }
+        ParallelFuzzer fuzzer = new ParallelFuzzer(ajpsocket, connections);
+        try (FuzzCombinator combinator = new FuzzCombinator(combination, paths)) {
+            fuzzer.run(combinator, template::encode, "(26) multifuzz");
+        }
+    }
 
-            List<Pair<String, String>> headersList = null;
+    /*
+     * Test Case id: 27
+     * Test Case name: corpusfuzz
+     * Description: Feedback-driven fuzzing: mutate the fuzzbit/fuzzslice messages, keep every mutant producing a new behavior and mutate it further
+     * Usage example: AJPFuzzer/192.168.80.131:8009> corpusfuzz "http://192.168.80.131:8009/path" 0
+     */
+    @Command(description = "Feedback-driven fuzzing: mutate the fuzzbit and fuzzslice messages, keeping and favouring the mutants that produce new behaviors - the number of executions (0 = infinite loop) should be passed as the last argument", name = "corpusfuzz", abbrev = "27")
+    public void corpusFuzzMessage(@Param(name = "url", description = "Forward Request URL") String url,
+                                  @Param(name = "iterations", description = "Number of executions, 0 for an infinite loop") long iterations) throws UnsupportedEncodingException, IOException {
+        if (iterations < 0) {
+            ajpsocket.invalid("The number of executions must be 0 or greater");
+            return;
+        }
+        byte[] msgGet = complexGetMessage(url);
+        byte[] msgPost = complexPostMessage(url);
+        byte[] msgSHead = new SendHeadersMessage(404, "NOT FOUND", sliceHeaders()).getBytes();
+
+        CorpusFuzzer fuzzer = new CorpusFuzzer(ajpsocket);
+        fuzzer.addSeed(msgGet);
+        fuzzer.addSeed(msgPost);
+        fuzzer.addSeed(ArrayUtils.addAll(msgPost, msgSHead));
+        fuzzer.addSeed(new CPingMessage().getBytes());
+        fuzzer.run(iterations, "(27) corpusfuzz");
+    }
 
-            if (headers.contains(":")) {
-                //Convert headers string to java.util.List<Pair<java.lang.String,java.lang.String>>
-                String[] header = headers.split(",");
-                headersList = new LinkedList<>();
-                for (int i = 0; i < header.length; i++) {
-                    String[] nameValue = header[i].split(":");
-                    //nameValue[0].equalsIgnoreCase("FUZZ") ?
-                    headersList.add(Pair.make(Utils.replaceFuzz(nameValue[0], singleLine), Utils.replaceFuzz(nameValue[1], singleLine)));
+    /*
+     * Test Case id: 28
+     * Test Case name: structfuzz
+     * Description: Feedback-driven, structure-aware fuzzing: mutate the ForwardRequest fields (method, strings, headers, attributes, lengths) of the fuzzbit/fuzzslice messages
+     * Usage example: AJPFuzzer/192.168.80.131:8009> structfuzz "http://192.168.80.131:8009/path" 0
+     */
+    @Command(description = "Feedback-driven, structure-aware fuzzing: mutate the ForwardRequest fields of the fuzzbit and fuzzslice messages, keeping and favouring the mutants that produce new behaviors - the number of executions (0 = infinite loop) should be passed as the last argument", name = "structfuzz", abbrev = "28")
+    public void structFuzzMessage(@Param(name = "url", description = "Forward Request URL") String url,
+                                  @Param(name = "iterations", description = "Number of executions, 0 for an infinite loop") long iterations) throws UnsupportedEncodingException, IOException {
+        if (iterations < 0) {
+            ajpsocket.invalid("The number of executions must be 0 or greater");
+            return;
+        }
+        CorpusFuzzer fuzzer = new CorpusFuzzer(ajpsocket);
+        fuzzer.setStructured(1.0);
+        fuzzer.addSeed(complexGetMessage(url));
+        fuzzer.addSeed(complexPostMessage(url));
+        fuzzer.run(iterations, "(28) structfuzz");
+    }
+
+    /*
+     * Test Case id: 29
+     * Test Case name: sequence
+     * Description: Send a conversation of AJP13 messages on one connection, in one write or with a pause between messages, and read all the replies in one pass
+     * Usage example: AJPFuzzer/192.168.80.131:8009> sequence "http://192.168.80.131:8009/path" "post:20,body:AAAAAAAAAA,body:BBBBBBBBBB,get,cping" 0
+     */
+    @Command(description = "Send a conversation of AJP13 messages (comma-separated: get, post:<content length>, body:<data>, emptybody, cping, ping, shutdown) on one connection, in a single write or with a pause (ms) between messages, reading all the replies in one pass", name = "sequence", abbrev = "29")
+    public void sequenceMessage(@Param(name = "url", description = "Forward Request URL") String url,
+                                @Param(name = "messages", description = "Comma-separated messages, e.g. post:10,body:0123456789,get,cping") String messages,
+                                @Param(name = "gap", description = "Pause between messages in ms, 0 to send them in a single write") int gap) throws UnsupportedEncodingException, IOException {
+        AjpSequence sequence = new AjpSequence();
+        int replies = 0;
+        long bodyRemaining = 0;
+        for (String message : messages.split(",")) {
+            String[] parts = message.split(":", 2);
+            String argument = parts.length > 1 ? parts[1] : "";
+            try {
+                switch (parts[0]) {
+                    case "get":
+                        sequence.add("ForwardRequest GET", new ForwardRequestMessage(2, new URL(url), null, null).getBytes());
+                        replies++;
+                        break;
+                    case "post":
+                        //The first body chunk follows without being asked for, the reply comes once the body is complete
+                        bodyRemaining = Long.parseLong(argument);
+                        if (bodyRemaining < 0 || bodyRemaining > Integer.MAX_VALUE) {
+                            ajpsocket.invalid("The Content-Length in '" + message + "' must be between 0 and " + Integer.MAX_VALUE);
+                            return;
+                        }
+                        sequence.add("ForwardRequest POST " + bodyRemaining, ForwardRequestMessage.ForwardRequestMessagePostBuilder(new URL(url), (int) bodyRemaining).getBytes());
+                        if (bodyRemaining == 0) {
+                            replies++;
+                        }
+                        break;
+                    case "body":
+                    case "emptybody":
+                        byte[] data = argument.getBytes();
+                        sequence.add("Body " + data.length, new BodyMessage(data).getBytes());
+                        if (bodyRemaining > 0) {
+                            bodyRemaining = data.length == 0 ? 0 : Math.max(0, bodyRemaining - data.length);
+                            replies++; //GetBodyChunk, or the response to the request
+                        }
+                        break;
+                    case "cping":
+                        sequence.add("CPing", new CPingMessage().getBytes());
+                        replies++;
+                        break;
+                    case "ping":
+                        sequence.add("Ping", new PingMessage().getBytes());
+                        break;
+                    case "shutdown":
+                        sequence.add("Shutdown", new ShutdownMessage().getBytes());
+                        break;
+                    default:
+                        ajpsocket.invalid("Unknown message '" + message + "'");
+                        return;
                 }
+            } catch (NumberFormatException ex) {
+                ajpsocket.invalid("Invalid Content-Length in '" + message + "'");
+                return;
             }
+            sequence.gap(gap);
+        }
+        sequence.expectReplies(Math.max(1, replies));
+        Utils.sendSequence(ajpsocket, sequence, "(29) sequence");
+    }
 
-            List<Pair<String, String>> attributesList = null;
-            if (attributes.contains(":")) {
-                //Convert attributes string to java.util.List<Pair<java.lang.String,java.lang.String>>
-                String[] attribute = attributes.split(",");
-                attributesList = new LinkedList<>();
-                for (int i = 0; i < attribute.length; i++) {
-                    String[] nameValue = attribute[i].split(":");
-                    attributesList.add(Pair.make(Utils.replaceFuzz(nameValue[0], singleLine), Utils.replaceFuzz(nameValue[1], singleLine)));
+    /*
+     * Test Case id: 30
+     * Test Case name: bodystream
+     * Description: Send a POST ForwardRequest and stream a large body, generated on the fly, answering the GetBodyChunk requests of the container
+     * Usage example: AJPFuzzer/192.168.80.131:8009> bodystream "http://192.168.80.131:8009/upload" 1073741824 -1 "pattern:AAAA"
+     *                AJPFuzzer/192.168.80.131:8009> bodystream "http://192.168.80.131:8009/upload" 100 1048576 "file:/tmp/payload.bin"
+     */
+    @Command(description = "Send a POST ForwardRequest (type 2) and stream a body of any size as Body AJP13 packets of at most 8 KB, answering the GetBodyChunk requests - the Content-Length (-1 for none) and the body size (-1 for the Content-Length, or the file size) may differ", name = "bodystream", abbrev = "30")
+    public void bodyStreamMessage(@Param(name = "url", description = "Forward Request URL") String url,
+                                  @Param(name = "content length", description = "Content-Length header, -1 to omit it") long contentLength,
+                                  @Param(name = "body size", description = "Bytes actually sent, -1 for the Content-Length (or the file size)") long bodySize,
+                                  @Param(name = "source", description = "Body data: pattern:<text> (repeated) or file:<path> (read again from the start if shorter)") String source) throws UnsupportedEncodingException, IOException {
+        List<Pair<String, String>> headers = new LinkedList<>();
+        headers.add(Pair.make("Content-Type", "application/octet-stream"));
+        if (contentLength >= 0) {
+            headers.add(Pair.make("Content-Length", Long.toString(contentLength)));
+        }
+        BodyStream body;
+        try {
+            if (source.startsWith("pattern:")) {
+                long size = bodySize >= 0 ? bodySize : contentLength;
+                if (size < 0) {
+                    ajpsocket.invalid("The body size is required without Content-Length");
+                    return;
                 }
+                body = BodyStream.pattern(source.substring(8).getBytes(), size, BodyStream.MAX_CHUNK);
+            } else if (source.startsWith("file:")) {
+                body = BodyStream.file(Paths.get(source.substring(5)), bodySize, BodyStream.MAX_CHUNK);
+            } else {
+                ajpsocket.invalid("The body source should be pattern:<text> or file:<path>");
+                return;
             }
+        } catch (IllegalArgumentException | IOException ex) {
+            ajpsocket.invalid("Invalid body source (" + ex.getMessage() + ")");
+            return;
+        }
+        try (body) {
+            AjpSequence sequence = new AjpSequence()
+                    .add("ForwardRequest POST " + (contentLength >= 0 ? contentLength : "without Content-Length"), new ForwardRequestMessage(4, new URL(url), headers, null).getBytes())
+                    .stream(body);
+            Utils.sendSequence(ajpsocket, sequence, "(30) bodystream");
+        }
+    }
 
-            AjpMessage msg = new ForwardRequestMessage(
-                    method,
-                    protocol_replaced,
-                    requestUri_replaced,
-                    remoteAddr_replaced,
-                    remoteHost_replaced,
-                    serverName_replaced,
-                    serverPort,
-                    isSsl,
-                    headersList,
-                    attributesList);
-            Utils.sendAndReceiveVerbose(ajpsocket, msg.getBytes(), "(22) genericfuzz");
+    //Compile a ForwardRequest template, null (error printed) if it cannot be encoded
+    private FuzzTemplate compileTemplate(int method, String protocol, String requestUri, String remoteAddr, String remoteHost, String serverName,
+                                                int serverPort, boolean isSsl, String headers, String attributes, String... markers) {
+        try {
+            return FuzzTemplate.compile(method, protocol, requestUri, remoteAddr, remoteHost, serverName, serverPort, isSsl, headers, attributes, markers);
+        } catch (IllegalArgumentException ex) {
+            ajpsocket.invalid("Invalid message: " + ex.getMessage());
+            return null;
         }
+    }
 
+    /*
+     * Test Case id: none, replay repeats an iteration of fuzzbit (16) or fuzzslice (17)
+     * Test Case name: replay
+     * Description: Regenerate and send again one fuzzbit or fuzzslice iteration, from the seed and iteration recorded in the result log
+     * Usage example: AJPFuzzer/192.168.80.131:8009> replay fuzzbit "http://192.168.80.131:8009/path" -4171684926403751385 1200
+     */
+    @Command(description = "Regenerate and send again one iteration of fuzzbit or fuzzslice, from the seed and iteration recorded in the result log", name = "replay", abbrev = "rp")
+    public void replay(@Param(name = "test case", description = "fuzzbit (16) or fuzzslice (17)") String testCase,
+                       @Param(name = "url", description = "Forward Request URL used by the run") String url,
+                       @Param(name = "seed", description = "Seed of the run") long seed,
+                       @Param(name = "iteration", description = "Iteration to replay") long iteration) throws UnsupportedEncodingException, IOException {
+        if (iteration < 0) {
+            ajpsocket.invalid("The iteration must be 0 or greater");
+            return;
+        }
+        FuzzRandom random = new FuzzRandom(seed);
+        if (testCase.equals("fuzzbit") || testCase.equals("16")) {
+            byte[] msgGene = complexGetMessage(url);
+            for (long i = 0; i <= iteration; i++) {
+                random.reseed(i);
+                Utils.flipBit(msgGene, random);
+            }
+            Utils.sendAndReceive(ajpsocket, msgGene, "(16) fuzzbit - replay", iteration, random.describe(iteration), true);
+        } else if (testCase.equals("fuzzslice") || testCase.equals("17")) {
+            sendSlices(sliceMessages(complexPostMessage(url)), random, iteration);
+        } else {
+            ajpsocket.invalid("Replay is supported for fuzzbit (16) and fuzzslice (17) only");
+        }
     }
 }
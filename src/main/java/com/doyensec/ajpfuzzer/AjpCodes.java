@@ -0,0 +1,72 @@
+/*
+ * AJPFuzzer - AjpCodes.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * AJP13 ForwardRequest codes, see https://tomcat.apache.org/connectors-doc/ajp/ajpv13a.html
+ */
+public final class AjpCodes {
+
+    protected static final byte FORWARD_REQUEST = 2;
+    protected static final byte ATTRIBUTE_REQ_ATTRIBUTE = 0x0A;
+    protected static final byte ATTRIBUTE_SSL_KEY_SIZE = 0x0B;
+    protected static final byte REQUEST_TERMINATOR = (byte) 0xFF;
+
+    //Coded request header names (0xA0xx)
+    private static final String[] HEADERS = {
+        "accept", "accept-charset", "accept-encoding", "accept-language", "authorization", "connection", "content-type",
+        "content-length", "cookie", "cookie2", "host", "pragma", "referer", "user-agent"
+    };
+
+    //Coded attribute names (0x01 - 0x0D), req_attribute (0x0A) carries an arbitrary name
+    private static final String[] ATTRIBUTES = {
+        "context", "servlet_path", "remote_user", "auth_type", "query_string", "route", "ssl_cert", "ssl_cipher",
+        "ssl_session", "req_attribute", "ssl_key_size", "secret", "stored_method"
+    };
+
+    private static final Map<String, Integer> HEADER_CODES = new HashMap<>();
+    private static final Map<String, Integer> ATTRIBUTE_CODES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < HEADERS.length; i++) {
+            HEADER_CODES.put(HEADERS[i], 0xA001 + i);
+        }
+        for (int i = 0; i < ATTRIBUTES.length; i++) {
+            ATTRIBUTE_CODES.put(ATTRIBUTES[i], i + 1);
+        }
+        ATTRIBUTE_CODES.put("jvm_route", 0x06);
+    }
+
+    private AjpCodes() {
+    }
+
+    //Code of a request header name (case insensitive), -1 if it must be sent as a string
+    protected static int headerCode(String name) {
+        Integer code = HEADER_CODES.get(name.toLowerCase(Locale.ROOT));
+        return code == null ? -1 : code;
+    }
+
+    //Request header name of a code, null if unknown
+    protected static String headerName(int code) {
+        int index = code - 0xA001;
+        return index >= 0 && index < HEADERS.length ? HEADERS[index] : null;
+    }
+
+    //Code of an attribute name, -1 if it must be sent as req_attribute
+    protected static int attributeCode(String name) {
+        Integer code = ATTRIBUTE_CODES.get(name);
+        return code == null || code == ATTRIBUTE_REQ_ATTRIBUTE ? -1 : code;
+    }
+
+    //Attribute name of a code, null if unknown
+    protected static String attributeName(int code) {
+        return code >= 1 && code <= ATTRIBUTES.length ? ATTRIBUTES[code - 1] : null;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * AJPFuzzer - AjpConnection.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/*
+ * A standalone AJP13 connection, owning its own socket and streams.
+ * Used by the parallel engines, where each worker talks to the target independently.
+ */
+public class AjpConnection implements Closeable {
+
+    private final String host;
+    private final int port;
+    private Socket socket;
+    private DataOutputStream os;
+    private DataInputStream is;
+    private final int maxResponseSize;
+    //Managed by AjpConnectionPool: exchanges on this socket, and when it was returned to the pool
+    protected int uses;
+    protected long idleSince;
+    //Per-connection request rate, see RateLimiter
+    protected final RateLimiter.Bucket bucket = new RateLimiter.Bucket();
+
+    public AjpConnection(String host, int port, int maxResponseSize) {
+        this.host = host;
+        this.port = port;
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean isConnected() {
+        return socket != null && !socket.isClosed();
+    }
+
+    public void connect() throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), 2000);
+        socket.setSoTimeout(8000);
+        os = new DataOutputStream(socket.getOutputStream());
+        is = new DataInputStream(socket.getInputStream());
+        uses = 0;
+    }
+
+    //Streams of the open connection, for the legacy poll receive mode
+    protected DataOutputStream getOutputStream() {
+        return os;
+    }
+
+    protected DataInputStream getInputStream() {
+        return is;
+    }
+
+    public AjpResponse exchange(byte[] data, int receiveTimeout) throws IOException {
+        return exchange(ByteBuffer.wrap(data), receiveTimeout);
+    }
+
+    //Send data and read back whole AJP13 packets. The connection is (re)opened on demand and closed on error
+    public AjpResponse exchange(ByteBuffer data, int receiveTimeout) throws IOException {
+        if (!isConnected()) {
+            connect();
+        }
+        try {
+            os.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            os.flush();
+            AjpResponse response = Utils.receiveFramed(socket, is, receiveTimeout, maxResponseSize);
+            if (response.isClosed()) {
+                close();
+            }
+            return response;
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /*
+     * Send a conversation, one write per group of messages with the pauses in between, then read back
+     * the replies in one pass. If the container closes the connection before the last write, the replies
+     * already sent are still read. A streamed body is sent as the container asks for it, see streamBody.
+     */
+    public AjpResponse exchange(AjpSequence sequence, int receiveTimeout) throws IOException {
+        if (!isConnected()) {
+            connect();
+        }
+        try {
+            List<byte[]> writes = sequence.writes();
+            int[] gaps = sequence.writeGaps();
+            for (int i = 0; i < writes.size(); i++) {
+                if (i > 0) {
+                    Thread.sleep(gaps[i - 1]);
+                }
+                try {
+                    os.write(writes.get(i));
+                    os.flush();
+                } catch (IOException ex) {
+                    if (i == 0) {
+                        throw ex;
+                    }
+                    break; //Closed midway, see what was answered
+                }
+            }
+            AjpResponse response;
+            if (sequence.getBody() != null) {
+                response = streamBody(sequence.getBody(), receiveTimeout);
+            } else {
+                response = Utils.receiveFramed(socket, is, receiveTimeout, maxResponseSize, sequence.getExpectedReplies());
+            }
+            if (response.isClosed()) {
+                close();
+            }
+            return response;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IOException("Interrupted", ex);
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /*
+     * Send the first Body packet, then one for each GetBodyChunk, until the container ends the response,
+     * stops asking (receive deadline) or closes the connection. The reply holds every packet but the
+     * GetBodyChunk requests, up to the maximum response size.
+     */
+    private AjpResponse streamBody(BodyStream body, int receiveTimeout) throws IOException {
+        long start = System.nanoTime();
+        ReceiveBuffer received = ReceiveBuffer.acquire(maxResponseSize);
+        boolean complete = false;
+        boolean closed = false;
+        try {
+            ByteBuffer packet = body.nextPacket(BodyStream.MAX_CHUNK);
+            os.write(packet.array(), packet.position(), packet.remaining());
+            os.flush();
+            while (true) {
+                AjpResponse step = Utils.receiveFramed(socket, is, receiveTimeout, maxResponseSize, 1);
+                for (int i = 0; i < step.getPacketCount(); i++) {
+                    ByteBuffer reply = step.getPacket(i);
+                    if (step.getPacketType(i) != Utils.GET_BODY_CHUNK && received.beginPacket(reply.remaining())) {
+                        reply.get(reply.position(), received.array(), received.size(), reply.remaining());
+                        received.advance(reply.remaining());
+                    }
+                }
+                int last = step.getPacketCount() - 1;
+                if (!step.isComplete() || step.getPacketType(last) != Utils.GET_BODY_CHUNK) {
+                    complete = step.isComplete();
+                    closed = step.isClosed();
+                    break;
+                }
+                //GetBodyChunk: type, requested length
+                ByteBuffer request = step.getPacket(last);
+                int requested = request.remaining() >= 7
+                        ? ((request.get(request.position() + 5) & 0xFF) << 8) | (request.get(request.position() + 6) & 0xFF) : BodyStream.MAX_CHUNK;
+                body.requested();
+                packet = body.nextPacket(requested);
+                try {
+                    os.write(packet.array(), packet.position(), packet.remaining());
+                    os.flush();
+                } catch (IOException ex) {
+                    closed = true; //The container gave up on the body
+                    break;
+                }
+            }
+            return received.toResponse(complete, closed, System.nanoTime() - start);
+        } finally {
+            received.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                //ignore, the socket is gone anyway
+            }
+            socket = null;
+        }
+    }
+}
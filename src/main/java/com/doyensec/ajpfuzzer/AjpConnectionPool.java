@@ -0,0 +1,156 @@
+/*
+ * AJPFuzzer - AjpConnectionPool.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import com.doyensec.ajp13.CPingMessage;
+
+/*
+ * Keep-alive pool of AJP13 connections to the target, shared by the shell and the parallel test cases.
+ * Like mod_jk and mod_proxy_ajp, consecutive messages reuse persistent connections, so parser state
+ * carried over from one message to the next is exercised too. The policy decides when a connection
+ * is retired after an exchange:
+ *
+ * - fresh: after every exchange (one connection per test)
+ * - reuse: after N exchanges
+ * - untilerror: when the target closes it or an I/O error occurs (default)
+ *
+ * A connection whose last exchange is incomplete (deadline expired, partial packet) is always retired:
+ * a late reply would be read as the response to the next test, and the target may be waiting for a
+ * body it would take the next message from.
+ *
+ * Idle connections are taken most recently used first. With health checks on, a connection idle for
+ * a while is verified with a CPing before reuse.
+ */
+public class AjpConnectionPool implements Closeable {
+
+    public enum Policy {
+        FRESH, REUSE, UNTIL_ERROR
+    }
+
+    private static final long IDLE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int HEALTH_CHECK_TIMEOUT = 2000;
+    private static final byte[] CPING = new CPingMessage().getBytes();
+
+    private final AJPFuzzer ajpsocket;
+    private final ConcurrentLinkedDeque<AjpConnection> idle = new ConcurrentLinkedDeque<>();
+    private volatile Policy policy = Policy.UNTIL_ERROR;
+    private volatile int maxUses = 100;
+    private volatile boolean healthCheck = true;
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder retired = new LongAdder();
+    private final LongAdder healthFailures = new LongAdder();
+
+    //Target and response size limit are taken from the shell connection when a connection is opened
+    public AjpConnectionPool(AJPFuzzer ajpsocket) {
+        this.ajpsocket = ajpsocket;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    //maxUses only applies to the REUSE policy
+    public void setPolicy(Policy policy, int maxUses) {
+        this.policy = policy;
+        this.maxUses = maxUses;
+    }
+
+    public int getMaxUses() {
+        return maxUses;
+    }
+
+    public boolean isHealthCheck() {
+        return healthCheck;
+    }
+
+    public void setHealthCheck(boolean healthCheck) {
+        this.healthCheck = healthCheck;
+    }
+
+    //An idle connection, or a new one if none is available (or healthy)
+    public AjpConnection acquire() throws IOException {
+        AjpConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            if (!connection.isConnected()) {
+                continue;
+            }
+            if (!healthCheck || System.nanoTime() - connection.idleSince < IDLE_CHECK_NANOS || healthy(connection)) {
+                reused.increment();
+                return connection;
+            }
+            healthFailures.increment();
+            retire(connection);
+        }
+        connection = new AjpConnection(ajpsocket.getHost(), ajpsocket.getPort(), ajpsocket.getMaxResponseSize());
+        connection.connect();
+        opened.increment();
+        return connection;
+    }
+
+    //Return a connection without exchange (e.g. opened to check the target is reachable)
+    public void release(AjpConnection connection) {
+        connection.idleSince = System.nanoTime();
+        idle.addFirst(connection);
+    }
+
+    //Return a connection after an exchange, response is null on I/O error. Retire it if incomplete, or if the policy says so
+    public void release(AjpConnection connection, AjpResponse response) {
+        connection.uses++;
+        if (response == null || !response.isComplete() || response.isClosed() || !connection.isConnected()
+                || policy == Policy.FRESH || (policy == Policy.REUSE && connection.uses >= maxUses)) {
+            retire(connection);
+            return;
+        }
+        release(connection);
+    }
+
+    //Close all idle connections. Connections in use are closed when released
+    @Override
+    public void close() {
+        AjpConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            retire(connection);
+        }
+    }
+
+    public void printStats() {
+        System.out.println("[*] Connection policy: " + describe() + ", health checks " + (healthCheck ? "on" : "off"));
+        System.out.println("[*] Opened: " + opened.sum() + ", reused: " + reused.sum() + ", retired: " + retired.sum()
+                + ", failed health checks: " + healthFailures.sum() + ", idle: " + idle.size() + "\n");
+    }
+
+    public String describe() {
+        switch (policy) {
+            case FRESH:
+                return "fresh connection per test";
+            case REUSE:
+                return "reuse " + maxUses + " times";
+            default:
+                return "reuse until error";
+        }
+    }
+
+    //CPing the connection: healthy if the first packet back is a CPong
+    private boolean healthy(AjpConnection connection) {
+        try {
+            AjpResponse response = connection.exchange(CPING, HEALTH_CHECK_TIMEOUT);
+            return response.getPacketCount() == 1 && response.getPacketType(0) == Utils.CPONG_REPLY;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private void retire(AjpConnection connection) {
+        connection.close();
+        retired.increment();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * AJPFuzzer - AjpPacketSplitter.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Streaming splitter for AJP13 response packets ('AB' + 2 bytes length + payload).
+ * Received bytes are appended to one reusable buffer and packets are located by their
+ * length header, in place. Each packet is handed out through a single reused
+ * view positioned on the packet bytes: no copies, no boxing and no per-packet arrays.
+ * The view is only valid during the callback.
+ */
+public class AjpPacketSplitter {
+
+    //AJP13 packets are at most 4 bytes of header + 65535 bytes of payload
+    protected static final int MAX_PACKET_SIZE = 4 + 0xFFFF;
+
+    public interface Handler {
+
+        void onPacket(ByteBuffer packet) throws IOException;
+    }
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer view;
+
+    public AjpPacketSplitter(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.view = buffer.duplicate();
+    }
+
+    //The buffer to fill with received bytes, in write mode (position = end of the received data)
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public void reset() {
+        buffer.clear();
+    }
+
+    //Hand out every complete packet in the buffer and keep any incomplete one for the next call
+    public void split(Handler handler) throws IOException {
+        buffer.flip();
+        while (buffer.remaining() >= 4) {
+            int pos = buffer.position();
+            int size;
+            if (buffer.get(pos) == 'A' && buffer.get(pos + 1) == 'B') {
+                size = 4 + (((buffer.get(pos + 2) & 0xFF) << 8) | (buffer.get(pos + 3) & 0xFF));
+                if (buffer.remaining() < size) {
+                    break;
+                }
+            } else {
+                //Not an AJP13 response packet, hand out whatever was received
+                size = buffer.remaining();
+            }
+            buffer.position(pos + size);
+            handler.onPacket(slice(pos, size));
+        }
+        buffer.compact();
+    }
+
+    //Hand out the leftover bytes (incomplete or short packet), if any
+    public void drain(Handler handler) throws IOException {
+        if (buffer.position() > 0) {
+            handler.onPacket(slice(0, buffer.position()));
+            buffer.clear();
+        }
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        view.limit(offset + length);
+        view.position(offset);
+        return view;
+    }
+}
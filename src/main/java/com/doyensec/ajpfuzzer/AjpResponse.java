@@ -0,0 +1,129 @@
+/*
+ * AJPFuzzer - AjpResponse.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * All the packets received for one request, plus how the exchange ended:
+ * complete (EndResponse, GetBodyChunk or CPong received), truncated (size limit reached),
+ * closed (by the remote AJP13 service) or none of them (receive deadline expired).
+ */
+public class AjpResponse {
+
+    private final byte[] data;
+    private final int[] offsets;
+    private final boolean complete;
+    private final boolean truncated;
+    private final boolean closed;
+    private final long elapsedNanos;
+
+    public AjpResponse(byte[] data, int[] offsets, boolean complete, boolean truncated, boolean closed, long elapsedNanos) {
+        this.data = data;
+        this.offsets = offsets;
+        this.complete = complete;
+        this.truncated = truncated;
+        this.closed = closed;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    //All received bytes
+    public byte[] getBytes() {
+        return data;
+    }
+
+    public int getPacketCount() {
+        return offsets.length;
+    }
+
+    //View on a single packet, positioned on its first byte
+    public ByteBuffer getPacket(int index) {
+        int end = index + 1 < offsets.length ? offsets[index + 1] : data.length;
+        return ByteBuffer.wrap(data, offsets[index], end - offsets[index]);
+    }
+
+    public byte[] getPacketBytes(int index) {
+        ByteBuffer packet = getPacket(index);
+        return Arrays.copyOfRange(data, packet.position(), packet.limit());
+    }
+
+    //AJP13 message type of a packet, -1 if it is not an AJP13 response packet
+    public int getPacketType(int index) {
+        ByteBuffer packet = getPacket(index);
+        int pos = packet.position();
+        if (packet.remaining() < 5 || data[pos] != 'A' || data[pos + 1] != 'B') {
+            return -1;
+        }
+        return data[pos + 4] & 0xFF;
+    }
+
+    //HTTP status code of the first SendHeaders packet, -1 if none
+    public int getStatusCode() {
+        for (int i = 0; i < offsets.length; i++) {
+            ByteBuffer packet = getPacket(i);
+            if (getPacketType(i) == Utils.SEND_HEADERS && packet.remaining() >= 7) {
+                return ((data[packet.position() + 5] & 0xFF) << 8) | (data[packet.position() + 6] & 0xFF);
+            }
+        }
+        return -1;
+    }
+
+    //Body assembled from all SendBodyChunk packets (type, chunk length, chunk, 0x00)
+    public byte[] getBody() {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int i = 0; i < offsets.length; i++) {
+            ByteBuffer packet = getPacket(i);
+            if (getPacketType(i) == Utils.SEND_BODY_CHUNK && packet.remaining() >= 7) {
+                int pos = packet.position();
+                int length = ((data[pos + 5] & 0xFF) << 8) | (data[pos + 6] & 0xFF);
+                body.write(data, pos + 7, Math.min(length, packet.remaining() - 7));
+            }
+        }
+        return body.toByteArray();
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    }
+
+    //One-line summary (e.g. "SendHeaders 200, SendBodyChunk, EndResponse")
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < offsets.length; i++) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(Utils.describePacket(getPacket(i)));
+        }
+        if (truncated) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append("truncated");
+        }
+        if (closed) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append("connection closed");
+        }
+        return sb.length() == 0 ? "no reply" : sb.toString();
+    }
+}
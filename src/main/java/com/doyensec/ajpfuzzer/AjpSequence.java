@@ -0,0 +1,141 @@
+/*
+ * AJPFuzzer - AjpSequence.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A multi-message AJP13 conversation (e.g. ForwardRequest, Body chunks, CPing) sent on one connection.
+ * Consecutive messages go out in a single write, so the container sees them pipelined, possibly within
+ * one TCP segment. A gap splits the conversation: the next messages are written after a pause.
+ *
+ * The replies are collected in one pass once everything is written, stopping after the expected number
+ * of exchanges is closed (EndResponse, GetBodyChunk or CPong), by default one per message.
+ *
+ * Example: new AjpSequence().add("ForwardRequest", request).gap(100).add("CPing", cping).expectReplies(2)
+ */
+public class AjpSequence {
+
+    private final List<String> labels = new ArrayList<>();
+    private final List<byte[]> messages = new ArrayList<>();
+    private final List<Integer> gaps = new ArrayList<>();
+    private int pendingGap;
+    private int expectedReplies = -1;
+    private BodyStream body;
+
+    public AjpSequence add(String label, byte[] message) {
+        labels.add(label);
+        messages.add(message);
+        gaps.add(messages.size() == 1 ? 0 : pendingGap);
+        pendingGap = 0;
+        return this;
+    }
+
+    //Pause (ms) before writing the next message
+    public AjpSequence gap(int millis) {
+        pendingGap = Math.max(0, millis);
+        return this;
+    }
+
+    public AjpSequence expectReplies(int replies) {
+        expectedReplies = replies;
+        return this;
+    }
+
+    /*
+     * End the conversation with a streamed body: its first Body packet follows the messages, the others
+     * answer the GetBodyChunk requests until the container ends the response (see AjpConnection.exchange)
+     */
+    public AjpSequence stream(BodyStream body) {
+        this.body = body;
+        return this;
+    }
+
+    public BodyStream getBody() {
+        return body;
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    public int getExpectedReplies() {
+        return expectedReplies >= 0 ? expectedReplies : messages.size();
+    }
+
+    //All the messages, as the container receives them
+    public byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] message : messages) {
+            out.writeBytes(message);
+        }
+        return out.toByteArray();
+    }
+
+    //Messages grouped by write: a new write starts at every gap
+    protected List<byte[]> writes() {
+        List<byte[]> writes = new ArrayList<>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0 && gaps.get(i) > 0) {
+                writes.add(out.toByteArray());
+                out.reset();
+            }
+            out.writeBytes(messages.get(i));
+        }
+        writes.add(out.toByteArray());
+        return writes;
+    }
+
+    //Pause before each write
+    protected int[] writeGaps() {
+        return gaps.stream().skip(1).filter(g -> g > 0).mapToInt(Integer::intValue).toArray();
+    }
+
+    //e.g. "ForwardRequest + Body, 100 ms, CPing"
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) {
+                sb.append(gaps.get(i) > 0 ? ", " + gaps.get(i) + " ms, " : " + ");
+            }
+            sb.append(labels.get(i));
+        }
+        if (body != null) {
+            sb.append(" + streamed Body ").append(body.getLength());
+        }
+        return sb.toString();
+    }
+
+    //Summary of the response split by exchange (e.g. "1: SendHeaders 200, EndResponse | 2: CPong")
+    public static String describeReplies(AjpResponse response) {
+        StringBuilder sb = new StringBuilder();
+        int reply = 1;
+        boolean open = false;
+        for (int i = 0; i < response.getPacketCount(); i++) {
+            if (!open) {
+                sb.append(reply == 1 ? "" : " | ").append(reply).append(": ");
+                open = true;
+            } else {
+                sb.append(", ");
+            }
+            sb.append(Utils.describePacket(response.getPacket(i)));
+            if (Utils.isLastPacket(response.getPacket(i))) {
+                reply++;
+                open = false;
+            }
+        }
+        if (response.isTruncated()) {
+            sb.append(sb.length() > 0 ? ", " : "").append("truncated");
+        }
+        if (response.isClosed()) {
+            sb.append(sb.length() > 0 ? ", " : "").append("connection closed");
+        }
+        return sb.length() == 0 ? "no reply" : sb.toString();
+    }
+}
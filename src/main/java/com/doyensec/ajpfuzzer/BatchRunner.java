@@ -0,0 +1,214 @@
+/*
+ * AJPFuzzer - BatchRunner.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import asg.cliche.Command;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Headless (non-interactive) mode. Commands are the same as in the shell, and are resolved by
+ * name or abbreviation (test case id) on AJPTestCases, then on AJPFuzzer:
+ *
+ *   java -jar ajpfuzzer.jar run <host> <port> <test case> [args...]
+ *   java -jar ajpfuzzer.jar campaign <file> [<host> <port>]
+ *
+ * A campaign file holds one command per line ('#' starts a comment), including 'connect <host> <port>',
+ * which must come before any test case. The run stops at the first failing command.
+ * Exit status: 0 success, 1 failure, 2 usage error (including invalid test case arguments).
+ */
+public class BatchRunner {
+
+    protected static final int EXIT_OK = 0;
+    protected static final int EXIT_FAILURE = 1;
+    protected static final int EXIT_USAGE = 2;
+
+    private final AJPFuzzer ajpsocket;
+    private final AJPTestCases testCases;
+
+    public BatchRunner(AJPFuzzer ajpsocket) {
+        this.ajpsocket = ajpsocket;
+        this.testCases = new AJPTestCases(ajpsocket);
+    }
+
+    public int run(String[] args) {
+        if (args[0].equals("run") && args.length >= 4) {
+            if (connect(args[1], args[2]) != EXIT_OK) {
+                return EXIT_FAILURE;
+            }
+            return execute(Arrays.asList(args).subList(3, args.length));
+        } else if (args[0].equals("campaign") && (args.length == 2 || args.length == 4)) {
+            if (args.length == 4 && connect(args[2], args[3]) != EXIT_OK) {
+                return EXIT_FAILURE;
+            }
+            return campaign(args[1]);
+        }
+        usage();
+        return EXIT_USAGE;
+    }
+
+    private int campaign(String file) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(file));
+        } catch (IOException ex) {
+            System.out.println("[!] Cannot read campaign file '" + file + "'\n");
+            return EXIT_FAILURE;
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            List<String> tokens = tokenize(line);
+            if (tokens == null) {
+                System.out.println("[!] Unterminated quote at line " + (i + 1) + "\n");
+                return EXIT_FAILURE;
+            }
+            int status;
+            if (tokens.get(0).equals("connect") || tokens.get(0).equals("cn")) {
+                status = tokens.size() == 3 ? connect(tokens.get(1), tokens.get(2)) : EXIT_USAGE;
+            } else {
+                status = execute(tokens);
+            }
+            if (status != EXIT_OK) {
+                System.out.println("[!] Campaign stopped at line " + (i + 1) + "\n");
+                return status;
+            }
+        }
+        return EXIT_OK;
+    }
+
+    private int connect(String host, String port) {
+        try {
+            ajpsocket.open(host, Integer.parseInt(port));
+            return EXIT_OK;
+        } catch (NumberFormatException ex) {
+            System.out.println("[!] Invalid port '" + port + "'\n");
+            return EXIT_USAGE;
+        } catch (IOException ex) {
+            System.out.println("[!] Connection error\n");
+            return EXIT_FAILURE;
+        }
+    }
+
+    /*
+     * Execute a command: name or abbreviation, followed by its arguments. Invalid arguments and
+     * errors reported by the command (see AJPFuzzer.invalid and failed) give a non-zero status.
+     */
+    protected int execute(List<String> tokens) {
+        String name = tokens.get(0);
+        List<String> args = tokens.subList(1, tokens.size());
+        //Settings forwarded into the subshell by AJPTestCases run on the socket, connected or not
+        for (Object target : new Object[]{ajpsocket, testCases}) {
+            for (Method method : target.getClass().getMethods()) {
+                Command command = method.getAnnotation(Command.class);
+                if (command == null || method.getParameterCount() != args.size()
+                        || !(command.name().equals(name) || command.abbrev().equals(name))
+                        || command.name().equals("quit") || command.name().equals("connect")) {
+                    continue;
+                }
+                if (target == testCases && !ajpsocket.isConnected()) {
+                    System.out.println("[!] '" + name + "' needs a connection: use 'connect <host> <port>' first\n");
+                    return EXIT_USAGE;
+                }
+                Object[] values;
+                try {
+                    values = convert(method.getParameterTypes(), args);
+                } catch (IllegalArgumentException ex) {
+                    System.out.println("[!] Invalid argument for '" + name + "': " + ex.getMessage() + "\n");
+                    return EXIT_USAGE;
+                }
+                try {
+                    ajpsocket.takeCommandStatus();
+                    method.invoke(target, values);
+                    return ajpsocket.takeCommandStatus();
+                } catch (InvocationTargetException ex) {
+                    System.out.println("[!] '" + name + "' failed: " + ex.getCause() + "\n");
+                    return EXIT_FAILURE;
+                } catch (IllegalAccessException ex) {
+                    System.out.println("[!] '" + name + "' cannot be invoked\n");
+                    return EXIT_FAILURE;
+                }
+            }
+        }
+        System.out.println("[!] Unknown command '" + name + "' with " + args.size() + " arguments\n");
+        return EXIT_USAGE;
+    }
+
+    private static Object[] convert(Class<?>[] types, List<String> args) {
+        Object[] values = new Object[types.length];
+        for (int i = 0; i < types.length; i++) {
+            String arg = args.get(i);
+            if (types[i] == int.class) {
+                values[i] = Integer.parseInt(arg);
+            } else if (types[i] == long.class) {
+                values[i] = Long.parseLong(arg);
+            } else if (types[i] == double.class) {
+                values[i] = Double.parseDouble(arg);
+            } else if (types[i] == boolean.class) {
+                values[i] = parseBoolean(arg);
+            } else {
+                values[i] = arg;
+            }
+        }
+        return values;
+    }
+
+    //Only true or false: Boolean.parseBoolean would turn any typo into false
+    private static boolean parseBoolean(String arg) {
+        if (arg.equalsIgnoreCase("true")) {
+            return true;
+        } else if (arg.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new IllegalArgumentException("For input string: \"" + arg + "\", expected true or false");
+    }
+
+    //Split a command line on spaces, keeping "double quoted" arguments (possibly empty) together. Null if a quote is not closed
+    protected static List<String> tokenize(String line) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean quoted = false;
+        boolean inToken = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                inToken = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (inToken) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                    inToken = false;
+                }
+            } else {
+                token.append(c);
+                inToken = true;
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        if (inToken) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    private static void usage() {
+        System.out.println("Usage:");
+        System.out.println("  java -jar ajpfuzzer.jar                                             (interactive shell)");
+        System.out.println("  java -jar ajpfuzzer.jar run <host> <port> <test case> [args...]     (run a single test case)");
+        System.out.println("  java -jar ajpfuzzer.jar campaign <file> [<host> <port>]             (run a campaign file)\n");
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * AJPFuzzer - BehaviorTable.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Distinct target behaviors (response fingerprints) seen so far, each with the request that first
+ * triggered it and an occurrence counter. Safe for concurrent use by fuzzing workers.
+ */
+public class BehaviorTable {
+
+    private static class Behavior {
+
+        private final String testCase;
+        private final long index;
+        private final Object payload;
+        private final LongAdder count = new LongAdder();
+
+        private Behavior(String testCase, long index, Object payload) {
+            this.testCase = testCase;
+            this.index = index;
+            this.payload = payload;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Behavior> behaviors = new ConcurrentHashMap<>();
+
+    //Count one occurrence of the fingerprint. True the first time it is seen
+    public boolean record(String fingerprint, String testCase, long index, Object payload) {
+        Behavior behavior = behaviors.get(fingerprint);
+        boolean novel = false;
+        if (behavior == null) {
+            Behavior first = new Behavior(testCase, index, payload);
+            behavior = behaviors.putIfAbsent(fingerprint, first);
+            if (behavior == null) {
+                behavior = first;
+                novel = true;
+            }
+        }
+        behavior.count.increment();
+        return novel;
+    }
+
+    public int size() {
+        return behaviors.size();
+    }
+
+    public void reset() {
+        behaviors.clear();
+    }
+
+    //Print all behaviors, rarest first
+    public void print() {
+        List<String> fingerprints = new ArrayList<>(behaviors.keySet());
+        fingerprints.sort(Comparator.comparingLong((String f) -> behaviors.get(f).count.sum()).thenComparing(f -> f));
+        System.out.println("[*] " + fingerprints.size() + " distinct behaviors");
+        for (String fingerprint : fingerprints) {
+            Behavior behavior = behaviors.get(fingerprint);
+            System.out.println("[*] " + behavior.count.sum() + "x " + fingerprint);
+            System.out.println("      first: " + behavior.testCase + (behavior.index >= 0 ? " #" + behavior.index : "")
+                    + (behavior.payload != null ? " '" + behavior.payload + "'" : ""));
+        }
+        System.out.println();
+    }
+}
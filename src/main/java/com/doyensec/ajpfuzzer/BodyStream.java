@@ -0,0 +1,148 @@
+/*
+ * AJPFuzzer - BodyStream.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Request body of arbitrary size, generated on the fly and sent as Body packets of at most
+ * MAX_CHUNK bytes of data, as the container asks for them with GetBodyChunk (see AjpSequence.stream).
+ * Only one chunk is held in memory: the data repeats a pattern, or is read from a file (from the start
+ * again when the body is longer than the file).
+ *
+ * The body length is independent of the Content-Length sent in the ForwardRequest, to test the
+ * handling of bodies shorter or longer than announced. Once the body is over, the container gets
+ * empty Body packets (end of the body) whatever it asks for.
+ */
+public class BodyStream implements Closeable {
+
+    //Largest Body data in an 8 KB AJP13 packet: 8192 - 4 bytes header - 2 bytes data length
+    public static final int MAX_CHUNK = 8186;
+
+    private final byte[] pattern;
+    private final FileChannel file;
+    private final String source;
+    private final long length;
+    private final int maxChunk;
+    private final byte[] packet;
+    private long position;
+
+    //Counters for the summary
+    private long chunks;
+    private long requests;
+
+    private BodyStream(byte[] pattern, FileChannel file, String source, long length, int maxChunk) {
+        this.pattern = pattern;
+        this.file = file;
+        this.source = source;
+        this.length = length;
+        this.maxChunk = Math.max(1, Math.min(maxChunk, MAX_CHUNK));
+        this.packet = new byte[6 + this.maxChunk];
+    }
+
+    //Body of length bytes repeating the pattern
+    public static BodyStream pattern(byte[] pattern, long length, int maxChunk) {
+        if (pattern.length == 0) {
+            throw new IllegalArgumentException("Empty pattern");
+        }
+        return new BodyStream(pattern, null, "pattern '" + new String(pattern) + "'", length, maxChunk);
+    }
+
+    //Body of length bytes read from the file, -1 for the size of the file
+    public static BodyStream file(Path path, long length, int maxChunk) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        if (channel.size() == 0) {
+            channel.close();
+            throw new IOException("Empty file " + path);
+        }
+        return new BodyStream(null, channel, "file " + path, length < 0 ? channel.size() : length, maxChunk);
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getSent() {
+        return position;
+    }
+
+    public boolean isComplete() {
+        return position >= length;
+    }
+
+    /*
+     * Next Body packet (0x12 0x34, length, data length, data) with up to requested bytes of data,
+     * an empty Body packet once the body is over. The array is reused by the next call.
+     * A request for 0 bytes (or less) gets a full chunk: only the end of the body sends an empty packet.
+     */
+    protected ByteBuffer nextPacket(int requested) throws IOException {
+        if (requested <= 0) {
+            requested = MAX_CHUNK;
+        }
+        int size = (int) Math.min(Math.min(requested, maxChunk), length - position);
+        size = Math.max(0, size);
+        if (size > 0) {
+            fill(6, size);
+            position += size;
+            packet[2] = (byte) ((size + 2) >> 8);
+            packet[3] = (byte) (size + 2);
+            packet[4] = (byte) (size >> 8);
+            packet[5] = (byte) size;
+        } else {
+            packet[2] = 0;
+            packet[3] = 0;
+        }
+        packet[0] = 0x12;
+        packet[1] = 0x34;
+        chunks++;
+        return ByteBuffer.wrap(packet, 0, size > 0 ? size + 6 : 4);
+    }
+
+    //Account for a GetBodyChunk from the container
+    protected void requested() {
+        requests++;
+    }
+
+    //e.g. "10485760 of 10485760 bytes from pattern 'A' in 1282 Body packets, 1281 GetBodyChunk"
+    public String describe() {
+        return position + " of " + length + " bytes from " + source + " in " + chunks + " Body packets, " + requests + " GetBodyChunk";
+    }
+
+    private void fill(int offset, int size) throws IOException {
+        if (file == null) {
+            int p = (int) (position % pattern.length);
+            for (int i = 0; i < size; i++) {
+                packet[offset + i] = pattern[p];
+                if (++p == pattern.length) {
+                    p = 0;
+                }
+            }
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(packet, offset, size);
+        long filePosition = position % file.size();
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, filePosition);
+            if (read <= 0) {
+                filePosition = 0; //Wrap around
+            } else {
+                filePosition += read;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * AJPFuzzer - CPingBenchmark.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import com.doyensec.ajp13.CPingMessage;
+
+/*
+ * Measure the raw AJP13 capacity of the target: pipeline up to 'depth' CPing messages on
+ * each of 'connections' non-blocking connections, until 'count' CPongs are received per
+ * connection. Report CPong round-trip latency percentiles and sustained messages per second.
+ * Latencies go to a fixed-size LatencyHistogram: memory does not grow with the number of CPings.
+ */
+public class CPingBenchmark implements NioTransport.Listener {
+
+    //Per-connection state: send timestamps of the CPings in flight (FIFO ring)
+    private static class Pipeline {
+
+        private final long[] sentAt;
+        private int head;
+        private int inFlight;
+        private int sent;
+
+        private Pipeline(int depth) {
+            this.sentAt = new long[depth];
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int depth;
+    private final int count;
+    private final int receiveTimeout;
+    private final byte[] cping = new CPingMessage().getBytes();
+    private NioTransport transport;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private long expected;
+    private long received;
+    private long maxLatency;
+    private int closed;
+
+    public CPingBenchmark(String host, int port, int connections, int depth, int count, int receiveTimeout) {
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.depth = depth;
+        this.count = count;
+        this.receiveTimeout = receiveTimeout;
+    }
+
+    public void run() throws IOException {
+        expected = (long) connections * count;
+        System.out.println("[*] Benchmarking " + host + ":" + port + " with " + connections + " connections, " + depth + " pipelined CPings each, " + count + " CPings per connection");
+
+        long start = System.nanoTime();
+        long lastProgress = start;
+        long lastReceived = 0;
+        try (NioTransport nio = new NioTransport(this)) {
+            transport = nio;
+            for (int c = 0; c < connections; c++) {
+                NioTransport.Connection connection = transport.open(host, port);
+                Pipeline pipeline = new Pipeline(depth);
+                connection.setAttachment(pipeline);
+                fill(connection, pipeline);
+            }
+            while (received < expected && closed < connections) {
+                transport.poll(10);
+                long now = System.nanoTime();
+                if (received != lastReceived) {
+                    lastReceived = received;
+                    lastProgress = now;
+                } else if (TimeUnit.NANOSECONDS.toMillis(now - lastProgress) >= receiveTimeout) {
+                    System.out.println("[!] No CPong received for " + receiveTimeout + " ms, stopping");
+                    break;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (received == 0) {
+            System.out.println("[!] No CPong received\n");
+            return;
+        }
+        long[] counts = latencies.snapshot();
+        System.out.println("[*] CPongs received: " + received + "/" + expected + (closed > 0 ? " (" + closed + " connections closed by the target)" : ""));
+        System.out.println("[*] Throughput: " + (received * 1_000_000_000L / Math.max(1, elapsed)) + " msg/s");
+        long max = TimeUnit.NANOSECONDS.toMicros(maxLatency);
+        //Bucket upper bounds, no higher than the largest latency seen
+        System.out.println("[*] Latency p50: " + Math.min(max, LatencyHistogram.percentile(counts, 0.50)) + " us, p99: " + Math.min(max, LatencyHistogram.percentile(counts, 0.99))
+                + " us, p999: " + Math.min(max, LatencyHistogram.percentile(counts, 0.999)) + " us, max: " + max + " us\n");
+    }
+
+    @Override
+    public void onPacket(NioTransport.Connection connection, ByteBuffer packet) {
+        Pipeline pipeline = (Pipeline) connection.getAttachment();
+        if (pipeline.inFlight == 0 || packet.remaining() < 5 || packet.get(packet.position() + 4) != Utils.CPONG_REPLY) {
+            return;
+        }
+        long latency = System.nanoTime() - pipeline.sentAt[pipeline.head];
+        latencies.record(TimeUnit.NANOSECONDS.toMicros(latency));
+        maxLatency = Math.max(maxLatency, latency);
+        received++;
+        pipeline.head = (pipeline.head + 1) % depth;
+        pipeline.inFlight--;
+        fill(connection, pipeline);
+    }
+
+    @Override
+    public void onClosed(NioTransport.Connection connection, IOException cause) {
+        closed++;
+    }
+
+    //Keep 'depth' CPings in flight until 'count' have been sent on this connection
+    private void fill(NioTransport.Connection connection, Pipeline pipeline) {
+        while (pipeline.inFlight < depth && pipeline.sent < count) {
+            pipeline.sentAt[(pipeline.head + pipeline.inFlight) % depth] = System.nanoTime();
+            transport.send(connection, cping);
+            pipeline.inFlight++;
+            pipeline.sent++;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * AJPFuzzer - CorpusFuzzer.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Feedback-driven fuzzing. The corpus starts from a few seed messages; every mutant producing
+ * a response fingerprint never seen before (new status, message type, header set, body size,
+ * connection drop, latency bucket, ...) is kept in the corpus.
+ *
+ * Scheduling follows coverage-guided fuzzers: each round picks a corpus entry with probability
+ * proportional to its energy, then sends a batch of havoc mutants of it. Energy grows with the
+ * new behaviors an entry led to and decays with the number of times it was picked, so recent
+ * and productive inputs are explored first without starving the others.
+ *
+ * Entries that decode as a ForwardRequest can also be mutated field by field (see
+ * ForwardRequestMutator) instead of byte by byte, with the configured probability.
+ *
+ * Mutations are reproducible: the generator is restarted from (seed, execution index) for every
+ * mutant, and the result log records them with the executions that produced the parent and the
+ * splice input, so a finding can be rebuilt from the seeds without storing the payloads.
+ *
+ * With a corpus store, the stored inputs join the corpus after the seeds without being sent again,
+ * new findings are stored, and mutants identical to a stored input are skipped. Parents and splice
+ * inputs from the store are named by the start of their hash.
+ */
+public class CorpusFuzzer {
+
+    private static final int MUTANTS_PER_ROUND = 16;
+    private static final int UNREACHABLE = -1;
+    private static final int KNOWN = 0;
+    private static final int NOVEL = 1;
+    private static final long STATUS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    static class Entry {
+
+        private final byte[] input;
+        private final String id; //#<execution index>, or hash prefix for stored inputs
+        private final ForwardRequest request;
+        long picks;
+        int finds;
+
+        Entry(byte[] input, String id) {
+            this.input = input;
+            this.id = id;
+            this.request = ForwardRequest.decode(input);
+        }
+
+        double energy() {
+            return (1 + 4.0 * finds) / Math.sqrt(1 + picks);
+        }
+    }
+
+    private final AJPFuzzer ajpsocket;
+    private final int receiveTimeout;
+    private final ResultLog log;
+    private final BehaviorTable behaviors;
+    private final CrashMonitor monitor;
+    private final AjpConnectionPool connections;
+    private final RateLimiter limiter;
+    private final Metrics metrics;
+    private final CorpusStore store;
+    private final List<byte[]> seeds = new ArrayList<>();
+    private final List<Entry> corpus = new ArrayList<>();
+    private final FuzzRandom random;
+    private final FuzzRandom scheduler;
+    private final Mutator mutator;
+    private final ForwardRequestMutator structuredMutator;
+    private double structured = 0.5;
+    private long executions;
+
+    public CorpusFuzzer(AJPFuzzer ajpsocket) {
+        this.ajpsocket = ajpsocket;
+        this.receiveTimeout = ajpsocket.getReceiveTimeout();
+        this.log = ajpsocket.getResultLog();
+        this.behaviors = ajpsocket.getBehaviors();
+        this.monitor = new CrashMonitor(ajpsocket, ajpsocket.getHost(), ajpsocket.getPort());
+        this.connections = ajpsocket.getPool();
+        this.limiter = ajpsocket.getRateLimiter();
+        this.metrics = ajpsocket.getMetrics();
+        this.store = ajpsocket.getCorpusStore();
+        this.random = ajpsocket.newRandom();
+        //Parent selection uses its own stream, so mutants only depend on (seed, index)
+        this.scheduler = new FuzzRandom(~random.getSeed());
+        this.mutator = new Mutator(random);
+        this.structuredMutator = new ForwardRequestMutator(random);
+    }
+
+    public void addSeed(byte[] seed) {
+        seeds.add(seed);
+    }
+
+    //Probability of a structure-aware mutation for ForwardRequest entries (0 = havoc only)
+    public void setStructured(double structured) {
+        this.structured = structured;
+    }
+
+    //Run the seeds, then mutate the corpus for the given number of executions (0 = until interrupted)
+    public void run(long iterations, String testCase) {
+        long start = System.nanoTime();
+        long nextStatus = start + STATUS_INTERVAL_NANOS;
+        System.out.println("[*] Corpus fuzzing " + ajpsocket.getHost() + ":" + ajpsocket.getPort() + " from " + seeds.size() + " seeds" + (iterations > 0 ? ", " + iterations + " executions" : ""));
+
+        try {
+            for (byte[] seed : seeds) {
+                long index = executions;
+                if (execute(seed, testCase + " - seed", null) == UNREACHABLE) {
+                    return;
+                }
+                corpus.add(new Entry(seed, "#" + index));
+            }
+            if (store != null) {
+                resume();
+            }
+
+            while ((iterations == 0 || executions < iterations) && !Thread.currentThread().isInterrupted()) {
+                Entry parent = pick(corpus, scheduler);
+                parent.picks++;
+                for (int m = 0; m < MUTANTS_PER_ROUND && (iterations == 0 || executions < iterations); m++) {
+                    long index = executions;
+                    random.reseed(index);
+                    byte[] mutant;
+                    String replay = random.describe(index) + " parent=" + parent.id;
+                    if (parent.request != null && random.nextDouble() < structured) {
+                        mutant = structuredMutator.mutate(parent.request);
+                    } else {
+                        Entry other = corpus.get(random.nextInt(corpus.size()));
+                        mutant = mutator.havoc(parent.input, other.input);
+                        replay += " other=" + other.id;
+                    }
+                    if (store != null && store.contains(mutant)) {
+                        executions++; //Known input, not sent again
+                        continue;
+                    }
+                    int outcome = execute(mutant, testCase, replay);
+                    if (outcome == UNREACHABLE) {
+                        return;
+                    }
+                    if (outcome == NOVEL) {
+                        parent.finds++;
+                        corpus.add(new Entry(mutant, "#" + index));
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (now >= nextStatus) {
+                    status(now - start);
+                    nextStatus = now + STATUS_INTERVAL_NANOS;
+                }
+            }
+        } finally {
+            status(System.nanoTime() - start);
+        }
+    }
+
+    //Send one input: NOVEL if its response shows a new behavior, KNOWN otherwise, UNREACHABLE if the target cannot be reached anymore
+    private int execute(byte[] input, String testCase, String replay) {
+        AjpConnection connection;
+        try {
+            connection = connections.acquire();
+            if (connection.uses == 0) {
+                monitor.clear(); //new connection
+            }
+        } catch (IOException ex) {
+            System.out.println("[!] Cannot connect to " + ajpsocket.getHost() + ":" + ajpsocket.getPort() + " (" + ex.getMessage() + "), stopping\n");
+            monitor.crashed(testCase, CrashMonitor.UNREACHABLE);
+            return UNREACHABLE;
+        }
+
+        limiter.acquire(connection.bucket);
+        long index = executions++;
+        long sentAt = System.nanoTime();
+        AjpResponse response = null;
+        String result;
+        String fingerprint;
+        monitor.sent(input);
+        try {
+            response = connection.exchange(input, receiveTimeout);
+            result = response.toString();
+            fingerprint = ResponseFingerprint.of(response);
+            if (!response.isComplete()) {
+                //The target may still be waiting for the rest of the input: start the next one on a fresh connection
+                connection.close();
+            }
+        } catch (IOException ex) {
+            result = "connection error (" + ex.getMessage() + ")";
+            fingerprint = ResponseFingerprint.CONNECTION_ERROR;
+        }
+        limiter.record(response);
+        metrics.record(testCase, response);
+        connections.release(connection, response);
+        //After consecutive resets or timeouts: make sure the target is still alive
+        try {
+            monitor.check(testCase, response);
+        } catch (TargetDownException ex) {
+            System.out.println("[!] " + ex.getMessage() + ", stopping\n");
+            return UNREACHABLE;
+        }
+
+        if (!behaviors.record(fingerprint, testCase, index, replay)) {
+            return KNOWN;
+        }
+        System.out.println("[+] " + testCase + " #" + index + " -> " + result + " (new behavior, corpus: " + (corpus.size() + 1) + ")");
+        if (store != null) {
+            store.keep(input, testCase, replay, fingerprint);
+        }
+        if (log != null) {
+            log.log(testCase, index, replay, input, response == null ? null : response.getBytes(), result, fingerprint, System.nanoTime() - sentAt);
+        }
+        return NOVEL;
+    }
+
+    //Add the stored inputs to the corpus
+    private void resume() {
+        int loaded = 0;
+        for (CorpusStore.Input stored : store.inputs()) {
+            try {
+                corpus.add(new Entry(store.read(stored), stored.getHash().substring(0, 16)));
+                loaded++;
+            } catch (IOException ex) {
+                System.out.println("[!] Cannot read corpus input " + stored.getHash() + " (" + ex.getMessage() + ")");
+            }
+        }
+        System.out.println("[*] Resumed " + loaded + " inputs from " + store.getDirectory());
+    }
+
+    //Roulette wheel selection on energy
+    static Entry pick(List<Entry> corpus, FuzzRandom scheduler) {
+        double total = 0;
+        for (Entry entry : corpus) {
+            total += entry.energy();
+        }
+        double target = scheduler.nextDouble() * total;
+        for (Entry entry : corpus) {
+            target -= entry.energy();
+            if (target <= 0) {
+                return entry;
+            }
+        }
+        return corpus.get(corpus.size() - 1);
+    }
+
+    private void status(long elapsedNanos) {
+        long elapsed = Math.max(1, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        System.out.println("[*] " + executions + " executions, corpus: " + corpus.size() + " inputs, " + behaviors.size() + " distinct behaviors, "
+                + elapsed + " ms (" + (executions * 1000L / elapsed) + " exec/s)");
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * AJPFuzzer - CorpusStore.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * On-disk corpus of the inputs that produced a new behavior, content-addressed by SHA-256:
+ *
+ *   <dir>/inputs/<sha256>.bin  the input bytes
+ *   <dir>/index.jsonl          one line per input, appended when it is kept:
+ *   {"hash":"<sha256>","size":<n>,"time":<epoch ms>,"test":"...","payload":"...","fingerprint":"..."}
+ *
+ * The payload records how the input was made (wordlist line, or seed and iteration of a mutation).
+ * Only the index is read at startup. An input is stored once, whatever the number of test cases or
+ * machines finding it, so corpora are merged by copying the missing files and index lines. The
+ * minimisation pass keeps the smallest input of each behavior and rewrites the index.
+ */
+public class CorpusStore implements Closeable {
+
+    public static class Input {
+
+        private final String hash;
+        private final int size;
+        private final long time;
+        private final String testCase;
+        private final String payload;
+        private final String fingerprint;
+
+        private Input(String hash, int size, long time, String testCase, String payload, String fingerprint) {
+            this.hash = hash;
+            this.size = size;
+            this.time = time;
+            this.testCase = testCase;
+            this.payload = payload;
+            this.fingerprint = fingerprint;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public String getTestCase() {
+            return testCase;
+        }
+
+        public String getPayload() {
+            return payload;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+    }
+
+    private static final String INDEX = "index.jsonl";
+    private static final String INPUTS = "inputs";
+
+    private final Path directory;
+    private final Map<String, Input> inputs = new LinkedHashMap<>();
+    private BufferedWriter index;
+    private final StringBuilder line = new StringBuilder(256);
+
+    private CorpusStore(Path directory) {
+        this.directory = directory;
+    }
+
+    //Open a corpus directory, creating it if needed, and load its index
+    public static CorpusStore open(Path directory) throws IOException {
+        CorpusStore store = new CorpusStore(directory);
+        Files.createDirectories(directory.resolve(INPUTS));
+        load(directory.resolve(INDEX), store.inputs);
+        store.index = Files.newBufferedWriter(directory.resolve(INDEX), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return store;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public synchronized int size() {
+        return inputs.size();
+    }
+
+    public synchronized boolean contains(byte[] input) {
+        return inputs.containsKey(hash(input));
+    }
+
+    public synchronized List<Input> inputs() {
+        return new ArrayList<>(inputs.values());
+    }
+
+    public byte[] read(Input input) throws IOException {
+        return Files.readAllBytes(file(directory, input.hash));
+    }
+
+    //Keep an input (payload and fingerprint may be null). False if it is already stored
+    public synchronized boolean add(byte[] input, String testCase, Object payload, String fingerprint) throws IOException {
+        String hash = hash(input);
+        if (inputs.containsKey(hash)) {
+            return false;
+        }
+        Path file = file(directory, hash);
+        if (!Files.exists(file)) {
+            //Write then rename, a reader never sees a partial input
+            Path temporary = Files.createTempFile(file.getParent(), hash, ".tmp");
+            Files.write(temporary, input);
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Input entry = new Input(hash, input.length, System.currentTimeMillis(), testCase, payload == null ? null : String.valueOf(payload), fingerprint);
+        inputs.put(hash, entry);
+        append(entry);
+        index.flush();
+        return true;
+    }
+
+    //Same as add, for fuzzing loops: a write error is reported and the input skipped
+    public void keep(byte[] input, String testCase, Object payload, String fingerprint) {
+        try {
+            add(input, testCase, payload, fingerprint);
+        } catch (IOException ex) {
+            System.out.println("[!] Corpus write error (" + ex.getMessage() + ")");
+        }
+    }
+
+    //Copy the inputs of another corpus that are not stored yet. Return the number copied
+    public synchronized int merge(Path other) throws IOException {
+        Map<String, Input> theirs = new LinkedHashMap<>();
+        load(other.resolve(INDEX), theirs);
+        int copied = 0;
+        for (Input input : theirs.values()) {
+            if (inputs.containsKey(input.hash)) {
+                continue;
+            }
+            Path source = file(other, input.hash);
+            if (!Files.exists(source)) {
+                System.out.println("[!] Missing corpus input " + source);
+                continue;
+            }
+            try {
+                Files.copy(source, file(directory, input.hash));
+            } catch (FileAlreadyExistsException ex) {
+                //Same hash, same content
+            }
+            inputs.put(input.hash, input);
+            append(input);
+            copied++;
+        }
+        index.flush();
+        return copied;
+    }
+
+    /*
+     * Keep the smallest input of each behavior (the oldest one on ties) and inputs without
+     * fingerprint, delete the others and rewrite the index. Return the number of inputs removed.
+     */
+    public synchronized int minimize() throws IOException {
+        Map<String, Input> best = new HashMap<>();
+        Comparator<Input> smaller = Comparator.<Input>comparingInt(i -> i.size).thenComparingLong(i -> i.time);
+        for (Input input : inputs.values()) {
+            if (input.fingerprint != null) {
+                best.merge(input.fingerprint, input, (a, b) -> smaller.compare(a, b) <= 0 ? a : b);
+            }
+        }
+        List<Input> removed = new ArrayList<>();
+        inputs.values().removeIf(input -> {
+            boolean drop = input.fingerprint != null && best.get(input.fingerprint) != input;
+            if (drop) {
+                removed.add(input);
+            }
+            return drop;
+        });
+        if (removed.isEmpty()) {
+            return 0;
+        }
+
+        index.close();
+        Path temporary = directory.resolve(INDEX + ".tmp");
+        index = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8);
+        for (Input input : inputs.values()) {
+            append(input);
+        }
+        index.close();
+        Files.move(temporary, directory.resolve(INDEX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index = Files.newBufferedWriter(directory.resolve(INDEX), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        for (Input input : removed) {
+            Files.deleteIfExists(file(directory, input.hash));
+        }
+        return removed.size();
+    }
+
+    public synchronized void printStats() {
+        long bytes = 0;
+        Map<String, Integer> byTest = new HashMap<>();
+        for (Input input : inputs.values()) {
+            bytes += input.size;
+            byTest.merge(String.valueOf(input.testCase), 1, Integer::sum);
+        }
+        System.out.println("[*] Corpus " + directory + ": " + inputs.size() + " inputs, " + bytes + " bytes");
+        byTest.entrySet().stream().sorted(Map.Entry.comparingByKey())
+                .forEach(e -> System.out.println(String.format("%8d  %s", e.getValue(), e.getKey())));
+        System.out.println();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        index.close();
+    }
+
+    public static String hash(byte[] input) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(input));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); //Every JVM has SHA-256
+        }
+    }
+
+    private static Path file(Path directory, String hash) {
+        return directory.resolve(INPUTS).resolve(hash + ".bin");
+    }
+
+    //Read an index, the first line of each hash wins. Malformed lines (e.g. cut by a crash) are skipped
+    private static void load(Path file, Map<String, Input> into) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String text;
+            int lineNumber = 0;
+            while ((text = reader.readLine()) != null) {
+                lineNumber++;
+                if (text.isEmpty()) {
+                    continue;
+                }
+                try {
+                    Map<String, String> record = ResultLogViewer.parse(text);
+                    String hash = record.get("hash");
+                    if (hash == null || !hash.matches("[0-9a-f]{64}")) {
+                        throw new IllegalArgumentException("missing hash");
+                    }
+                    into.putIfAbsent(hash, new Input(hash, Integer.parseInt(record.getOrDefault("size", "0")), Long.parseLong(record.getOrDefault("time", "0")),
+                            record.get("test"), record.get("payload"), record.get("fingerprint")));
+                } catch (IllegalArgumentException ex) {
+                    System.out.println("[!] Malformed corpus index line " + lineNumber + " in " + file + " (" + ex.getMessage() + ")");
+                }
+            }
+        }
+    }
+
+    private void append(Input input) throws IOException {
+        line.setLength(0);
+        line.append("{\"hash\":\"").append(input.hash).append('"');
+        line.append(",\"size\":").append(input.size);
+        line.append(",\"time\":").append(input.time);
+        if (input.testCase != null) {
+            line.append(",\"test\":");
+            ResultLog.quote(line, input.testCase);
+        }
+        if (input.payload != null) {
+            line.append(",\"payload\":");
+            ResultLog.quote(line, input.payload);
+        }
+        if (input.fingerprint != null) {
+            line.append(",\"fingerprint\":");
+            ResultLog.quote(line, input.fingerprint);
+        }
+        line.append("}\n");
+        index.append(line);
+    }
+}
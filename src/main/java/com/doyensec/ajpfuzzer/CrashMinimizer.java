@@ -0,0 +1,187 @@
+/*
+ * AJPFuzzer - CrashMinimizer.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+/*
+ * Delta debugging (ddmin) of the inputs that crashed or hung the target. Each test restarts the
+ * target with the configured command if it is down, replays a candidate sequence on one connection
+ * and probes the target with a CPing. The sequence is reduced first, then the bytes of each
+ * remaining input. The number of tests is bounded, the smallest failing candidate found is kept.
+ */
+public class CrashMinimizer {
+
+    private static final int MAX_TESTS = 256;
+    private static final long RESTART_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final String host;
+    private final int port;
+    private final String restartCommand;
+    private final int receiveTimeout;
+    private final int maxResponseSize;
+    private int tests;
+    private boolean targetDown;
+
+    public CrashMinimizer(String host, int port, String restartCommand, int receiveTimeout, int maxResponseSize) {
+        this.host = host;
+        this.port = port;
+        this.restartCommand = restartCommand;
+        this.receiveTimeout = receiveTimeout;
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    //Minimal sequence still crashing the target, or null if the failure cannot be reproduced
+    public List<byte[]> minimize(List<byte[]> inputs) {
+        System.out.println("[*] Minimising " + inputs.size() + " inputs against a restarted target...");
+        try {
+            if (!reproduces(inputs)) {
+                System.out.println("[!] The failure is not reproducible\n");
+                return null;
+            }
+            List<byte[]> minimal = new ArrayList<>(ddmin(inputs, this::reproduces, this::exhausted));
+            for (int i = 0; i < minimal.size() && !exhausted(); i++) {
+                final int index = i;
+                final List<byte[]> sequence = minimal;
+                List<Byte> bytes = ddmin(toList(minimal.get(i)), candidate -> {
+                    List<byte[]> replaced = new ArrayList<>(sequence);
+                    replaced.set(index, toArray(candidate));
+                    return reproduces(replaced);
+                }, this::exhausted);
+                minimal.set(i, toArray(bytes));
+            }
+            int size = 0;
+            for (byte[] input : minimal) {
+                size += input.length;
+            }
+            System.out.println("[*] Minimised to " + minimal.size() + " inputs, " + size + " bytes (" + tests + " tests" + (tests >= MAX_TESTS ? ", limit reached" : targetDown ? ", target down" : "") + ")");
+            return minimal;
+        } finally {
+            //Leave the target running for the next campaign
+            ensureUp();
+        }
+    }
+
+    /*
+     * ddmin: split the failing input in n chunks and keep a chunk, or the complement of a chunk,
+     * that still fails. Otherwise double the granularity, until chunks are single elements.
+     */
+    static <T> List<T> ddmin(List<T> input, Predicate<List<T>> failing) {
+        return ddmin(input, failing, () -> false);
+    }
+
+    //Once exhausted is true, no more tests are run and the smallest failing candidate so far is returned
+    static <T> List<T> ddmin(List<T> input, Predicate<List<T>> failing, BooleanSupplier exhausted) {
+        List<T> current = input;
+        int n = 2;
+        while (current.size() >= 2 && !exhausted.getAsBoolean()) {
+            int chunk = (current.size() + n - 1) / n;
+            boolean reduced = false;
+            for (int start = 0; start < current.size() && !reduced && !exhausted.getAsBoolean(); start += chunk) {
+                List<T> subset = new ArrayList<>(current.subList(start, Math.min(start + chunk, current.size())));
+                if (failing.test(subset)) {
+                    current = subset;
+                    n = 2;
+                    reduced = true;
+                }
+            }
+            for (int start = 0; start < current.size() && !reduced && n > 2 && !exhausted.getAsBoolean(); start += chunk) {
+                List<T> complement = new ArrayList<>(current.subList(0, start));
+                complement.addAll(current.subList(Math.min(start + chunk, current.size()), current.size()));
+                if (failing.test(complement)) {
+                    current = complement;
+                    n = Math.max(n - 1, 2);
+                    reduced = true;
+                }
+            }
+            if (!reduced) {
+                if (n >= current.size()) {
+                    break;
+                }
+                n = Math.min(current.size(), 2 * n);
+            }
+        }
+        return current;
+    }
+
+    //No more tests: the limit is reached, or the target could not be restarted
+    private boolean exhausted() {
+        return tests >= MAX_TESTS || targetDown;
+    }
+
+    //Replay the inputs on a new connection to a running target: true if it crashes or hangs
+    private boolean reproduces(List<byte[]> inputs) {
+        if (exhausted()) {
+            return false;
+        }
+        if (!ensureUp()) {
+            targetDown = true;
+            return false;
+        }
+        tests++;
+        try (AjpConnection connection = new AjpConnection(host, port, maxResponseSize)) {
+            connection.connect();
+            for (byte[] input : inputs) {
+                connection.exchange(input, receiveTimeout);
+                if (!connection.isConnected()) {
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            //reset by the target, probe it below
+        }
+        return CrashMonitor.probe(host, port) != null;
+    }
+
+    //Run the restart command if the target is down, then wait until it answers a CPing
+    private boolean ensureUp() {
+        if (CrashMonitor.probe(host, port) == null) {
+            return true;
+        }
+        ProcessBuilder builder = Utils.isWindows() ? new ProcessBuilder("cmd", "/c", restartCommand) : new ProcessBuilder("sh", "-c", restartCommand);
+        try {
+            builder.redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        } catch (IOException ex) {
+            System.out.println("[!] Cannot run the restart command '" + restartCommand + "' (" + ex.getMessage() + ")\n");
+            return false;
+        }
+        long deadline = System.nanoTime() + RESTART_TIMEOUT_NANOS;
+        while (System.nanoTime() < deadline) {
+            if (CrashMonitor.probe(host, port) == null) {
+                return true;
+            }
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        System.out.println("[!] Target " + host + ":" + port + " still down after the restart command\n");
+        return false;
+    }
+
+    private static List<Byte> toList(byte[] data) {
+        List<Byte> list = new ArrayList<>(data.length);
+        for (byte b : data) {
+            list.add(b);
+        }
+        return list;
+    }
+
+    private static byte[] toArray(List<Byte> list) {
+        byte[] data = new byte[list.size()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = list.get(i);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * AJPFuzzer - CrashMonitor.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import com.doyensec.ajp13.CPingMessage;
+
+/*
+ * Crash and hang detection for one connection. The last K inputs sent on the connection are kept;
+ * when N consecutive exchanges get no reply (reset, timeout), a CPing on a fresh connection tells whether
+ * the target is still alive. A single silent exchange is common while fuzzing and does not cost a probe;
+ * a connection failure is reported at once by the callers (see crashed). If the target is unreachable
+ * or does not answer, the inputs are saved to
+ * <log name>_crash_<time>/input-NN.bin and, if a restart command is set, minimised (see CrashMinimizer).
+ */
+public class CrashMonitor {
+
+    public static final String UNREACHABLE = "unreachable";
+    public static final String HANG = "hangs";
+    private static final int PROBE_TIMEOUT = 5000;
+    private static final byte[] CPING = new CPingMessage().getBytes();
+
+    private final AJPFuzzer ajpsocket;
+    private final String host;
+    private final int port;
+    private final byte[][] history;
+    private final int probeAfter;
+    private int next;
+    private int count;
+    private int silent;
+
+    public CrashMonitor(AJPFuzzer ajpsocket, String host, int port) {
+        this.ajpsocket = ajpsocket;
+        this.host = host;
+        this.port = port;
+        this.history = new byte[ajpsocket.getCrashHistory()][];
+        this.probeAfter = ajpsocket.getCrashSilent();
+    }
+
+    //Keep a copy of an input about to be sent
+    public void sent(byte[] data) {
+        if (history.length == 0) {
+            return;
+        }
+        history[next] = data.clone();
+        next = (next + 1) % history.length;
+        count = Math.min(count + 1, history.length);
+    }
+
+    //A new connection was opened: the inputs sent since the last reply are kept, they may have crashed the target
+    public void clear() {
+        if (silent > 0) {
+            return;
+        }
+        next = 0;
+        count = 0;
+    }
+
+    //Inputs sent on the connection, oldest first
+    public List<byte[]> history() {
+        List<byte[]> inputs = new ArrayList<>(count);
+        for (int i = count; i > 0; i--) {
+            inputs.add(history[(next - i + history.length) % history.length]);
+        }
+        return inputs;
+    }
+
+    //After each exchange (null response on error): throw TargetDownException if the target crashed or hangs
+    public void check(String testCase, AjpResponse response) throws TargetDownException {
+        if (history.length == 0) {
+            return;
+        }
+        if (response != null && response.getPacketCount() > 0) {
+            silent = 0;
+            return;
+        }
+        if (++silent < probeAfter) {
+            return;
+        }
+        silent = 0;
+        String failure = probe(host, port);
+        if (failure != null) {
+            crashed(testCase, failure);
+            throw new TargetDownException(host, port, failure);
+        }
+    }
+
+    //Null if the target answers a CPing on a new connection, UNREACHABLE or HANG otherwise
+    public static String probe(String host, int port) {
+        try (AjpConnection connection = new AjpConnection(host, port, 1024)) {
+            try {
+                connection.connect();
+            } catch (IOException ex) {
+                return UNREACHABLE;
+            }
+            AjpResponse response = connection.exchange(CPING, PROBE_TIMEOUT);
+            return response.getPacketCount() > 0 && response.getPacketType(0) == Utils.CPONG_REPLY ? null : HANG;
+        } catch (IOException ex) {
+            return HANG;
+        }
+    }
+
+    //Save the inputs that led to the failure and minimise them
+    public void crashed(String testCase, String failure) {
+        System.out.println("[!] Target " + host + ":" + port + " " + failure + " after test case '" + testCase + "'\n");
+        List<byte[]> inputs = history();
+        if (inputs.isEmpty()) {
+            return;
+        }
+        Path directory = Paths.get((ajpsocket.getLogName() != null ? ajpsocket.getLogName() : "AJPFuzzer") + "_crash_" + System.currentTimeMillis());
+        try {
+            Files.createDirectories(directory);
+            String summary = "test case: " + testCase + "\ntarget: " + host + ":" + port + " " + failure + "\ntime: " + new Date() + "\n";
+            Files.write(directory.resolve("crash.txt"), summary.getBytes(StandardCharsets.UTF_8));
+            save(directory, "input", inputs);
+            System.out.println("[*] Last " + inputs.size() + " inputs saved to " + directory);
+        } catch (IOException ex) {
+            System.out.println("[!] Cannot save the crash inputs to " + directory + " (" + ex.getMessage() + ")\n");
+            return;
+        }
+
+        String restartCommand = ajpsocket.getRestartCommand();
+        if (restartCommand == null) {
+            System.out.println("[*] Set a target restart command with 'restartcmd' to minimise them\n");
+            return;
+        }
+        CrashMinimizer minimizer = new CrashMinimizer(host, port, restartCommand, ajpsocket.getReceiveTimeout(), ajpsocket.getMaxResponseSize());
+        List<byte[]> minimal = minimizer.minimize(inputs);
+        if (minimal != null) {
+            try {
+                save(directory, "minimal", minimal);
+                System.out.println("[*] Minimal reproducer saved to " + directory + "/minimal-*.bin\n");
+            } catch (IOException ex) {
+                System.out.println("[!] Cannot save the minimal reproducer to " + directory + " (" + ex.getMessage() + ")\n");
+            }
+        }
+    }
+
+    private static void save(Path directory, String prefix, List<byte[]> inputs) throws IOException {
+        for (int i = 0; i < inputs.size(); i++) {
+            Files.write(directory.resolve(String.format("%s-%02d.bin", prefix, i)), inputs.get(i));
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * AJPFuzzer - ForwardRequest.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Editable model of a ForwardRequest (type 2) packet, decoded field by field:
+ * prefix, method, protocol, req_uri, remote_addr, remote_host, server_name, server_port, is_ssl,
+ * num_headers, headers (coded or string name, value), attributes (code, [name], value) and terminator.
+ *
+ * Every length field (packet, strings, header count) is either derived from the content when
+ * encoding (-1, the default) or forced to a declared value, to craft deliberately inconsistent packets.
+ * Bytes that cannot be decoded (unknown attribute code, truncated field, data after the terminator)
+ * are kept as a raw trailer, so encoding an unmodified request gives back the original bytes.
+ */
+public class ForwardRequest {
+
+    //AJP13 string: length, bytes, 0x00. A null string is encoded as length 0xFFFF without terminator
+    public static class AjpString {
+
+        protected byte[] value;
+        protected int declaredLength = -1;
+
+        protected AjpString(byte[] value) {
+            this.value = value;
+        }
+
+        protected AjpString copy() {
+            AjpString copy = new AjpString(value == null ? null : value.clone());
+            copy.declaredLength = declaredLength;
+            return copy;
+        }
+    }
+
+    //Request header: a code (0xA0xx), or a string name when code is -1
+    public static class Header {
+
+        protected int code;
+        protected AjpString name;
+        protected AjpString value;
+
+        protected Header(int code, AjpString name, AjpString value) {
+            this.code = code;
+            this.name = name;
+            this.value = value;
+        }
+
+        protected Header copy() {
+            return new Header(code, name == null ? null : name.copy(), value.copy());
+        }
+    }
+
+    //Attribute: a code, a name (req_attribute only) and a string value, or an integer value for ssl_key_size
+    public static class Attribute {
+
+        protected int code;
+        protected AjpString name;
+        protected AjpString value;
+        protected int intValue;
+
+        protected Attribute(int code, AjpString name, AjpString value, int intValue) {
+            this.code = code;
+            this.name = name;
+            this.value = value;
+            this.intValue = intValue;
+        }
+
+        protected Attribute copy() {
+            return new Attribute(code, name == null ? null : name.copy(), value == null ? null : value.copy(), intValue);
+        }
+    }
+
+    protected int declaredPacketLength = -1;
+    protected int prefix;
+    protected int method;
+    protected AjpString protocol;
+    protected AjpString requestUri;
+    protected AjpString remoteAddr;
+    protected AjpString remoteHost;
+    protected AjpString serverName;
+    protected int serverPort;
+    protected int isSsl;
+    protected boolean hasHeaderCount = true;
+    protected int declaredHeaderCount = -1;
+    protected List<Header> headers = new ArrayList<>();
+    protected List<Attribute> attributes = new ArrayList<>();
+    protected boolean terminated;
+    protected byte[] trailer = new byte[0];
+
+    private ForwardRequest() {
+    }
+
+    /*
+     * Decode a container-bound packet (0x12 0x34, length, payload) holding a ForwardRequest.
+     * Return null if it is not one, or if it is too short to hold the fixed fields.
+     */
+    public static ForwardRequest decode(byte[] packet) {
+        if (packet.length < 6 || packet[0] != 0x12 || packet[1] != 0x34 || packet[4] != AjpCodes.FORWARD_REQUEST) {
+            return null;
+        }
+        ForwardRequest request = new ForwardRequest();
+        int length = ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF);
+        if (length != packet.length - 4) {
+            request.declaredPacketLength = length;
+        }
+        Reader reader = new Reader(packet, 4);
+        try {
+            request.prefix = reader.u8();
+            request.method = reader.u8();
+            request.protocol = reader.string();
+            request.requestUri = reader.string();
+            request.remoteAddr = reader.string();
+            request.remoteHost = reader.string();
+            request.serverName = reader.string();
+            request.serverPort = reader.u16();
+            request.isSsl = reader.u8();
+        } catch (IndexOutOfBoundsException ex) {
+            return null;
+        }
+
+        //From here on, anything that cannot be decoded is kept as the trailer
+        int mark = reader.pos;
+        try {
+            if (packet.length - reader.pos < 2) {
+                request.hasHeaderCount = false;
+                request.trailer = Arrays.copyOfRange(packet, mark, packet.length);
+                return request;
+            }
+            int count = reader.u16();
+            request.declaredHeaderCount = count;
+            mark = reader.pos;
+            for (int h = 0; h < count; h++) {
+                int code = reader.u16();
+                Header header;
+                if ((code & 0xFF00) == 0xA000) {
+                    header = new Header(code, null, reader.string());
+                } else {
+                    reader.pos -= 2;
+                    AjpString name = reader.string();
+                    header = new Header(-1, name, reader.string());
+                }
+                request.headers.add(header);
+                mark = reader.pos;
+            }
+            if (count == request.headers.size()) {
+                request.declaredHeaderCount = -1;
+            }
+
+            while (reader.pos < packet.length) {
+                int code = reader.u8();
+                if (code == (AjpCodes.REQUEST_TERMINATOR & 0xFF)) {
+                    request.terminated = true;
+                    mark = reader.pos;
+                    break;
+                }
+                Attribute attribute;
+                if (code == AjpCodes.ATTRIBUTE_REQ_ATTRIBUTE) {
+                    AjpString name = reader.string();
+                    attribute = new Attribute(code, name, reader.string(), 0);
+                } else if (code == AjpCodes.ATTRIBUTE_SSL_KEY_SIZE) {
+                    attribute = new Attribute(code, null, null, reader.u16());
+                } else if (AjpCodes.attributeName(code) != null) {
+                    attribute = new Attribute(code, null, reader.string(), 0);
+                } else {
+                    break; //unknown attribute code
+                }
+                request.attributes.add(attribute);
+                mark = reader.pos;
+            }
+        } catch (IndexOutOfBoundsException ex) {
+            //truncated field, kept in the trailer
+        }
+        request.trailer = Arrays.copyOfRange(packet, mark, packet.length);
+        return request;
+    }
+
+    public ForwardRequest copy() {
+        ForwardRequest copy = new ForwardRequest();
+        copy.declaredPacketLength = declaredPacketLength;
+        copy.prefix = prefix;
+        copy.method = method;
+        copy.protocol = protocol.copy();
+        copy.requestUri = requestUri.copy();
+        copy.remoteAddr = remoteAddr.copy();
+        copy.remoteHost = remoteHost.copy();
+        copy.serverName = serverName.copy();
+        copy.serverPort = serverPort;
+        copy.isSsl = isSsl;
+        copy.hasHeaderCount = hasHeaderCount;
+        copy.declaredHeaderCount = declaredHeaderCount;
+        for (Header header : headers) {
+            copy.headers.add(header.copy());
+        }
+        for (Attribute attribute : attributes) {
+            copy.attributes.add(attribute.copy());
+        }
+        copy.terminated = terminated;
+        copy.trailer = trailer.clone();
+        return copy;
+    }
+
+    //Value of the Content-Length header (coded or named), -1 if absent or not a number
+    public long contentLength() {
+        for (Header header : headers) {
+            String name = header.code != -1 ? AjpCodes.headerName(header.code)
+                    : header.name.value == null ? null : new String(header.name.value, StandardCharsets.ISO_8859_1);
+            if ("content-length".equalsIgnoreCase(name) && header.value.value != null) {
+                try {
+                    return Long.parseLong(new String(header.value.value, StandardCharsets.ISO_8859_1).trim());
+                } catch (NumberFormatException ex) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    //All string fields, for content mutations
+    protected List<AjpString> strings() {
+        List<AjpString> strings = new ArrayList<>(List.of(protocol, requestUri, remoteAddr, remoteHost, serverName));
+        for (Header header : headers) {
+            if (header.name != null) strings.add(header.name);
+            strings.add(header.value);
+        }
+        for (Attribute attribute : attributes) {
+            if (attribute.name != null) strings.add(attribute.name);
+            if (attribute.value != null) strings.add(attribute.value);
+        }
+        return strings;
+    }
+
+    //Serialise the request. Declared lengths and counts are used when set, otherwise they match the content
+    public byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        out.write(0x12);
+        out.write(0x34);
+        out.write(0);
+        out.write(0);
+        out.write(prefix);
+        out.write(method);
+        string(out, protocol);
+        string(out, requestUri);
+        string(out, remoteAddr);
+        string(out, remoteHost);
+        string(out, serverName);
+        u16(out, serverPort);
+        out.write(isSsl);
+        if (hasHeaderCount) {
+            u16(out, declaredHeaderCount >= 0 ? declaredHeaderCount : headers.size());
+        }
+        for (Header header : headers) {
+            if (header.code != -1) {
+                u16(out, header.code);
+            } else {
+                string(out, header.name);
+            }
+            string(out, header.value);
+        }
+        for (Attribute attribute : attributes) {
+            out.write(attribute.code);
+            if (attribute.name != null) {
+                string(out, attribute.name);
+            }
+            if (attribute.value != null) {
+                string(out, attribute.value);
+            } else {
+                u16(out, attribute.intValue);
+            }
+        }
+        if (terminated) {
+            out.write(AjpCodes.REQUEST_TERMINATOR);
+        }
+        out.writeBytes(trailer);
+
+        byte[] packet = out.toByteArray();
+        int length = declaredPacketLength >= 0 ? declaredPacketLength : packet.length - 4;
+        packet[2] = (byte) (length >> 8);
+        packet[3] = (byte) length;
+        return packet;
+    }
+
+    private static void u16(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static void string(ByteArrayOutputStream out, AjpString s) {
+        if (s.value == null) {
+            u16(out, s.declaredLength >= 0 ? s.declaredLength : 0xFFFF);
+            return;
+        }
+        u16(out, s.declaredLength >= 0 ? s.declaredLength : s.value.length);
+        out.writeBytes(s.value);
+        out.write(0x00);
+    }
+
+    private static class Reader {
+
+        private final byte[] data;
+        private int pos;
+
+        private Reader(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        private int u8() {
+            if (pos >= data.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            return data[pos++] & 0xFF;
+        }
+
+        private int u16() {
+            return (u8() << 8) | u8();
+        }
+
+        //A string whose length or terminator do not match is not decoded
+        private AjpString string() {
+            int length = u16();
+            if (length == 0xFFFF) {
+                return new AjpString(null);
+            }
+            if (pos + length >= data.length || data[pos + length] != 0x00) {
+                throw new IndexOutOfBoundsException();
+            }
+            byte[] value = Arrays.copyOfRange(data, pos, pos + length);
+            pos += length + 1;
+            return new AjpString(value);
+        }
+    }
+}
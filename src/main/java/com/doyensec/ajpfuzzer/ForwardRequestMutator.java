@@ -0,0 +1,223 @@
+/*
+ * AJPFuzzer - ForwardRequestMutator.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.random.RandomGenerator;
+
+/*
+ * Structure-aware mutations of a ForwardRequest: method, string contents, headers
+ * (codes, names, values, count), attributes, port, SSL flag and terminator are changed at the
+ * field level, then the request is re-serialised. Most mutants keep consistent length fields, so
+ * they get past the container's packet checks; the others deliberately declare wrong packet,
+ * string or header count lengths.
+ */
+public class ForwardRequestMutator {
+
+    //Share of mutants serialised with consistent length fields
+    private static final double CONSISTENT_RATIO = 0.75;
+
+    private static final String[] STRINGS = {
+        "", " ", "*", "/", "../", "..;/", "%2e%2e/", "%00", "\u0000", "\r\n", "%", "${", "ÿþ",
+        "/WEB-INF/web.xml", "/META-INF/MANIFEST.MF", "HTTP/0.9", "HTTP/1.1", "HTTP/2.0", "localhost", "127.0.0.1", "::1"
+    };
+    private static final String[] HEADER_NAMES = {
+        "Host", "Content-Length", "Transfer-Encoding", "Expect", "Connection", "X-Forwarded-For", "X-Forwarded-Proto", "Cookie"
+    };
+    private static final String[] REQUEST_ATTRIBUTES = {
+        "javax.servlet.include.request_uri", "javax.servlet.include.path_info", "javax.servlet.include.servlet_path",
+        "AJP_REMOTE_PORT", "AJP_LOCAL_ADDR", "AJP_SSL_PROTOCOL", "org.apache.catalina.jsp_file"
+    };
+    private static final int[] INTERESTING_16 = {0x0000, 0x0001, 0x00FF, 0x0100, 0x1FFF, 0x2000, 0x7FFF, 0x8000, 0xFFFE, 0xFFFF};
+
+    private final RandomGenerator random;
+
+    public ForwardRequestMutator(RandomGenerator random) {
+        this.random = random;
+    }
+
+    //Stack 1 to 4 field mutations on a copy of request and serialise it
+    public byte[] mutate(ForwardRequest request) {
+        ForwardRequest mutant = request.copy();
+        boolean consistent = random.nextDouble() < CONSISTENT_RATIO;
+        if (consistent) {
+            mutant.declaredPacketLength = -1;
+            mutant.declaredHeaderCount = -1;
+            for (ForwardRequest.AjpString s : mutant.strings()) {
+                s.declaredLength = -1;
+            }
+        }
+        int stack = 1 + random.nextInt(4);
+        for (int i = 0; i < stack; i++) {
+            mutateField(mutant);
+        }
+        if (!consistent) {
+            mutateLength(mutant);
+        }
+        return mutant.encode();
+    }
+
+    private void mutateField(ForwardRequest request) {
+        switch (random.nextInt(12)) {
+            case 0:
+                //Valid methods are 1-27, 0xFF is the SC_M_JK_STORED marker
+                request.method = random.nextInt(4) == 0 ? random.nextInt(256) : 1 + random.nextInt(27);
+                break;
+            case 1:
+            case 2:
+            case 3:
+                mutateString(pick(request.strings()));
+                break;
+            case 4:
+                request.headers.add(random.nextInt(request.headers.size() + 1), newHeader());
+                break;
+            case 5:
+                if (!request.headers.isEmpty()) {
+                    int h = random.nextInt(request.headers.size());
+                    if (random.nextBoolean()) {
+                        request.headers.remove(h);
+                    } else {
+                        request.headers.add(request.headers.get(h).copy());
+                    }
+                }
+                break;
+            case 6:
+                if (!request.headers.isEmpty()) {
+                    ForwardRequest.Header header = pick(request.headers);
+                    //0xA001-0xA00E are defined, anything else in 0xA0xx is not
+                    header.code = random.nextInt(4) == 0 ? 0xA000 | random.nextInt(256) : 0xA001 + random.nextInt(14);
+                    header.name = null;
+                }
+                break;
+            case 7:
+                request.attributes.add(random.nextInt(request.attributes.size() + 1), newAttribute());
+                break;
+            case 8:
+                if (!request.attributes.isEmpty()) {
+                    int a = random.nextInt(request.attributes.size());
+                    if (random.nextBoolean()) {
+                        request.attributes.remove(a);
+                    } else {
+                        request.attributes.add(request.attributes.get(a).copy());
+                    }
+                }
+                break;
+            case 9:
+                request.serverPort = INTERESTING_16[random.nextInt(INTERESTING_16.length)];
+                break;
+            case 10:
+                request.isSsl = random.nextInt(4) == 0 ? random.nextInt(256) : 1 - Math.min(1, request.isSsl);
+                break;
+            default:
+                if (random.nextBoolean()) {
+                    request.terminated = !request.terminated;
+                } else {
+                    request.trailer = new byte[0];
+                }
+        }
+    }
+
+    private void mutateString(ForwardRequest.AjpString s) {
+        byte[] value = s.value == null ? new byte[0] : s.value;
+        switch (random.nextInt(6)) {
+            case 0:
+                s.value = bytes(pick(STRINGS));
+                break;
+            case 1:
+                //Insert a token
+                byte[] token = bytes(pick(STRINGS));
+                int at = random.nextInt(value.length + 1);
+                byte[] inserted = new byte[value.length + token.length];
+                System.arraycopy(value, 0, inserted, 0, at);
+                System.arraycopy(token, 0, inserted, at, token.length);
+                System.arraycopy(value, at, inserted, at + token.length, value.length - at);
+                s.value = inserted;
+                break;
+            case 2:
+                //Repeat up to the size of the largest AJP13 packet
+                int size = 1 << (4 + random.nextInt(10));
+                byte[] repeated = new byte[size];
+                byte[] unit = value.length == 0 ? bytes("A") : value;
+                for (int i = 0; i < size; i++) {
+                    repeated[i] = unit[i % unit.length];
+                }
+                s.value = repeated;
+                break;
+            case 3:
+                s.value = value.length == 0 ? value : Arrays.copyOf(value, random.nextInt(value.length));
+                break;
+            case 4:
+                if (value.length > 0) {
+                    value = value.clone();
+                    value[random.nextInt(value.length)] = (byte) random.nextInt(256);
+                    s.value = value;
+                }
+                break;
+            default:
+                s.value = null;
+        }
+    }
+
+    private ForwardRequest.Header newHeader() {
+        ForwardRequest.AjpString value = new ForwardRequest.AjpString(bytes(pick(STRINGS)));
+        if (random.nextBoolean()) {
+            return new ForwardRequest.Header(0xA001 + random.nextInt(14), null, value);
+        }
+        return new ForwardRequest.Header(-1, new ForwardRequest.AjpString(bytes(pick(HEADER_NAMES))), value);
+    }
+
+    private ForwardRequest.Attribute newAttribute() {
+        int code = 1 + random.nextInt(13);
+        ForwardRequest.AjpString value = new ForwardRequest.AjpString(bytes(pick(STRINGS)));
+        if (code == AjpCodes.ATTRIBUTE_REQ_ATTRIBUTE) {
+            return new ForwardRequest.Attribute(code, new ForwardRequest.AjpString(bytes(pick(REQUEST_ATTRIBUTES))), value, 0);
+        }
+        if (code == AjpCodes.ATTRIBUTE_SSL_KEY_SIZE) {
+            return new ForwardRequest.Attribute(code, null, null, INTERESTING_16[random.nextInt(INTERESTING_16.length)]);
+        }
+        return new ForwardRequest.Attribute(code, null, value, 0);
+    }
+
+    //Declare a wrong packet length, string length or header count
+    private void mutateLength(ForwardRequest request) {
+        switch (random.nextInt(3)) {
+            case 0:
+                request.declaredPacketLength = wrongLength(request.encode().length - 4);
+                break;
+            case 1:
+                ForwardRequest.AjpString s = pick(request.strings());
+                s.declaredLength = wrongLength(s.value == null ? 0 : s.value.length);
+                break;
+            default:
+                request.declaredHeaderCount = wrongLength(request.headers.size());
+        }
+    }
+
+    private int wrongLength(int actual) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return Math.max(0, Math.min(0xFFFF, actual + (random.nextBoolean() ? 1 : -1) * (1 + random.nextInt(4))));
+            case 1:
+                return INTERESTING_16[random.nextInt(INTERESTING_16.length)];
+            default:
+                return random.nextInt(0x10000);
+        }
+    }
+
+    private <T> T pick(List<T> list) {
+        return list.get(random.nextInt(list.size()));
+    }
+
+    private String pick(String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
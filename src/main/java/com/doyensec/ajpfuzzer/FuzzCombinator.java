@@ -0,0 +1,169 @@
+/*
+ * AJPFuzzer - FuzzCombinator.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+
+/*
+ * Lazily combine several fuzzing lists, list i providing the values of marker FUZZ<i+1>:
+ *  - sniper: the base values (first line of each list) once, then one marker at a time walks the rest of its list,
+ *    the other markers keep their base value
+ *  - pitchfork: line n of every list together, until the shortest list ends
+ *  - clusterbomb: every combination of all lists (the last list varies fastest)
+ * Lists are streamed and re-opened when needed: combinations are never materialised.
+ */
+public class FuzzCombinator implements PayloadSource<List<String>> {
+
+    public enum Mode {
+        SNIPER, PITCHFORK, CLUSTERBOMB;
+
+        public static Mode parse(String mode) {
+            return valueOf(mode.toUpperCase(Locale.ROOT).replace("-", ""));
+        }
+    }
+
+    private final Path[] paths;
+    private final Mode mode;
+    private final Wordlist[] lists;
+    private final String[] current;
+    private String[] base;
+    private int position;
+    private long index;
+    private List<String> next;
+
+    public FuzzCombinator(Mode mode, Path... paths) throws IOException {
+        this.mode = mode;
+        this.paths = paths;
+        this.lists = new Wordlist[paths.length];
+        this.current = new String[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            lists[i] = new Wordlist(paths[i]);
+        }
+        prime();
+    }
+
+    //Markers bound to the lists: FUZZ1, FUZZ2, ...
+    public static String[] markers(int count) {
+        String[] markers = new String[count];
+        for (int i = 0; i < count; i++) {
+            markers[i] = Utils.FUZZ_KEY + (i + 1);
+        }
+        return markers;
+    }
+
+    private void prime() throws IOException {
+        for (Wordlist list : lists) {
+            if (!list.hasNext()) {
+                return; //an empty list means no combination at all
+            }
+        }
+        switch (mode) {
+            case SNIPER:
+                base = new String[lists.length];
+                for (int i = 0; i < lists.length; i++) {
+                    base[i] = lists[i].next();
+                }
+                next = List.of(base);
+                break;
+            case PITCHFORK:
+                next = pitchfork();
+                break;
+            case CLUSTERBOMB:
+                for (int i = 0; i < lists.length; i++) {
+                    current[i] = lists[i].next();
+                }
+                next = List.of(current);
+                break;
+        }
+    }
+
+    private List<String> sniper() {
+        while (position < lists.length && !lists[position].hasNext()) {
+            position++;
+        }
+        if (position == lists.length) {
+            return null;
+        }
+        String[] values = Arrays.copyOf(base, base.length);
+        values[position] = lists[position].next();
+        return List.of(values);
+    }
+
+    private List<String> pitchfork() {
+        for (int i = 0; i < lists.length; i++) {
+            if (!lists[i].hasNext()) {
+                return null;
+            }
+            current[i] = lists[i].next();
+        }
+        return List.of(current);
+    }
+
+    //Advance like an odometer, re-opening the lists that wrap around
+    private List<String> clusterBomb() throws IOException {
+        for (int i = lists.length - 1; i >= 0; i--) {
+            if (lists[i].hasNext()) {
+                current[i] = lists[i].next();
+                return List.of(current);
+            }
+            if (i == 0) {
+                return null;
+            }
+            lists[i].close();
+            lists[i] = new Wordlist(paths[i]);
+            current[i] = lists[i].next();
+        }
+        return null;
+    }
+
+    @Override
+    public long getIndex() {
+        return index;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public List<String> next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        List<String> result = next;
+        index++;
+        switch (mode) {
+            case SNIPER:
+                next = sniper();
+                break;
+            case PITCHFORK:
+                next = pitchfork();
+                break;
+            case CLUSTERBOMB:
+                try {
+                    next = clusterBomb();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                break;
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Wordlist list : lists) {
+            list.close();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * AJPFuzzer - FuzzRandom.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
+/*
+ * Seedable xoshiro256** generator, one per fuzzing worker, shared by all its mutators.
+ *
+ * The stream is restarted at every iteration from (campaign seed, iteration index), so the
+ * random choices of any iteration can be regenerated exactly from these two numbers, without
+ * storing the payload. Restarting only resets four longs: nothing is allocated per iteration.
+ * Not thread-safe.
+ */
+public final class FuzzRandom implements RandomGenerator {
+
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final long seed;
+    private long s0, s1, s2, s3;
+
+    public FuzzRandom(long seed) {
+        this.seed = seed;
+        reseed(0);
+    }
+
+    //A random campaign seed
+    public static long newSeed() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    //Restart the stream for the given iteration (SplitMix64 expansion of the seed and the index)
+    public void reseed(long iteration) {
+        long x = seed + iteration * GOLDEN_GAMMA;
+        s0 = mix(x += GOLDEN_GAMMA);
+        s1 = mix(x += GOLDEN_GAMMA);
+        s2 = mix(x += GOLDEN_GAMMA);
+        s3 = mix(x + GOLDEN_GAMMA);
+    }
+
+    @Override
+    public long nextLong() {
+        long result = Long.rotateLeft(s1 * 5, 7) * 9;
+        long t = s1 << 17;
+        s2 ^= s0;
+        s3 ^= s1;
+        s1 ^= s2;
+        s0 ^= s3;
+        s2 ^= t;
+        s3 = Long.rotateLeft(s3, 45);
+        return result;
+    }
+
+    //Replay reference of an iteration, as recorded in the result log
+    public String describe(long iteration) {
+        return "seed=" + seed + " iteration=" + iteration;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * AJPFuzzer - FuzzTemplate.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * A ForwardRequest (type 2) template compiled once, with fuzzing markers (e.g. FUZZ) in any
+ * string element. The message is pre-encoded into constant byte chunks and templated strings,
+ * the latter recording where each marker slot sits. Encoding a payload only copies bytes into
+ * a reusable per-thread buffer and patches the AJP13 length prefixes.
+ *
+ * The bytes are the ones libajp13 ForwardRequestMessage gives for the same message with the markers
+ * replaced (see FuzzTemplateTest): a header or attribute name that becomes a known one once the
+ * payload is in is sent coded. Strings over 0xFFFE bytes (0xFFFF means null) and packets over
+ * 0xFFFF bytes cannot be encoded, and are rejected with an IllegalArgumentException.
+ */
+public class FuzzTemplate {
+
+    //What a templated string is: a value, or a header or attribute name to send coded when known
+    private static final int VALUE = 0;
+    private static final int HEADER_NAME = 1;
+    private static final int ATTRIBUTE_NAME = 2;
+
+    protected static final int MAX_STRING = 0xFFFE;
+    protected static final int MAX_PACKET = 0xFFFF;
+
+    //A string element containing markers: literal parts with a marker slot between two consecutive parts
+    private static class TemplatedString {
+
+        private final byte[][] parts;
+        private final int[] slots;
+        private final int kind;
+        private final int literalLength;
+
+        private TemplatedString(byte[][] parts, int[] slots, int kind) {
+            this.parts = parts;
+            this.slots = slots;
+            this.kind = kind;
+            int length = 0;
+            for (byte[] part : parts) {
+                length += part.length;
+            }
+            this.literalLength = length;
+        }
+    }
+
+    private final String[] markers;
+    //literals[i] is written before strings[i], the last literal closes the message
+    private final byte[][] literals;
+    private final TemplatedString[] strings;
+    private final int fixedLength;
+    private final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    private FuzzTemplate(String[] markers, List<byte[]> literals, List<TemplatedString> strings) {
+        this.markers = markers;
+        this.literals = literals.toArray(new byte[0][]);
+        this.strings = strings.toArray(new TemplatedString[0]);
+        int length = 4;
+        for (byte[] literal : this.literals) {
+            length += literal.length;
+        }
+        for (TemplatedString string : this.strings) {
+            length += 2 + string.literalLength + 1;
+        }
+        this.fixedLength = length;
+    }
+
+    /*
+     * Compile a ForwardRequest template. Headers and attributes are passed as <name>:<value>,<name>:<value>,...
+     * Any occurrence of a marker in the string elements is replaced by the corresponding payload when encoding.
+     */
+    public static FuzzTemplate compile(int method, String protocol, String requestUri, String remoteAddr, String remoteHost,
+                                       String serverName, int serverPort, boolean isSsl, String headers, String attributes, String... markers) {
+        Compiler compiler = new Compiler(markers);
+        compiler.literal.write(AjpCodes.FORWARD_REQUEST);
+        compiler.literal.write(method);
+        compiler.string(protocol);
+        compiler.string(requestUri);
+        compiler.string(remoteAddr);
+        compiler.string(remoteHost);
+        compiler.string(serverName);
+        compiler.integer(serverPort);
+        compiler.literal.write(isSsl ? 1 : 0);
+
+        String[] header = headers.contains(":") ? headers.split(",") : new String[0];
+        compiler.integer(header.length);
+        for (int i = 0; i < header.length; i++) {
+            String[] nameValue = header[i].split(":");
+            int code = compiler.hasMarker(nameValue[0]) ? -1 : AjpCodes.headerCode(nameValue[0]);
+            if (code != -1) {
+                compiler.integer(code);
+            } else {
+                compiler.string(nameValue[0], HEADER_NAME);
+            }
+            compiler.string(nameValue[1]);
+        }
+
+        String[] attribute = attributes.contains(":") ? attributes.split(",") : new String[0];
+        for (int i = 0; i < attribute.length; i++) {
+            String[] nameValue = attribute[i].split(":");
+            int code = compiler.hasMarker(nameValue[0]) ? -1 : AjpCodes.attributeCode(nameValue[0]);
+            if (code == -1) {
+                compiler.literal.write(AjpCodes.ATTRIBUTE_REQ_ATTRIBUTE);
+                compiler.string(nameValue[0], ATTRIBUTE_NAME);
+                compiler.string(nameValue[1]);
+            } else if (code == AjpCodes.ATTRIBUTE_SSL_KEY_SIZE && nameValue[1].matches("\\d+")) {
+                compiler.literal.write(code);
+                compiler.integer(Integer.parseInt(nameValue[1]));
+            } else {
+                compiler.literal.write(code);
+                compiler.string(nameValue[1]);
+            }
+        }
+        compiler.literal.write(AjpCodes.REQUEST_TERMINATOR);
+        return compiler.build();
+    }
+
+    public String[] getMarkers() {
+        return markers;
+    }
+
+    //Encode the message with a single payload for every marker
+    public ByteBuffer encode(String payload) {
+        byte[] value = payload.getBytes(StandardCharsets.UTF_8);
+        byte[][] values = new byte[markers.length][];
+        Arrays.fill(values, value);
+        return encode(values);
+    }
+
+    //Encode the message, values.get(i) replacing markers[i]
+    public ByteBuffer encode(List<String> values) {
+        byte[][] bytes = new byte[markers.length][];
+        for (int i = 0; i < markers.length; i++) {
+            bytes[i] = values.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        return encode(bytes);
+    }
+
+    /*
+     * Encode the message, values[i] replacing markers[i]. The returned buffer wraps a per-thread
+     * buffer reused by the next call on the same thread: send it (or copy it) right away.
+     * Throw IllegalArgumentException if a string or the packet exceeds the AJP13 length fields.
+     */
+    public ByteBuffer encode(byte[][] values) {
+        int size = fixedLength;
+        for (TemplatedString string : strings) {
+            for (int slot : string.slots) {
+                size += values[slot].length;
+            }
+        }
+        byte[] out = buffers.get();
+        if (out.length < size) {
+            out = new byte[Math.max(size, out.length * 2)];
+            buffers.set(out);
+        }
+
+        out[0] = 0x12;
+        out[1] = 0x34;
+        int pos = 4;
+        for (int i = 0; i < strings.length; i++) {
+            System.arraycopy(literals[i], 0, out, pos, literals[i].length);
+            pos += literals[i].length;
+
+            //Templated string: length, parts and values, terminator
+            int lengthAt = pos;
+            pos += 2;
+            TemplatedString string = strings[i];
+            for (int p = 0; p < string.parts.length; p++) {
+                System.arraycopy(string.parts[p], 0, out, pos, string.parts[p].length);
+                pos += string.parts[p].length;
+                if (p < string.slots.length) {
+                    byte[] value = values[string.slots[p]];
+                    System.arraycopy(value, 0, out, pos, value.length);
+                    pos += value.length;
+                }
+            }
+            int length = pos - lengthAt - 2;
+            if (length > MAX_STRING) {
+                throw new IllegalArgumentException("String of " + length + " bytes, over the AJP13 limit of " + MAX_STRING);
+            }
+            if (string.kind != VALUE && coded(out, lengthAt, length, string.kind)) {
+                pos = string.kind == HEADER_NAME ? lengthAt + 2 : lengthAt;
+                continue;
+            }
+            out[lengthAt] = (byte) (length >> 8);
+            out[lengthAt + 1] = (byte) length;
+            out[pos++] = 0x00;
+        }
+        byte[] last = literals[literals.length - 1];
+        System.arraycopy(last, 0, out, pos, last.length);
+        pos += last.length;
+
+        if (pos - 4 > MAX_PACKET) {
+            throw new IllegalArgumentException("Packet of " + (pos - 4) + " bytes, over the AJP13 limit of " + MAX_PACKET);
+        }
+        out[2] = (byte) ((pos - 4) >> 8);
+        out[3] = (byte) (pos - 4);
+        return ByteBuffer.wrap(out, 0, pos);
+    }
+
+    /*
+     * A header or attribute name written at lengthAt + 2 that is a known one once the payload is in:
+     * write its code in place (header: 2 bytes instead of the length, attribute: the code byte before
+     * the name, replacing req_attribute) and return true. ssl_key_size, taking an integer, stays a req_attribute.
+     */
+    private static boolean coded(byte[] out, int lengthAt, int length, int kind) {
+        String name = new String(out, lengthAt + 2, length, StandardCharsets.UTF_8);
+        if (kind == HEADER_NAME) {
+            int code = AjpCodes.headerCode(name);
+            if (code == -1) {
+                return false;
+            }
+            out[lengthAt] = (byte) (code >> 8);
+            out[lengthAt + 1] = (byte) code;
+            return true;
+        }
+        int code = AjpCodes.attributeCode(name);
+        if (code == -1 || code == AjpCodes.ATTRIBUTE_SSL_KEY_SIZE) {
+            return false;
+        }
+        out[lengthAt - 1] = (byte) code;
+        return true;
+    }
+
+    //Same as encode, as a new array
+    public byte[] toBytes(String payload) {
+        ByteBuffer message = encode(payload);
+        return Arrays.copyOf(message.array(), message.limit());
+    }
+
+    private static class Compiler {
+
+        private final String[] markers;
+        private final List<byte[]> literals = new ArrayList<>();
+        private final List<TemplatedString> strings = new ArrayList<>();
+        private final ByteArrayOutputStream literal = new ByteArrayOutputStream();
+
+        private Compiler(String[] markers) {
+            this.markers = markers;
+        }
+
+        private boolean hasMarker(String s) {
+            for (String marker : markers) {
+                if (s.contains(marker)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void integer(int value) {
+            literal.write(value >> 8);
+            literal.write(value);
+        }
+
+        private void string(String s) {
+            string(s, VALUE);
+        }
+
+        private void string(String s, int kind) {
+            if (!hasMarker(s)) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length > MAX_STRING) {
+                    throw new IllegalArgumentException("String of " + bytes.length + " bytes, over the AJP13 limit of " + MAX_STRING);
+                }
+                integer(bytes.length);
+                literal.writeBytes(bytes);
+                literal.write(0x00);
+                return;
+            }
+            //Split on markers, longest marker first when several match at the same index (e.g. FUZZ10 and FUZZ1)
+            List<byte[]> parts = new ArrayList<>();
+            List<Integer> slots = new ArrayList<>();
+            int start = 0;
+            int pos = 0;
+            while (pos < s.length()) {
+                int found = -1;
+                for (int m = 0; m < markers.length; m++) {
+                    if (s.startsWith(markers[m], pos) && (found == -1 || markers[m].length() > markers[found].length())) {
+                        found = m;
+                    }
+                }
+                if (found == -1) {
+                    pos++;
+                    continue;
+                }
+                parts.add(s.substring(start, pos).getBytes(StandardCharsets.UTF_8));
+                slots.add(found);
+                pos += markers[found].length();
+                start = pos;
+            }
+            parts.add(s.substring(start).getBytes(StandardCharsets.UTF_8));
+
+            literals.add(literal.toByteArray());
+            literal.reset();
+            strings.add(new TemplatedString(parts.toArray(new byte[0][]), slots.stream().mapToInt(Integer::intValue).toArray(), kind));
+        }
+
+        private FuzzTemplate build() {
+            literals.add(literal.toByteArray());
+            FuzzTemplate template = new FuzzTemplate(markers, literals, strings);
+            if (template.fixedLength - 4 > MAX_PACKET) {
+                throw new IllegalArgumentException("Packet of " + (template.fixedLength - 4) + " bytes, over the AJP13 limit of " + MAX_PACKET);
+            }
+            return template;
+        }
+    }
+}
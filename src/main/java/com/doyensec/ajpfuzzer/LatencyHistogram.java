@@ -0,0 +1,94 @@
+/*
+ * AJPFuzzer - LatencyHistogram.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Lock-free latency histogram in microseconds, with log-linear buckets as in HdrHistogram:
+ * exact below 16 us, then 16 linear sub-buckets per power of two (about 6% relative error).
+ * Covers up to 2^40 us, recording is a single atomic increment.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 16;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - 3) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long micros) {
+        counts.incrementAndGet(index(Math.max(0, micros)));
+    }
+
+    //Copy of the bucket counts, to compute percentiles over an interval (see percentile)
+    public long[] snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    //Value (us) below which the given fraction of the recorded latencies fall, -1 if empty
+    public static long percentile(long[] counts, double fraction) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(counts.length - 1);
+    }
+
+    //Number of latencies up to the given value (us)
+    public static long countUpTo(long[] counts, long micros) {
+        long count = 0;
+        for (int i = 0; i < counts.length && upperBound(i) <= micros; i++) {
+            count += counts[i];
+        }
+        return count;
+    }
+
+    public static long[] difference(long[] current, long[] previous) {
+        long[] diff = new long[current.length];
+        for (int i = 0; i < current.length; i++) {
+            diff[i] = current[i] - previous[i];
+        }
+        return diff;
+    }
+
+    protected static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (value >> (exponent - 4)) & (SUB_BUCKETS - 1);
+        return (exponent - 3) * SUB_BUCKETS + sub;
+    }
+
+    //Largest value of a bucket
+    protected static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + 3;
+        int sub = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 4)) - 1;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * AJPFuzzer - Metrics.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Live counters of the exchanges with the target: requests, resets, timeouts and latency histograms,
+ * by test case and by type of the first reply message. Recording is lock-free (LongAdder and
+ * LatencyHistogram), so the fuzzing workers never contend on it.
+ *
+ * The counters are printed on demand, as a periodic status line, and served in the Prometheus text
+ * format on a local HTTP endpoint (http://127.0.0.1:<port>/metrics).
+ */
+public class Metrics {
+
+    //Type of the first reply message, or what happened instead
+    private static final String[] TYPES = new String[16];
+    private static final int OTHER = 11;
+    private static final int TIMEOUT = 12;
+    private static final int RESET = 13;
+    private static final int ERROR = 14;
+
+    static {
+        TYPES[3] = "SendBodyChunk";
+        TYPES[4] = "SendHeaders";
+        TYPES[5] = "EndResponse";
+        TYPES[6] = "GetBodyChunk";
+        TYPES[Utils.CPONG_REPLY] = "CPong";
+        TYPES[OTHER] = "Other";
+        TYPES[TIMEOUT] = "timeout";
+        TYPES[RESET] = "reset";
+        TYPES[ERROR] = "error";
+    }
+
+    private static final int MAX_CACHED = 4096;
+
+    //Prometheus histogram buckets, in seconds
+    private static final double[] BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private static class Series {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder micros = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    //Series by test case (without its ' - ' suffix, to keep one per test case) and type, cached by full name
+    private final ConcurrentHashMap<String, Series[]> series = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Series[]> byLabel = new ConcurrentHashMap<>();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final long started = System.nanoTime();
+
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> statusLine;
+    private HttpServer server;
+
+    //Status line: values at the previous line
+    private long lastRequests;
+    private long lastFailures;
+    private long lastTime;
+    private long[] lastLatency;
+
+    //Account for an exchange of the test case, response is null on I/O error
+    public void record(String testCase, AjpResponse response) {
+        int type;
+        if (response == null) {
+            type = ERROR;
+        } else if (response.getPacketCount() == 0) {
+            type = response.isClosed() ? RESET : TIMEOUT;
+        } else {
+            int first = response.getPacketType(0);
+            type = first >= 0 && first < OTHER && TYPES[first] != null ? first : OTHER;
+        }
+        requests.increment();
+        Series s = series(testCase)[type];
+        s.count.increment();
+        if (type >= TIMEOUT) {
+            failures.increment();
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(response.getElapsedNanos());
+        s.micros.add(micros);
+        s.latency.record(micros);
+        latency.record(micros);
+    }
+
+    private Series[] series(String testCase) {
+        Series[] result = series.get(testCase);
+        if (result == null) {
+            int suffix = testCase.indexOf(" - ");
+            String label = suffix > 0 ? testCase.substring(0, suffix) : testCase;
+            result = byLabel.computeIfAbsent(label, l -> {
+                Series[] all = new Series[TYPES.length];
+                for (int i = 0; i < TYPES.length; i++) {
+                    if (TYPES[i] != null) {
+                        all[i] = new Series();
+                    }
+                }
+                return all;
+            });
+            if (series.size() < MAX_CACHED) {
+                series.putIfAbsent(testCase, result);
+            }
+        }
+        return result;
+    }
+
+    public void print() {
+        long elapsed = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        System.out.println("[*] " + requests.sum() + " requests (" + (requests.sum() * 1000 / elapsed) + " req/s on average), " + failures.sum() + " without reply");
+        for (Map.Entry<String, Series[]> entry : new TreeMap<>(byLabel).entrySet()) {
+            Series[] all = entry.getValue();
+            for (int i = 0; i < all.length; i++) {
+                if (all[i] == null || all[i].count.sum() == 0) {
+                    continue;
+                }
+                String line = String.format("%8d  %-14s %s", all[i].count.sum(), TYPES[i], entry.getKey());
+                if (i < TIMEOUT) {
+                    long[] counts = all[i].latency.snapshot();
+                    line += String.format(" (p50 %s, p99 %s, max %s)", millis(LatencyHistogram.percentile(counts, 0.5)),
+                            millis(LatencyHistogram.percentile(counts, 0.99)), millis(LatencyHistogram.percentile(counts, 1)));
+                }
+                System.out.println(line);
+            }
+        }
+        System.out.println();
+    }
+
+    //Print a status line every <seconds>, 0 to stop
+    public synchronized void setStatusInterval(int seconds) {
+        if (statusLine != null) {
+            statusLine.cancel(false);
+            statusLine = null;
+        }
+        if (seconds <= 0) {
+            return;
+        }
+        lastRequests = requests.sum();
+        lastFailures = failures.sum();
+        lastTime = System.nanoTime();
+        lastLatency = latency.snapshot();
+        statusLine = scheduler().scheduleAtFixedRate(this::printStatus, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    //Serve the counters on 127.0.0.1:<port>/metrics, 0 to stop
+    public synchronized void setServerPort(int port) throws IOException {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (port <= 0) {
+            return;
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.setExecutor(scheduler());
+        server.start();
+    }
+
+    public synchronized void close() {
+        setStatusInterval(0);
+        try {
+            setServerPort(0);
+        } catch (IOException ex) {
+            //Only happens when starting a server
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    //Counters in the Prometheus text exposition format
+    public String prometheus() {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP ajpfuzzer_requests_total Requests sent, by test case and first reply message type\n");
+        out.append("# TYPE ajpfuzzer_requests_total counter\n");
+        for (Map.Entry<String, Series[]> entry : new TreeMap<>(byLabel).entrySet()) {
+            Series[] all = entry.getValue();
+            for (int i = 0; i < all.length; i++) {
+                if (all[i] != null && all[i].count.sum() > 0) {
+                    out.append("ajpfuzzer_requests_total").append(labels(entry.getKey(), TYPES[i], null)).append(' ').append(all[i].count.sum()).append('\n');
+                }
+            }
+        }
+        out.append("# HELP ajpfuzzer_latency_seconds Time to the last reply packet, by test case and first reply message type\n");
+        out.append("# TYPE ajpfuzzer_latency_seconds histogram\n");
+        for (Map.Entry<String, Series[]> entry : new TreeMap<>(byLabel).entrySet()) {
+            Series[] all = entry.getValue();
+            for (int i = 0; i < TIMEOUT; i++) {
+                if (all[i] == null || all[i].count.sum() == 0) {
+                    continue;
+                }
+                long[] counts = all[i].latency.snapshot();
+                long total = 0;
+                for (long count : counts) {
+                    total += count;
+                }
+                for (double bucket : BUCKETS) {
+                    out.append("ajpfuzzer_latency_seconds_bucket").append(labels(entry.getKey(), TYPES[i], Double.toString(bucket)))
+                            .append(' ').append(LatencyHistogram.countUpTo(counts, (long) (bucket * 1e6))).append('\n');
+                }
+                out.append("ajpfuzzer_latency_seconds_bucket").append(labels(entry.getKey(), TYPES[i], "+Inf")).append(' ').append(total).append('\n');
+                out.append("ajpfuzzer_latency_seconds_sum").append(labels(entry.getKey(), TYPES[i], null)).append(' ').append(all[i].micros.sum() / 1e6).append('\n');
+                out.append("ajpfuzzer_latency_seconds_count").append(labels(entry.getKey(), TYPES[i], null)).append(' ').append(total).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private void printStatus() {
+        long now = System.nanoTime();
+        long total = requests.sum();
+        long failed = failures.sum();
+        long[] counts = latency.snapshot();
+        long[] interval = LatencyHistogram.difference(counts, lastLatency);
+        double seconds = Math.max(1e-3, (now - lastTime) / 1e9);
+        System.out.println(String.format("[*] %d requests, %.1f req/s, %d without reply, latency p50 %s p99 %s",
+                total, (total - lastRequests) / seconds, failed - lastFailures,
+                millis(LatencyHistogram.percentile(interval, 0.5)), millis(LatencyHistogram.percentile(interval, 0.99))));
+        lastRequests = total;
+        lastFailures = failed;
+        lastTime = now;
+        lastLatency = counts;
+    }
+
+    private ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    private static String labels(String testCase, String type, String le) {
+        return "{test=\"" + testCase.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\",type=\"" + type + "\""
+                + (le == null ? "" : ",le=\"" + le + "\"") + "}";
+    }
+
+    private static String millis(long micros) {
+        return micros < 0 ? "-" : String.format("%.1f ms", micros / 1000.0);
+    }
+}
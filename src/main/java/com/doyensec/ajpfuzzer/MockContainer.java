@@ -0,0 +1,339 @@
+/*
+ * AJPFuzzer - MockContainer.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Loopback AJP13 container, to measure and test the fuzzer without Tomcat or Jetty. It answers
+ * CPing with CPong, and ForwardRequest with SendHeaders, SendBodyChunk packets and EndResponse
+ * (keeping the connection). A request body announced by Content-Length is read first, asking for
+ * each chunk after the first one with GetBodyChunk, as Tomcat does.
+ *
+ * Faults are injected on demand: a delay before every reply, a share of connections reset or
+ * requests left without reply, and a crash (the container stops listening and drops every
+ * connection) when a request contains a marker. Oversized replies are configured with the body size.
+ *
+ * It runs inside the shell (mockserver command), or on its own, e.g. as restart command:
+ * java -cp ... com.doyensec.ajpfuzzer.MockContainer <port> [crash marker]
+ */
+public class MockContainer implements Closeable {
+
+    private static final int MAX_CHUNK = 0xFFFF - 4;
+    private static final int BODY_CHUNK_REQUEST = 8186;
+
+    private ServerSocket server;
+    private Thread acceptor;
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    //Reply and faults, changed while running
+    private volatile byte[] reply;
+    private volatile String replyDescription;
+    private volatile int latency;
+    private volatile double resetRate;
+    private volatile double hangRate;
+    private volatile byte[] crashMarker;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder cpings = new LongAdder();
+    private final LongAdder resets = new LongAdder();
+    private final LongAdder hangs = new LongAdder();
+
+    public MockContainer() {
+        setReply(200, 16, 8184);
+    }
+
+    public int getPort() {
+        return server == null ? -1 : server.getLocalPort();
+    }
+
+    public boolean isRunning() {
+        return server != null && !server.isClosed();
+    }
+
+    //Reply to ForwardRequest with this status and a body of bodySize bytes, in chunks of chunkSize bytes
+    public final void setReply(int status, int bodySize, int chunkSize) {
+        chunkSize = Math.max(1, Math.min(chunkSize, MAX_CHUNK));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bodySize + 64);
+        byte[] message = (status == 200 ? "OK" : "Mock").getBytes(StandardCharsets.ISO_8859_1);
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        headers.write(Utils.SEND_HEADERS);
+        u16(headers, status);
+        string(headers, message);
+        u16(headers, 2);
+        u16(headers, 0xA001); //Content-Type
+        string(headers, "text/html".getBytes(StandardCharsets.ISO_8859_1));
+        u16(headers, 0xA003); //Content-Length
+        string(headers, Integer.toString(bodySize).getBytes(StandardCharsets.ISO_8859_1));
+        packet(out, headers.toByteArray());
+
+        byte[] body = new byte[bodySize];
+        for (int i = 0; i < bodySize; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        for (int offset = 0; offset < bodySize; offset += chunkSize) {
+            int length = Math.min(chunkSize, bodySize - offset);
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream(length + 4);
+            chunk.write(Utils.SEND_BODY_CHUNK);
+            u16(chunk, length);
+            chunk.write(body, offset, length);
+            chunk.write(0);
+            packet(out, chunk.toByteArray());
+        }
+        packet(out, new byte[]{Utils.END_RESPONSE, 1});
+        reply = out.toByteArray();
+        replyDescription = status + ", " + bodySize + " bytes body in " + (bodySize == 0 ? 0 : (bodySize + chunkSize - 1) / chunkSize)
+                + " chunks (" + reply.length + " bytes)";
+    }
+
+    //Delay before every reply (ms), share of connections reset and of requests without reply (0 - 1)
+    public void setFaults(int latency, double resetRate, double hangRate) {
+        this.latency = latency;
+        this.resetRate = resetRate;
+        this.hangRate = hangRate;
+    }
+
+    //Crash when a request contains this marker, null to disable
+    public void setCrashMarker(String marker) {
+        crashMarker = marker == null ? null : marker.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    //Listen on 127.0.0.1:port (0 = any free port). A running container is stopped first
+    public void start(int port) throws IOException {
+        close();
+        synchronized (this) {
+            server = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+            acceptor = Thread.ofPlatform().daemon().name("mock-" + getPort()).start(this::acceptLoop);
+        }
+    }
+
+    /*
+     * Stop listening, then drop every connection. The listening socket is only released once the accept
+     * loop returns: wait for it, so that new connections are refused by the time the open ones drop,
+     * as after a crash.
+     */
+    @Override
+    public void close() {
+        Thread stopping;
+        synchronized (this) {
+            if (server != null) {
+                try {
+                    server.close();
+                } catch (IOException ex) {
+                    //Closing anyway
+                }
+            }
+            stopping = acceptor;
+            acceptor = null;
+        }
+        if (stopping != null && stopping != Thread.currentThread()) {
+            try {
+                stopping.join(1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    //Closing anyway
+                }
+            }
+            sockets.clear();
+        }
+    }
+
+    public void printStats() {
+        System.out.println("[*] Mock container " + (isRunning() ? "on 127.0.0.1:" + getPort() : "stopped") + ", reply " + replyDescription);
+        System.out.println("[*] Latency " + latency + " ms, resets " + Math.round(resetRate * 100) + "%, no reply " + Math.round(hangRate * 100) + "%"
+                + (crashMarker == null ? "" : ", crash on '" + new String(crashMarker, StandardCharsets.ISO_8859_1) + "'"));
+        System.out.println("[*] Requests: " + requests.sum() + ", CPings: " + cpings.sum() + ", resets: " + resets.sum() + ", no reply: " + hangs.sum() + "\n");
+    }
+
+    private void acceptLoop() {
+        ServerSocket listening = server;
+        while (!listening.isClosed()) {
+            try {
+                Socket socket = listening.accept();
+                socket.setTcpNoDelay(true);
+                synchronized (this) {
+                    //accept may still return a connection while the container is being closed
+                    if (listening.isClosed()) {
+                        socket.close();
+                        return;
+                    }
+                    sockets.add(socket);
+                }
+                Thread.ofVirtual().start(() -> serve(socket));
+            } catch (IOException ex) {
+                //Closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            long bodyRemaining = 0;
+            while (true) {
+                int magic;
+                try {
+                    magic = in.readUnsignedShort();
+                } catch (EOFException ex) {
+                    return;
+                }
+                if (magic != 0x1234) {
+                    return; //Not a container-bound packet: drop the connection
+                }
+                byte[] packet = new byte[4 + in.readUnsignedShort()];
+                packet[0] = 0x12;
+                packet[1] = 0x34;
+                packet[2] = (byte) ((packet.length - 4) >> 8);
+                packet[3] = (byte) (packet.length - 4);
+                in.readFully(packet, 4, packet.length - 4);
+
+                byte[] marker = crashMarker;
+                if (marker != null && contains(packet, marker)) {
+                    System.out.println("[!] Mock container crashed on '" + new String(marker, StandardCharsets.ISO_8859_1) + "'");
+                    close();
+                    return;
+                }
+
+                if (bodyRemaining > 0) {
+                    //Body chunk: length of the data, data
+                    int length = packet.length >= 6 ? ((packet[4] & 0xFF) << 8) | (packet[5] & 0xFF) : 0;
+                    bodyRemaining = length == 0 ? 0 : bodyRemaining - length;
+                    if (bodyRemaining > 0) {
+                        out.write(new byte[]{'A', 'B', 0, 3, Utils.GET_BODY_CHUNK, (byte) (BODY_CHUNK_REQUEST >> 8), (byte) BODY_CHUNK_REQUEST});
+                        out.flush();
+                    } else if (!reply(socket, out)) {
+                        return;
+                    }
+                    continue;
+                }
+                if (packet.length == 4) {
+                    continue; //Empty body chunk
+                }
+                switch (packet[4]) {
+                    case 10: //CPing
+                        cpings.increment();
+                        out.write(new byte[]{'A', 'B', 0, 1, Utils.CPONG_REPLY});
+                        out.flush();
+                        break;
+                    case AjpCodes.FORWARD_REQUEST:
+                        requests.increment();
+                        ForwardRequest request = ForwardRequest.decode(packet);
+                        if (request == null) {
+                            return;
+                        }
+                        //The first body chunk follows the request without being asked for
+                        bodyRemaining = Math.max(0, request.contentLength());
+                        if (bodyRemaining == 0 && !reply(socket, out)) {
+                            return;
+                        }
+                        break;
+                    default:
+                        //Shutdown, Ping and unknown types are ignored
+                        break;
+                }
+            }
+        } catch (IOException ex) {
+            //Connection closed or reset
+        } finally {
+            sockets.remove(socket);
+        }
+    }
+
+    //Send the reply, unless a fault is injected. Return false if the connection was reset
+    private boolean reply(Socket socket, OutputStream out) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (resetRate > 0 && random.nextDouble() < resetRate) {
+            resets.increment();
+            socket.setSoLinger(true, 0); //RST
+            return false;
+        }
+        if (hangRate > 0 && random.nextDouble() < hangRate) {
+            hangs.increment();
+            return true;
+        }
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        out.write(reply);
+        out.flush();
+        return true;
+    }
+
+    private static boolean contains(byte[] data, byte[] marker) {
+        outer:
+        for (int i = 0; i <= data.length - marker.length; i++) {
+            for (int j = 0; j < marker.length; j++) {
+                if (data[i + j] != marker[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static void packet(ByteArrayOutputStream out, byte[] payload) {
+        out.write('A');
+        out.write('B');
+        u16(out, payload.length);
+        out.write(payload, 0, payload.length);
+    }
+
+    private static void u16(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static void string(ByteArrayOutputStream out, byte[] value) {
+        u16(out, value.length);
+        out.write(value, 0, value.length);
+        out.write(0);
+    }
+
+    //Standalone container: MockContainer <port> [crash marker]
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: MockContainer <port> [crash marker]");
+            System.exit(1);
+        }
+        MockContainer mock = new MockContainer();
+        if (args.length > 1) {
+            mock.setCrashMarker(args[1]);
+        }
+        mock.start(Integer.parseInt(args[0]));
+        System.out.println("[*] Mock AJP13 container listening on 127.0.0.1:" + mock.getPort());
+        while (mock.isRunning()) {
+            Thread.sleep(500);
+        }
+        System.exit(1); //Crashed
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * AJPFuzzer - Mutator.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+/*
+ * Byte-level mutations for corpus-based fuzzing. A mutant is obtained by stacking 1 to 8
+ * random operators ("havoc"): bit flips, interesting 8/16-bit values (AJP13 lengths are
+ * 16-bit big endian), random bytes, block deletion, duplication and splicing with another input.
+ */
+public class Mutator {
+
+    private static final byte[] INTERESTING_8 = {0x00, 0x01, 0x7F, (byte) 0x80, (byte) 0xFF};
+    private static final int[] INTERESTING_16 = {0x0000, 0x0001, 0x00FF, 0x0100, 0x1FFF, 0x2000, 0x7FFF, 0x8000, 0xA00F, 0xFFFE, 0xFFFF};
+
+    //Mutants never grow beyond the largest AJP13 packet
+    private static final int MAX_SIZE = AjpPacketSplitter.MAX_PACKET_SIZE;
+
+    private final RandomGenerator random;
+
+    public Mutator(RandomGenerator random) {
+        this.random = random;
+    }
+
+    //Mutate a copy of input, possibly splicing in bytes from other (may be null)
+    public byte[] havoc(byte[] input, byte[] other) {
+        byte[] data = input.length == 0 ? new byte[1] : input.clone();
+        int stack = 1 << random.nextInt(4);
+        for (int i = 0; i < stack; i++) {
+            data = mutate(data, other);
+        }
+        return data;
+    }
+
+    private byte[] mutate(byte[] data, byte[] other) {
+        int pos = random.nextInt(data.length);
+        switch (random.nextInt(8)) {
+            case 0:
+                data[pos] ^= (byte) (1 << random.nextInt(8));
+                return data;
+            case 1:
+                data[pos] = INTERESTING_8[random.nextInt(INTERESTING_8.length)];
+                return data;
+            case 2:
+                if (pos + 1 < data.length) {
+                    int value = INTERESTING_16[random.nextInt(INTERESTING_16.length)];
+                    data[pos] = (byte) (value >> 8);
+                    data[pos + 1] = (byte) value;
+                }
+                return data;
+            case 3:
+                data[pos] = (byte) random.nextInt(256);
+                return data;
+            case 4:
+                return delete(data, pos);
+            case 5:
+                return duplicate(data, pos);
+            case 6:
+                return other == null || other.length == 0 ? data : splice(data, other, pos);
+            default:
+                //Truncate, as in fuzzslice
+                return pos == 0 ? data : Arrays.copyOf(data, pos);
+        }
+    }
+
+    private byte[] delete(byte[] data, int pos) {
+        if (data.length < 2) {
+            return data;
+        }
+        int length = 1 + random.nextInt(Math.min(data.length - pos, 64));
+        if (length == data.length) {
+            length--;
+        }
+        byte[] result = new byte[data.length - length];
+        System.arraycopy(data, 0, result, 0, pos);
+        System.arraycopy(data, pos + length, result, pos, data.length - pos - length);
+        return result;
+    }
+
+    //Insert a copy of a block of data at a random position
+    private byte[] duplicate(byte[] data, int pos) {
+        int length = 1 + random.nextInt(Math.min(data.length - pos, 64));
+        if (data.length + length > MAX_SIZE) {
+            return data;
+        }
+        int at = random.nextInt(data.length + 1);
+        byte[] result = new byte[data.length + length];
+        System.arraycopy(data, 0, result, 0, at);
+        System.arraycopy(data, pos, result, at, length);
+        System.arraycopy(data, at, result, at + length, data.length - at);
+        return result;
+    }
+
+    //Head of data followed by the tail of other
+    private byte[] splice(byte[] data, byte[] other, int pos) {
+        int from = random.nextInt(other.length);
+        int length = Math.min(other.length - from, MAX_SIZE - pos);
+        byte[] result = Arrays.copyOf(data, pos + length);
+        System.arraycopy(other, from, result, pos, length);
+        return result;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * AJPFuzzer - NioFuzzer.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/*
+ * Send a list of payloads over many AJP13 connections multiplexed by a single NioTransport.
+ * Each connection carries one exchange at a time: the next payload is sent as soon as the
+ * previous exchange completes (EndResponse, GetBodyChunk, CPong) or its deadline expires.
+ * With a rate limit, a payload waiting for its turn is held back without blocking the other connections.
+ */
+public class NioFuzzer<T> implements NioTransport.Listener {
+
+    //Per-connection state: the payload in flight and the packets received for it
+    private static class Exchange {
+
+        private long index = -1;
+        private Object payload;
+        private long sentAt;
+        private byte[] request;
+        private ReceiveBuffer received;
+        private boolean complete;
+        private IOException error;
+        private final RateLimiter.Bucket bucket = new RateLimiter.Bucket();
+        private ByteBuffer message; //held back by the rate limiter until notBefore
+        private long notBefore;
+    }
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int receiveTimeout;
+    private final int maxResponseSize;
+    private final ResultLog log;
+    private final BehaviorTable behaviors;
+    private final boolean dedup;
+    private final RateLimiter limiter;
+    private final Metrics metrics;
+    private final CorpusStore store;
+    private NioTransport transport;
+    private PayloadSource<T> payloads;
+    private Function<T, ByteBuffer> builder;
+    private String testCase;
+    private int inFlight;
+    private int done;
+    private int errors;
+    private final List<NioTransport.Connection> closed = new ArrayList<>();
+    private final List<NioTransport.Connection> delayed = new ArrayList<>();
+
+    //Target, receive and logging settings are taken from the shell connection
+    public NioFuzzer(AJPFuzzer ajpsocket, int connections) {
+        this.host = ajpsocket.getHost();
+        this.port = ajpsocket.getPort();
+        this.connections = connections;
+        this.receiveTimeout = ajpsocket.getReceiveTimeout();
+        this.maxResponseSize = ajpsocket.getMaxResponseSize();
+        this.log = ajpsocket.getResultLog();
+        this.behaviors = ajpsocket.getBehaviors();
+        this.dedup = ajpsocket.isDedup();
+        this.limiter = ajpsocket.getRateLimiter();
+        this.metrics = ajpsocket.getMetrics();
+        this.store = ajpsocket.getCorpusStore();
+    }
+
+    //Payloads answered or expired, and exchanges ended by a connection error, in the last run
+    public int getDone() {
+        return done;
+    }
+
+    public int getErrors() {
+        return errors;
+    }
+
+    public void run(PayloadSource<T> payloads, Function<T, ByteBuffer> builder, String testCase) throws IOException {
+        this.payloads = payloads;
+        this.builder = builder;
+        this.testCase = testCase;
+        long start = System.nanoTime();
+
+        System.out.println("[*] Sending payloads from line " + payloads.getIndex() + " using " + connections + " multiplexed connections to " + host + ":" + port);
+        try (NioTransport nio = new NioTransport(this)) {
+            transport = nio;
+            List<NioTransport.Connection> open = new ArrayList<>();
+            for (int c = 0; c < connections && payloads.hasNext(); c++) {
+                NioTransport.Connection connection = transport.open(host, port);
+                connection.setAttachment(new Exchange());
+                open.add(connection);
+                sendNext(connection);
+            }
+            while (inFlight > 0) {
+                transport.poll(pollTimeout());
+                sendDelayed();
+
+                //Reopen connections closed by the target and carry on with the next payload
+                for (NioTransport.Connection connection : closed) {
+                    Exchange exchange = (Exchange) connection.getAttachment();
+                    NioTransport.Connection reopened = transport.open(host, port);
+                    reopened.setAttachment(exchange);
+                    open.set(open.indexOf(connection), reopened);
+                    if (exchange.message != null) {
+                        delayed.set(delayed.indexOf(connection), reopened); //not sent yet
+                    } else {
+                        complete(reopened, exchange, true);
+                    }
+                }
+                closed.clear();
+
+                //Expire exchanges past their deadline. A late reply would be read as the response to the
+                //next payload, so the next one goes on a new connection
+                long now = System.nanoTime();
+                for (int i = 0; i < open.size(); i++) {
+                    NioTransport.Connection connection = open.get(i);
+                    Exchange exchange = (Exchange) connection.getAttachment();
+                    if (exchange.index >= 0 && exchange.message == null && TimeUnit.NANOSECONDS.toMillis(now - exchange.sentAt) >= receiveTimeout) {
+                        connection.setAttachment(null); //not a target close, see onClosed
+                        transport.close(connection);
+                        NioTransport.Connection reopened = transport.open(host, port);
+                        reopened.setAttachment(exchange);
+                        open.set(i, reopened);
+                        complete(reopened, exchange, false);
+                    }
+                }
+            }
+        }
+
+        long elapsed = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        System.out.println("[*] Done: " + done + " payloads, " + errors + " errors, " + behaviors.size() + " distinct behaviors, " + elapsed + " ms (" + (done * 1000L / elapsed) + " req/s)\n");
+    }
+
+    @Override
+    public void onPacket(NioTransport.Connection connection, ByteBuffer packet) {
+        Exchange exchange = (Exchange) connection.getAttachment();
+        if (exchange.index < 0) {
+            return;
+        }
+        //Packets are views on a direct buffer
+        if (exchange.received.beginPacket(packet.remaining())) {
+            packet.get(packet.position(), exchange.received.array(), exchange.received.size(), packet.remaining());
+            exchange.received.advance(packet.remaining());
+        }
+        if (Utils.isLastPacket(packet)) {
+            exchange.complete = true;
+            complete(connection, exchange, false);
+        }
+    }
+
+    @Override
+    public void onClosed(NioTransport.Connection connection, IOException cause) {
+        Exchange exchange = (Exchange) connection.getAttachment();
+        if (exchange == null) {
+            return; //closed on purpose, the exchange moved to a new connection
+        }
+        if (exchange.message != null) {
+            closed.add(connection); //closed while a payload is held back: send it on a new connection
+        } else if (exchange.index >= 0) {
+            errors++;
+            exchange.error = cause;
+            closed.add(connection);
+        }
+    }
+
+    private void complete(NioTransport.Connection connection, Exchange exchange, boolean connectionClosed) {
+        AjpResponse response = exchange.received.toResponse(exchange.complete, connectionClosed, System.nanoTime() - exchange.sentAt);
+        exchange.received.release();
+        limiter.record(response);
+        metrics.record(testCase, exchange.error == null ? response : null);
+        String result = response.toString();
+        String fingerprint = ResponseFingerprint.of(response);
+        if (exchange.error != null) {
+            result += " (" + exchange.error.getMessage() + ")";
+            fingerprint = ResponseFingerprint.CONNECTION_ERROR;
+        }
+        boolean novel = behaviors.record(fingerprint, testCase, exchange.index, exchange.payload);
+        if (novel && store != null) {
+            store.keep(exchange.request, testCase, exchange.payload, fingerprint);
+        }
+        if (novel || !dedup) {
+            System.out.println((novel ? "[+] " : "[*] ") + testCase + " #" + exchange.index + " '" + exchange.payload + "' -> " + result);
+            if (log != null) {
+                log.log(testCase, exchange.index, exchange.payload, exchange.request, response.getBytes(), result, fingerprint, response.getElapsedNanos());
+            }
+        }
+        done++;
+        inFlight--;
+        sendNext(connection);
+    }
+
+    private void sendNext(NioTransport.Connection connection) {
+        Exchange exchange = (Exchange) connection.getAttachment();
+        ByteBuffer message = null;
+        while (message == null) {
+            if (!payloads.hasNext()) {
+                exchange.index = -1;
+                return;
+            }
+            exchange.index = payloads.getIndex();
+            T payload = payloads.next();
+            exchange.payload = payload;
+            try {
+                message = builder.apply(payload);
+            } catch (IllegalArgumentException ex) {
+                System.out.println("[!] " + testCase + " #" + exchange.index + " '" + exchange.payload + "' skipped: " + ex.getMessage());
+            }
+        }
+        exchange.received = ReceiveBuffer.acquire(maxResponseSize);
+        exchange.complete = false;
+        exchange.error = null;
+        inFlight++;
+        if (log != null || store != null) {
+            exchange.request = Arrays.copyOfRange(message.array(), message.arrayOffset() + message.position(), message.arrayOffset() + message.limit());
+        }
+        long wait = limiter.reserve(exchange.bucket);
+        if (wait > 0) {
+            //The encoded message is a view on a reusable buffer, overwritten by the next payload: keep a copy
+            byte[] copy = exchange.request != null ? exchange.request
+                    : Arrays.copyOfRange(message.array(), message.arrayOffset() + message.position(), message.arrayOffset() + message.limit());
+            exchange.message = ByteBuffer.wrap(copy);
+            exchange.notBefore = System.nanoTime() + wait;
+            delayed.add(connection);
+            return;
+        }
+        transmit(connection, exchange, message);
+    }
+
+    private void transmit(NioTransport.Connection connection, Exchange exchange, ByteBuffer message) {
+        exchange.message = null;
+        exchange.sentAt = System.nanoTime();
+        transport.send(connection, message.array(), message.arrayOffset() + message.position(), message.remaining());
+    }
+
+    //Send the payloads held back by the rate limiter whose turn has come
+    private void sendDelayed() {
+        long now = System.nanoTime();
+        for (int i = delayed.size() - 1; i >= 0; i--) {
+            NioTransport.Connection connection = delayed.get(i);
+            Exchange exchange = (Exchange) connection.getAttachment();
+            if (now - exchange.notBefore >= 0) {
+                delayed.remove(i);
+                transmit(connection, exchange, exchange.message);
+            }
+        }
+    }
+
+    //Wake up for the next held back payload, at most every 10 ms to check deadlines
+    private long pollTimeout() {
+        long timeout = 10;
+        long now = System.nanoTime();
+        for (NioTransport.Connection connection : delayed) {
+            Exchange exchange = (Exchange) connection.getAttachment();
+            timeout = Math.min(timeout, TimeUnit.NANOSECONDS.toMillis(exchange.notBefore - now));
+        }
+        return Math.max(1, timeout);
+    }
+}
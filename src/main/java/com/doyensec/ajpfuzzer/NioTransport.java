@@ -0,0 +1,206 @@
+/*
+ * AJPFuzzer - NioTransport.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/*
+ * Non-blocking AJP13 transport multiplexing many connections on a single Selector.
+ * Every connection owns two reusable direct buffers: outgoing data is appended to the
+ * write buffer, incoming data is split in place by an AjpPacketSplitter and each packet
+ * is handed to the Listener as a shared view, valid only during the callback. The buffers
+ * of a closed connection are kept on a small free list and given to the next one opened,
+ * so reconnecting does not allocate direct memory.
+ *
+ * Not thread-safe: open, send, poll and close must be called from the same thread.
+ * Use one transport per thread to spread the connections over a few threads.
+ */
+public class NioTransport implements Closeable {
+
+    public interface Listener {
+
+        void onPacket(Connection connection, ByteBuffer packet);
+
+        void onClosed(Connection connection, IOException cause);
+    }
+
+    public static class Connection {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer out;
+        private final AjpPacketSplitter in;
+        private AjpPacketSplitter.Handler handler;
+        private Object attachment;
+
+        private Connection(SocketChannel channel, SelectionKey key, ByteBuffer out, ByteBuffer in) {
+            this.channel = channel;
+            this.key = key;
+            this.out = out;
+            this.in = new AjpPacketSplitter(in);
+        }
+
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+    }
+
+    //Direct buffers kept for reuse once their connection is closed
+    private static final int MAX_FREE_BUFFERS = 16;
+
+    private final Selector selector;
+    private final Listener listener;
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+
+    public NioTransport(Listener listener) throws IOException {
+        this.selector = Selector.open();
+        this.listener = listener;
+    }
+
+    //Start a non-blocking connect. Data can be sent right away, it is flushed once connected
+    public Connection open(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        boolean connected = channel.connect(new InetSocketAddress(host, port));
+        SelectionKey key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+        Connection connection = new Connection(channel, key, takeBuffer(), takeBuffer());
+        connection.handler = packet -> listener.onPacket(connection, packet);
+        key.attach(connection);
+        return connection;
+    }
+
+    public void send(Connection connection, byte[] data) {
+        send(connection, data, 0, data.length);
+    }
+
+    //Data sent on a closed connection is discarded: its buffers may already belong to another one
+    public void send(Connection connection, byte[] data, int offset, int length) {
+        if (!connection.isOpen()) {
+            return;
+        }
+        if (connection.out.remaining() < length) {
+            //Grow the write buffer, keeping pending data
+            ByteBuffer bigger = ByteBuffer.allocateDirect(connection.out.position() + length);
+            connection.out.flip();
+            bigger.put(connection.out);
+            connection.out = bigger;
+        }
+        connection.out.put(data, offset, length);
+        if (connection.key.isValid() && connection.channel.isConnected()) {
+            connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    //Wait up to timeout ms for events, then complete connects, flush writes and deliver received packets
+    public void poll(long timeout) throws IOException {
+        if (timeout > 0) {
+            selector.select(timeout);
+        } else {
+            selector.selectNow();
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isValid() && key.isConnectable()) {
+                    connection.channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ | (connection.out.position() > 0 ? SelectionKey.OP_WRITE : 0));
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush(connection);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(connection);
+                }
+            } catch (IOException ex) {
+                close(connection, ex);
+            }
+        }
+    }
+
+    private void flush(Connection connection) throws IOException {
+        connection.out.flip();
+        connection.channel.write(connection.out);
+        connection.out.compact();
+        if (connection.out.position() == 0) {
+            connection.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        int read = connection.channel.read(connection.in.buffer());
+        if (read < 0) {
+            close(connection, null);
+            return;
+        }
+        connection.in.split(connection.handler);
+    }
+
+    public void close(Connection connection) {
+        close(connection, null);
+    }
+
+    private void close(Connection connection, IOException cause) {
+        if (!connection.isOpen()) {
+            return;
+        }
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException ex) {
+            //ignore, the channel is gone anyway
+        }
+        listener.onClosed(connection, cause);
+        recycle(connection.out);
+        recycle(connection.in.buffer());
+    }
+
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(AjpPacketSplitter.MAX_PACKET_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    //Grown write buffers are not kept
+    private void recycle(ByteBuffer buffer) {
+        if (buffer.capacity() == AjpPacketSplitter.MAX_PACKET_SIZE && freeBuffers.size() < MAX_FREE_BUFFERS) {
+            freeBuffers.push(buffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (SelectionKey key : selector.keys()) {
+            Connection connection = (Connection) key.attachment();
+            key.cancel();
+            connection.channel.close();
+        }
+        selector.close();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * AJPFuzzer - ParallelFuzzer.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/*
+ * Send a list of payloads using a pool of workers. Each worker takes a connection from the
+ * shell's AjpConnectionPool for every payload (reused according to the connection policy)
+ * and pulls the next line from the shared Wordlist, so the list is split dynamically across
+ * workers. Results are reported one line per payload.
+ */
+public class ParallelFuzzer {
+
+    private final String host;
+    private final int port;
+    private final int concurrency;
+    private final int receiveTimeout;
+    private final boolean virtualThreads;
+    private final ResultLog log;
+    private final BehaviorTable behaviors;
+    private final boolean dedup;
+    private final AjpConnectionPool connections;
+    private final RateLimiter limiter;
+    private final Metrics metrics;
+    private final CorpusStore store;
+
+    //Target and receive settings are taken from the shell connection
+    public ParallelFuzzer(AJPFuzzer ajpsocket, int concurrency) {
+        this.host = ajpsocket.getHost();
+        this.port = ajpsocket.getPort();
+        this.concurrency = concurrency;
+        this.receiveTimeout = ajpsocket.getReceiveTimeout();
+        this.virtualThreads = ajpsocket.isVirtualThreads();
+        this.log = ajpsocket.getResultLog();
+        this.behaviors = ajpsocket.getBehaviors();
+        this.dedup = ajpsocket.isDedup();
+        this.connections = ajpsocket.getPool();
+        this.limiter = ajpsocket.getRateLimiter();
+        this.metrics = ajpsocket.getMetrics();
+        this.store = ajpsocket.getCorpusStore();
+    }
+
+    //One virtual thread per task, or a fixed pool of platform threads
+    protected static ExecutorService newExecutor(int threads, boolean virtualThreads) {
+        return virtualThreads ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newFixedThreadPool(threads);
+    }
+
+    public <T> void run(PayloadSource<T> payloads, Function<T, ByteBuffer> builder, String testCase) {
+        AtomicInteger sent = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        long start = System.nanoTime();
+        //Not synchronized: a virtual thread blocked in a monitor (reading the list) would pin its carrier
+        ReentrantLock payloadLock = new ReentrantLock();
+
+        System.out.println("[*] Sending payloads from line " + payloads.getIndex() + " using " + concurrency + " connections to " + host + ":" + port + (virtualThreads ? " (virtual threads)" : ""));
+        ExecutorService pool = newExecutor(concurrency, virtualThreads);
+        for (int w = 0; w < concurrency; w++) {
+            pool.execute(() -> {
+                while (true) {
+                    long index;
+                    T payload;
+                    payloadLock.lock();
+                    try {
+                        if (!payloads.hasNext()) {
+                            break;
+                        }
+                        index = payloads.getIndex();
+                        payload = payloads.next();
+                    } finally {
+                        payloadLock.unlock();
+                    }
+                    ByteBuffer message;
+                    try {
+                        message = builder.apply(payload);
+                    } catch (IllegalArgumentException ex) {
+                        System.out.println("[!] " + testCase + " #" + index + " '" + payload + "' skipped: " + ex.getMessage());
+                        continue;
+                    }
+                    byte[] request = log == null && store == null ? null : Arrays.copyOfRange(message.array(), message.arrayOffset() + message.position(), message.arrayOffset() + message.limit());
+                    long sentAt = System.nanoTime();
+                    AjpConnection connection = null;
+                    AjpResponse response = null;
+                    String result;
+                    String fingerprint;
+                    try {
+                        connection = connections.acquire();
+                        limiter.acquire(connection.bucket);
+                        response = connection.exchange(message, receiveTimeout);
+                        result = response.toString();
+                        fingerprint = ResponseFingerprint.of(response);
+                    } catch (IOException ex) {
+                        errors.incrementAndGet();
+                        result = "connection error (" + ex.getMessage() + ")";
+                        fingerprint = ResponseFingerprint.CONNECTION_ERROR;
+                    }
+                    if (connection != null) {
+                        limiter.record(response);
+                        connections.release(connection, response);
+                    }
+                    metrics.record(testCase, response);
+                    sent.incrementAndGet();
+
+                    //With deduplication, only the first occurrence of each behavior is reported
+                    boolean novel = behaviors.record(fingerprint, testCase, index, payload);
+                    if (novel && store != null) {
+                        store.keep(request, testCase, payload, fingerprint);
+                    }
+                    if (novel || !dedup) {
+                        System.out.println((novel ? "[+] " : "[*] ") + testCase + " #" + index + " '" + payload + "' -> " + result);
+                        if (log != null) {
+                            log.log(testCase, index, payload, request, response == null ? null : response.getBytes(), result, fingerprint, System.nanoTime() - sentAt);
+                        }
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException ex) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        long elapsed = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        System.out.println("[*] Done: " + sent.get() + " payloads, " + errors.get() + " errors, " + behaviors.size() + " distinct behaviors, " + elapsed + " ms (" + (sent.get() * 1000L / elapsed) + " req/s)\n");
+    }
+}
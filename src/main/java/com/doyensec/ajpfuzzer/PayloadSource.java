@@ -0,0 +1,18 @@
+/*
+ * AJPFuzzer - PayloadSource.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/*
+ * A lazy sequence of fuzzing payloads, each one numbered from 0.
+ */
+public interface PayloadSource<T> extends Iterator<T>, Closeable {
+
+    //Index of the payload returned by the next call to next()
+    long getIndex();
+}
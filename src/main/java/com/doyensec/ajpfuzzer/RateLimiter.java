@@ -0,0 +1,182 @@
+/*
+ * AJPFuzzer - RateLimiter.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Pacing of the requests sent to the target: a global token bucket shared by all workers, and one
+ * bucket per connection. Rates are in requests per second, 0 means unlimited (the default).
+ *
+ * In adaptive mode the configured rates are ceilings. Every second, the average latency of the replies
+ * and the share of connections reset without reply are compared with their usual (lowest) values:
+ * when either climbs, the rates are halved; while the target keeps up, they grow back by 10% of the
+ * ceiling per second. Shared staging containers stay alive, while fuzzing runs close to their capacity.
+ */
+public class RateLimiter {
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MIN_SAMPLES = 5;
+    private static final double LATENCY_FACTOR = 2.0;
+    private static final double ERROR_MARGIN = 0.1;
+    private static final double MIN_FACTOR = 1.0 / 64;
+    private static final double INCREASE = 0.1;
+
+    //Token bucket, holding up to 100 ms worth of requests
+    public static class Bucket {
+
+        private double rate;
+        private double tokens = 1;
+        private long last = System.nanoTime();
+
+        //Take a token at the given rate: nanoseconds to wait before sending, 0 if one is available
+        private synchronized long reserve(double rate) {
+            long now = System.nanoTime();
+            double burst = Math.max(1, rate / 10);
+            if (rate != this.rate) {
+                this.rate = rate;
+                tokens = Math.min(tokens, burst);
+            }
+            if (rate <= 0) {
+                return 0;
+            }
+            tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+            last = now;
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        }
+    }
+
+    private final Bucket global = new Bucket();
+    private volatile double globalRate;
+    private volatile double connectionRate;
+    private volatile boolean adaptive;
+    private volatile double factor = 1;
+
+    //Adaptive mode: current window and usual values
+    private long windowStart = System.nanoTime();
+    private int samples;
+    private int errors;
+    private int replies;
+    private long latencyNanos;
+    private double baselineLatency;
+    private double baselineErrors = -1;
+
+    public double getGlobalRate() {
+        return globalRate;
+    }
+
+    public double getConnectionRate() {
+        return connectionRate;
+    }
+
+    public void setRates(double globalRate, double connectionRate) {
+        this.globalRate = globalRate;
+        this.connectionRate = connectionRate;
+        factor = 1;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public synchronized void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        factor = 1;
+        baselineLatency = 0;
+        baselineErrors = -1;
+        resetWindow(System.nanoTime());
+    }
+
+    public boolean isLimited() {
+        return globalRate > 0 || connectionRate > 0;
+    }
+
+    //Nanoseconds to wait before sending a request on the connection with this bucket (may be null)
+    public long reserve(Bucket connection) {
+        if (globalRate <= 0 && connectionRate <= 0) {
+            return 0;
+        }
+        double f = factor;
+        long wait = global.reserve(globalRate * f);
+        if (connection != null) {
+            wait = Math.max(wait, connection.reserve(connectionRate * f));
+        }
+        return wait;
+    }
+
+    //Wait until a request can be sent on the connection with this bucket
+    public void acquire(Bucket connection) {
+        long wait = reserve(connection);
+        long deadline = System.nanoTime() + wait;
+        while (wait > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(wait);
+            wait = deadline - System.nanoTime();
+        }
+    }
+
+    //Account for an exchange in adaptive mode: response is null on I/O error
+    public void record(AjpResponse response) {
+        if (!adaptive) {
+            return;
+        }
+        synchronized (this) {
+            samples++;
+            if (response == null || (response.isClosed() && response.getPacketCount() == 0)) {
+                errors++;
+            } else if (response.getPacketCount() > 0) {
+                replies++;
+                latencyNanos += response.getElapsedNanos();
+            }
+            long now = System.nanoTime();
+            if (now - windowStart >= WINDOW_NANOS && samples >= MIN_SAMPLES) {
+                adapt();
+                resetWindow(now);
+            }
+        }
+    }
+
+    public String describe() {
+        if (!isLimited()) {
+            return "unlimited";
+        }
+        return (globalRate > 0 ? String.format("%.1f req/s", globalRate * factor) : "unlimited")
+                + (connectionRate > 0 ? String.format(", %.1f req/s per connection", connectionRate * factor) : "")
+                + (adaptive ? " (adaptive, " + Math.round(factor * 100) + "% of the maximum)" : "");
+    }
+
+    private void adapt() {
+        double errorRate = (double) errors / samples;
+        double latency = replies == 0 ? 0 : (double) latencyNanos / replies;
+        //Usual values: the lowest seen, slowly following the current ones
+        if (latency > 0) {
+            baselineLatency = baselineLatency == 0 || latency < baselineLatency ? latency : baselineLatency + (latency - baselineLatency) / 50;
+        }
+        baselineErrors = baselineErrors < 0 || errorRate < baselineErrors ? errorRate : baselineErrors + (errorRate - baselineErrors) / 50;
+
+        if (errorRate > baselineErrors + ERROR_MARGIN || (latency > 0 && latency > LATENCY_FACTOR * baselineLatency)) {
+            if (factor > MIN_FACTOR) {
+                factor = Math.max(MIN_FACTOR, factor / 2);
+                System.out.println(String.format("[!] Target under stress (latency %.1f ms, %.0f%% resets), slowing down to %s",
+                        latency / 1e6, errorRate * 100, describe()));
+            }
+        } else if (factor < 1) {
+            factor = Math.min(1, factor + INCREASE);
+            if (factor == 1) {
+                System.out.println("[*] Target healthy, back to " + describe());
+            }
+        }
+    }
+
+    private void resetWindow(long now) {
+        windowStart = now;
+        samples = 0;
+        errors = 0;
+        replies = 0;
+        latencyNanos = 0;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * AJPFuzzer - ReceiveBuffer.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ * Growable buffer assembling the packets of one AJP13 response, up to a size limit.
+ * Buffers are pooled: acquire one per exchange and release it once the AjpResponse
+ * has been built, so the grown capacity is reused by the next exchange. The pool is
+ * bounded, in number and in buffer size, so a burst of connections does not pin memory.
+ */
+public class ReceiveBuffer {
+
+    private static final int INITIAL_SIZE = 8192;
+    //Do not keep huge buffers around once released
+    private static final int MAX_POOLED_SIZE = 1024 * 1024;
+    //Buffers kept once released: beyond that, they are left to the garbage collector
+    private static final int MAX_POOLED = 64;
+    private static final BlockingQueue<ReceiveBuffer> POOL = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    private byte[] data = new byte[INITIAL_SIZE];
+    private int[] offsets = new int[16];
+    private int size;
+    private int packets;
+    private int limit;
+    private boolean truncated;
+
+    private ReceiveBuffer() {
+    }
+
+    public static ReceiveBuffer acquire(int limit) {
+        ReceiveBuffer buffer = POOL.poll();
+        if (buffer == null) {
+            buffer = new ReceiveBuffer();
+        }
+        buffer.size = 0;
+        buffer.packets = 0;
+        buffer.truncated = false;
+        buffer.limit = limit;
+        return buffer;
+    }
+
+    public void release() {
+        if (data.length <= MAX_POOLED_SIZE) {
+            POOL.offer(this);
+        }
+    }
+
+    //Start a new packet of the given size, growing the buffer. Return false (truncated) if it exceeds the limit
+    public boolean beginPacket(int packetSize) {
+        if (size + packetSize > limit) {
+            truncated = true;
+            return false;
+        }
+        if (size + packetSize > data.length) {
+            data = Arrays.copyOf(data, Math.min(limit, Math.max(size + packetSize, data.length * 2)));
+        }
+        if (packets == offsets.length) {
+            offsets = Arrays.copyOf(offsets, packets * 2);
+        }
+        offsets[packets++] = size;
+        return true;
+    }
+
+    public byte[] array() {
+        return data;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void advance(int length) {
+        size += length;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public AjpResponse toResponse(boolean complete, boolean closed, long elapsedNanos) {
+        return new AjpResponse(Arrays.copyOf(data, size), Arrays.copyOf(offsets, packets), complete, truncated, closed, elapsedNanos);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * AJPFuzzer - ResponseFingerprint.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Cheap classification of a response, computed from the raw packets (no AjpMessage parsing):
+ * packet types in order (repeated SendBodyChunk collapsed), SendHeaders status code and header
+ * names, EndResponse reuse flag, body length bucket (powers of 2), how the exchange ended
+ * (complete, deadline expired, truncated, closed) and an elapsed time bucket (powers of 10 ms,
+ * not for expired deadlines where the elapsed time is the deadline itself).
+ *
+ * e.g. "SendHeaders 400 [content-type,content-length], SendBodyChunk*, EndResponse reuse=1 | body<=1024 | complete | <10ms"
+ */
+public final class ResponseFingerprint {
+
+    //Coded response header names (0xA0xx)
+    private static final String[] RESPONSE_HEADERS = {
+        "content-type", "content-language", "content-length", "date", "last-modified", "location", "set-cookie",
+        "set-cookie2", "servlet-engine", "status", "www-authenticate"
+    };
+
+    protected static final String CONNECTION_ERROR = "connection error";
+
+    private ResponseFingerprint() {
+    }
+
+    public static String of(AjpResponse response) {
+        StringBuilder sb = new StringBuilder(64);
+        int previous = -2;
+        for (int i = 0; i < response.getPacketCount(); i++) {
+            int type = response.getPacketType(i);
+            if (type == Utils.SEND_BODY_CHUNK && previous == Utils.SEND_BODY_CHUNK) {
+                if (sb.charAt(sb.length() - 1) != '*') sb.append('*');
+                continue;
+            }
+            if (sb.length() > 0) sb.append(", ");
+            ByteBuffer packet = response.getPacket(i);
+            if (type == Utils.SEND_HEADERS) {
+                sendHeaders(sb, packet);
+            } else if (type == Utils.END_RESPONSE && packet.remaining() >= 6) {
+                sb.append("EndResponse reuse=").append(packet.get(packet.position() + 5));
+            } else if (type == -1) {
+                sb.append("unframed");
+            } else {
+                sb.append(Utils.describePacket(packet));
+            }
+            previous = type;
+        }
+        if (sb.length() == 0) {
+            sb.append("no reply");
+        }
+
+        int body = response.getBody().length;
+        sb.append(" | body").append(body == 0 ? "=0" : "<=" + (body == 1 ? 1 : Integer.highestOneBit(body - 1) * 2));
+        if (response.isClosed()) {
+            sb.append(" | closed");
+        } else if (response.isTruncated()) {
+            sb.append(" | truncated");
+        } else if (response.isComplete()) {
+            sb.append(" | complete");
+        } else {
+            return sb.append(" | deadline").toString();
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(response.getElapsedNanos());
+        long bucket = 10;
+        while (bucket <= millis && bucket < 10000) {
+            bucket *= 10;
+        }
+        sb.append(millis >= bucket ? " | >=" + bucket + "ms" : " | <" + bucket + "ms");
+        return sb.toString();
+    }
+
+    //SendHeaders: type, status, status message, header count, headers (coded or string name, string value)
+    private static void sendHeaders(StringBuilder sb, ByteBuffer packet) {
+        int pos = packet.position() + 5;
+        int end = packet.limit();
+        sb.append("SendHeaders");
+        if (pos + 2 > end) {
+            return;
+        }
+        sb.append(' ').append(readShort(packet, pos));
+        pos = skipString(packet, pos + 2);
+        if (pos < 0 || pos + 2 > end) {
+            return;
+        }
+        int count = readShort(packet, pos);
+        pos += 2;
+        sb.append(" [");
+        for (int h = 0; h < count; h++) {
+            if (pos + 2 > end) {
+                sb.append("...");
+                break;
+            }
+            if (h > 0) sb.append(',');
+            int code = readShort(packet, pos);
+            if ((code & 0xFF00) == 0xA000) {
+                int index = (code & 0xFF) - 1;
+                sb.append(index >= 0 && index < RESPONSE_HEADERS.length ? RESPONSE_HEADERS[index] : Integer.toHexString(code));
+                pos += 2;
+            } else {
+                int length = code == 0xFFFF ? 0 : Math.min(code, end - pos - 2);
+                for (int c = 0; c < length; c++) {
+                    sb.append(Character.toLowerCase((char) (packet.get(pos + 2 + c) & 0xFF)));
+                }
+                pos = skipString(packet, pos);
+            }
+            pos = pos < 0 ? -1 : skipString(packet, pos);
+            if (pos < 0) {
+                sb.append("...");
+                break;
+            }
+        }
+        sb.append(']');
+    }
+
+    private static int readShort(ByteBuffer packet, int pos) {
+        return ((packet.get(pos) & 0xFF) << 8) | (packet.get(pos + 1) & 0xFF);
+    }
+
+    //Position after an AJP13 string (length, bytes, 0x00), -1 if it does not fit in the packet
+    private static int skipString(ByteBuffer packet, int pos) {
+        if (pos + 2 > packet.limit()) {
+            return -1;
+        }
+        int length = readShort(packet, pos);
+        if (length == 0xFFFF) {
+            return pos + 2; //null string
+        }
+        int next = pos + 2 + length + 1;
+        return next > packet.limit() ? -1 : next;
+    }
+}
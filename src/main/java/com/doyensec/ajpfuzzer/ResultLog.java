@@ -0,0 +1,251 @@
+/*
+ * AJPFuzzer - ResultLog.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Asynchronous result log. Fuzzing threads only enqueue a record (references, no formatting)
+ * into a ring buffer; a background thread encodes the records as JSON lines and writes them
+ * through a large buffer. The ring is bounded by the bytes its records reference, not by their
+ * number: when it is full, producers wait and results are never dropped. Once the writer has
+ * stopped (closed, or a write error) records are discarded instead.
+ *
+ * One record per exchange, numbered by seq; index is the position in the fuzzing list, if any:
+ * {"seq":<n>,"time":<epoch ms>,"test":"...","index":<n>,"payload":"...","result":"...","fingerprint":"...","elapsed":<us>,"request":"<base64>","response":"<base64>"}
+ *
+ * Hex dumps are rendered offline with ResultLogViewer.
+ */
+public class ResultLog implements Closeable {
+
+    //Bytes referenced by the pending records
+    protected static final int DEFAULT_CAPACITY = 64 * 1024 * 1024;
+    //Accounted for each record besides its request and response, so that the number of small records is bounded too
+    private static final int RECORD_OVERHEAD = 256;
+
+    private static final class Record {
+
+        private final long time;
+        private final String testCase;
+        private final long index;
+        private final Object payload;
+        private final byte[] request;
+        private final byte[] response;
+        private final String result;
+        private final String fingerprint;
+        private final long elapsedNanos;
+
+        private Record(long time, String testCase, long index, Object payload, byte[] request, byte[] response, String result, String fingerprint, long elapsedNanos) {
+            this.time = time;
+            this.testCase = testCase;
+            this.index = index;
+            this.payload = payload;
+            this.request = request;
+            this.response = response;
+            this.result = result;
+            this.fingerprint = fingerprint;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+
+    //Marks the end of the log for the writer thread
+    private static final Record CLOSE = new Record(0, null, 0, null, null, null, null, null, 0);
+
+    private final Path path;
+    private final BlockingQueue<Record> ring = new LinkedBlockingQueue<>();
+    private final int capacity;
+    private final Semaphore space;
+    private final Writer out;
+    private final Thread writer;
+    private final Thread shutdownHook;
+    private final StringBuilder line = new StringBuilder(1024);
+    private long seq;
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+    private ResultLog(Path path, int capacity) throws IOException {
+        this.path = path;
+        this.capacity = capacity;
+        this.space = new Semaphore(capacity);
+        this.out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path), StandardCharsets.UTF_8), 256 * 1024);
+        this.writer = new Thread(this::drain, "ajpfuzzer-resultlog");
+        this.writer.setDaemon(true);
+        this.shutdownHook = new Thread(this::closeQuietly);
+    }
+
+    public static ResultLog open(Path path) throws IOException {
+        return open(path, DEFAULT_CAPACITY);
+    }
+
+    //Start the writer, and register the shutdown hook once the log is fully constructed
+    public static ResultLog open(Path path, int capacity) throws IOException {
+        ResultLog log = new ResultLog(path, capacity);
+        log.writer.start();
+        //Do not lose pending records on System.exit
+        Runtime.getRuntime().addShutdownHook(log.shutdownHook);
+        return log;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /*
+     * Log one exchange. The request and response arrays are referenced, not copied: they must not
+     * be modified afterwards. payload, response and fingerprint may be null, index is -1 if not applicable.
+     */
+    public void log(String testCase, long index, Object payload, byte[] request, byte[] response, String result, String fingerprint, long elapsedNanos) {
+        if (closed || failure != null) {
+            return;
+        }
+        Record record = new Record(System.currentTimeMillis(), testCase, index, payload, request, response, result, fingerprint, elapsedNanos);
+        int size = size(record);
+        try {
+            //Wait for space while the writer is running, never past its end
+            while (!space.tryAcquire(size, 100, TimeUnit.MILLISECONDS)) {
+                if (closed || failure != null || !writer.isAlive()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        ring.add(record);
+    }
+
+    //Space taken in the ring, at most the whole ring so that a huge record can still be logged
+    private int size(Record record) {
+        long size = RECORD_OVERHEAD + (long) record.request.length + (record.response != null ? record.response.length : 0);
+        return (int) Math.min(size, capacity);
+    }
+
+    //Background thread: write records, flush whenever the ring runs empty
+    private void drain() {
+        try {
+            while (true) {
+                Record record = ring.poll();
+                if (record == null) {
+                    out.flush();
+                    record = ring.take();
+                }
+                if (record == CLOSE) {
+                    break;
+                }
+                write(record);
+                space.release(size(record));
+            }
+            out.flush();
+        } catch (IOException ex) {
+            failure = ex;
+            System.out.println("[!] Result log write error (" + ex.getMessage() + "), logging disabled\n");
+            ring.clear();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        line.setLength(0);
+        line.append("{\"seq\":").append(seq++);
+        line.append(",\"time\":").append(record.time);
+        line.append(",\"test\":");
+        quote(line, record.testCase);
+        if (record.index >= 0) {
+            line.append(",\"index\":").append(record.index);
+        }
+        if (record.payload != null) {
+            line.append(",\"payload\":");
+            quote(line, String.valueOf(record.payload));
+        }
+        line.append(",\"result\":");
+        quote(line, record.result);
+        if (record.fingerprint != null) {
+            line.append(",\"fingerprint\":");
+            quote(line, record.fingerprint);
+        }
+        line.append(",\"elapsed\":").append(record.elapsedNanos / 1000);
+        line.append(",\"request\":\"").append(Base64.getEncoder().encodeToString(record.request)).append('"');
+        if (record.response != null) {
+            line.append(",\"response\":\"").append(Base64.getEncoder().encodeToString(record.response)).append('"');
+        }
+        line.append("}\n");
+        out.append(line);
+    }
+
+    //Append a JSON string literal
+    protected static void quote(StringBuilder line, String s) {
+        line.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+            }
+        }
+        line.append('"');
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ex) {
+            //nothing left to do
+        }
+    }
+
+    //Write all pending records, then close the file
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ex) {
+            //already shutting down
+        }
+        try {
+            ring.add(CLOSE);
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        out.close();
+    }
+}
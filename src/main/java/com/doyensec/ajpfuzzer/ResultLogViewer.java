@@ -0,0 +1,189 @@
+/*
+ * AJPFuzzer - ResultLogViewer.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.io.HexDump;
+import com.doyensec.ajp13.AjpMessage;
+import com.doyensec.ajp13.AjpReader;
+
+/*
+ * Offline viewer for the JSON lines written by ResultLog. Renders each exchange as a hex dump
+ * of the request and of every response packet, optionally filtered by test case and index
+ * (the position in the fuzzing list, or the record sequence number for single requests):
+ *
+ *   java -cp ajpfuzzer.jar com.doyensec.ajpfuzzer.ResultLogViewer <file.jsonl> [<test case> [<index>]]
+ */
+public class ResultLogViewer {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 3) {
+            System.out.println("Usage: java -cp ajpfuzzer.jar com.doyensec.ajpfuzzer.ResultLogViewer <file.jsonl> [<test case> [<index>]]");
+            System.exit(2);
+        }
+        String testCase = args.length > 1 ? args[1] : null;
+        String index = args.length > 2 ? args[2] : null;
+
+        int shown = 0;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    Map<String, String> record = parse(line);
+                    if ((testCase == null || testCase.equals(record.get("test"))) && (index == null || index.equals(record.getOrDefault("index", record.get("seq"))))) {
+                        render(record);
+                        shown++;
+                    }
+                } catch (IllegalArgumentException ex) {
+                    System.out.println("[!] Malformed record at line " + lineNumber + " (" + ex.getMessage() + ")\n");
+                }
+            }
+        }
+        System.out.println("[*] " + shown + " records");
+    }
+
+    private static void render(Map<String, String> record) throws IOException {
+        if (!record.containsKey("time") || !record.containsKey("request")) {
+            throw new IllegalArgumentException("missing time or request");
+        }
+        System.out.println("\n[*] Test Case '" + record.get("test") + "' #" + record.getOrDefault("index", record.get("seq"))
+                + (record.containsKey("payload") ? " '" + record.get("payload") + "'" : "") + " -> " + record.get("result"));
+        if (record.containsKey("fingerprint")) {
+            System.out.println("[*] Behavior: " + record.get("fingerprint"));
+        }
+        System.out.println("[*] " + new Timestamp(Long.parseLong(record.get("time"))) + ", " + record.get("elapsed") + " us");
+        System.out.println("\n");
+        byte[] request = Base64.getDecoder().decode(record.get("request"));
+        if (request.length > 0) {
+            HexDump.dump(request, 0, System.out, 0);
+        }
+        System.out.println("\n");
+
+        if (!record.containsKey("response")) {
+            return;
+        }
+        byte[] response = Base64.getDecoder().decode(record.get("response"));
+        int offset = 0;
+        while (offset < response.length) {
+            //'AB' + 2 bytes length + payload, anything else is dumped as a single unframed chunk
+            int size = response.length - offset;
+            if (size >= 4 && response[offset] == 'A' && response[offset + 1] == 'B') {
+                size = Math.min(size, 4 + (((response[offset + 2] & 0xFF) << 8) | (response[offset + 3] & 0xFF)));
+            }
+            byte[] packet = new byte[size];
+            System.arraycopy(response, offset, packet, 0, size);
+            AjpMessage parsed = AjpReader.parseMessage(packet);
+            System.out.println("[*] Received message type '" + (parsed == null ? "Unknown" : parsed.getName()) + "'");
+            System.out.println("[*] Received message description '" + (parsed == null ? "Unknown" : parsed.getDescription()) + "'");
+            System.out.println("\n");
+            HexDump.dump(packet, offset, System.out, 0);
+            System.out.println("\n");
+            offset += size;
+        }
+    }
+
+    //Parse a flat JSON object with string and number values, as written by ResultLog
+    protected static Map<String, String> parse(String json) {
+        Map<String, String> values = new HashMap<>();
+        int[] pos = {skip(json, 0)};
+        expect(json, pos, '{');
+        if (skip(json, pos[0]) < json.length() && json.charAt(skip(json, pos[0])) == '}') {
+            return values;
+        }
+        while (true) {
+            pos[0] = skip(json, pos[0]);
+            String key = string(json, pos);
+            pos[0] = skip(json, pos[0]);
+            expect(json, pos, ':');
+            pos[0] = skip(json, pos[0]);
+            String value;
+            if (pos[0] < json.length() && json.charAt(pos[0]) == '"') {
+                value = string(json, pos);
+            } else {
+                int start = pos[0];
+                while (pos[0] < json.length() && ",} \t".indexOf(json.charAt(pos[0])) < 0) {
+                    pos[0]++;
+                }
+                value = json.substring(start, pos[0]);
+            }
+            values.put(key, value);
+            pos[0] = skip(json, pos[0]);
+            if (pos[0] < json.length() && json.charAt(pos[0]) == ',') {
+                pos[0]++;
+                continue;
+            }
+            expect(json, pos, '}');
+            return values;
+        }
+    }
+
+    private static int skip(String json, int pos) {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static void expect(String json, int[] pos, char c) {
+        if (pos[0] >= json.length() || json.charAt(pos[0]) != c) {
+            throw new IllegalArgumentException("'" + c + "' expected at " + pos[0]);
+        }
+        pos[0]++;
+    }
+
+    private static String string(String json, int[] pos) {
+        expect(json, pos, '"');
+        StringBuilder s = new StringBuilder();
+        while (pos[0] < json.length()) {
+            char c = json.charAt(pos[0]++);
+            if (c == '"') {
+                return s.toString();
+            }
+            if (c != '\\') {
+                s.append(c);
+                continue;
+            }
+            if (pos[0] >= json.length()) {
+                break;
+            }
+            char escaped = json.charAt(pos[0]++);
+            switch (escaped) {
+                case 'n':
+                    s.append('\n');
+                    break;
+                case 'r':
+                    s.append('\r');
+                    break;
+                case 't':
+                    s.append('\t');
+                    break;
+                case 'u':
+                    if (pos[0] + 4 > json.length()) {
+                        throw new IllegalArgumentException("truncated escape at " + pos[0]);
+                    }
+                    s.append((char) Integer.parseInt(json.substring(pos[0], pos[0] + 4), 16));
+                    pos[0] += 4;
+                    break;
+                default:
+                    s.append(escaped);
+            }
+        }
+        throw new IllegalArgumentException("unterminated string");
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * AJPFuzzer - TargetDownException.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.IOException;
+
+/*
+ * The target crashed or hangs (it cannot be reached or does not answer a CPing anymore).
+ * Thrown out of the fuzzing loops, which cannot go on, instead of exiting the JVM.
+ */
+public class TargetDownException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String failure;
+
+    public TargetDownException(String host, int port, String failure) {
+        super("Target " + host + ":" + port + " " + failure);
+        this.failure = failure;
+    }
+
+    //CrashMonitor.UNREACHABLE or CrashMonitor.HANG
+    public String getFailure() {
+        return failure;
+    }
+}
@@ -7,12 +7,15 @@ package com.doyensec.ajpfuzzer;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.Random;
+import java.util.random.RandomGenerator;
 import java.sql.Timestamp;
 import org.apache.commons.io.HexDump;
 import com.doyensec.ajp13.AjpMessage;
@@ -21,15 +24,118 @@ import com.doyensec.ajp13.AjpReader;
 
 public class Utils {
 
-    protected static byte[] sendAndReceive(AJPFuzzer ajpsocket, byte[] data, String testCase, boolean verbose) throws UnsupportedEncodingException, IOException {
-        if (verbose) dumpRequest(data, testCase);
+    //AJP13 message types sent from the J2EE container to the web server
+    protected static final byte SEND_BODY_CHUNK = 3;
+    protected static final byte SEND_HEADERS = 4;
+    protected static final byte END_RESPONSE = 5;
+    protected static final byte GET_BODY_CHUNK = 6;
+    protected static final byte CPONG_REPLY = 9;
 
-        //The max packet size is 8 * 1024 getBytes (8K)
-        byte[] buffReply = new byte[8192];
+    protected static final String FUZZ_KEY = "FUZZ";
+
+    /*
+     * Send data and read the reply. When verbose, the console gets a one-line summary and the exchange goes to
+     * the result log, with full hex dumps if enabled with 'hexdump on'. With deduplication, only responses showing
+     * a new behavior (see ResponseFingerprint) are dumped and logged.
+     */
+    protected static AjpResponse sendAndReceive(AJPFuzzer ajpsocket, byte[] data, String testCase, boolean verbose) throws UnsupportedEncodingException, IOException {
+        return sendAndReceive(ajpsocket, data, testCase, -1, null, verbose);
+    }
+
+    //Same as sendAndReceive, recording the position and value of the payload in the fuzzing list
+    protected static AjpResponse sendAndReceive(AJPFuzzer ajpsocket, byte[] data, String testCase, long index, Object payload, boolean verbose) throws UnsupportedEncodingException, IOException {
+        return sendAndReceive(ajpsocket, data, null, testCase, index, payload, verbose);
+    }
+
+    //Send a multi-message conversation and read all the replies in one pass, whatever the receive mode
+    protected static AjpResponse sendSequence(AJPFuzzer ajpsocket, AjpSequence sequence, String testCase) throws UnsupportedEncodingException, IOException {
+        return sendAndReceive(ajpsocket, sequence.toBytes(), sequence, testCase, -1, null, true);
+    }
+
+    private static AjpResponse sendAndReceive(AJPFuzzer ajpsocket, byte[] data, AjpSequence sequence, String testCase, long index, Object payload, boolean verbose) throws UnsupportedEncodingException, IOException {
+        byte[] request = verbose ? data.clone() : null; //test cases may mutate data once sent
+        if (verbose && sequence != null) {
+            System.out.println("[*] Sending Test Case '" + testCase + "' (" + data.length + " bytes: " + sequence.describe() + ")");
+        } else if (verbose) {
+            System.out.println("[*] Sending Test Case '" + testCase + "' (" + data.length + " bytes)");
+        }
+
+        CrashMonitor monitor = ajpsocket.getCrashMonitor();
+        AjpConnectionPool pool = ajpsocket.getPool();
+        AjpConnection connection;
+        try {
+            connection = pool.acquire();
+        } catch (IOException ex) {
+            System.out.println("[!] Connection error\n");
+            monitor.crashed(testCase, CrashMonitor.UNREACHABLE);
+            throw new TargetDownException(ajpsocket.getHost(), ajpsocket.getPort(), CrashMonitor.UNREACHABLE);
+        }
+        if (connection.uses == 0) {
+            monitor.clear(); //new connection
+        }
+        monitor.sent(data);
+        RateLimiter limiter = ajpsocket.getRateLimiter();
+        limiter.acquire(connection.bucket);
+        AjpResponse response;
+        if (sequence != null || ajpsocket.isFramedReceive()) {
+            response = sendAndReceiveFramed(ajpsocket, connection, data, sequence);
+        } else {
+            response = sendAndReceivePoll(ajpsocket, connection, data);
+        }
+        limiter.record(response);
+        ajpsocket.getMetrics().record(testCase, response);
+        pool.release(connection, response);
+        //After consecutive resets or timeouts: make sure the target is still alive
+        monitor.check(testCase, response);
+        if (!verbose) {
+            return response;
+        }
+        if (sequence != null && sequence.getBody() != null) {
+            System.out.println("[*] Streamed body: " + sequence.getBody().describe());
+        }
+
+        String fingerprint = ResponseFingerprint.of(response);
+        boolean novel = ajpsocket.getBehaviors().record(fingerprint, testCase, index, payload);
+        CorpusStore store = ajpsocket.getCorpusStore();
+        if (novel && store != null) {
+            store.keep(request, testCase, payload, fingerprint);
+        }
+        System.out.println((novel ? "[+] New behavior: " : "[*] Received ") + (sequence == null ? response : AjpSequence.describeReplies(response)) + " (" + response.getBytes().length + " bytes, " + response.getElapsedMillis() + " ms)\n");
+        if (novel || !ajpsocket.isDedup()) {
+            if (ajpsocket.isHexDump()) {
+                dumpRequest(request, testCase);
+                for (int i = 0; i < response.getPacketCount(); i++) {
+                    dumpResponse(response.getPacketBytes(i));
+                }
+            }
+            ResultLog log = ajpsocket.getResultLog();
+            if (log != null) {
+                log.log(testCase, index, payload, request, response.getBytes(), response.toString(), fingerprint, response.getElapsedNanos());
+            }
+        }
+        return response;
+    }
+
+    //Send data, then sleep and poll the socket until no more bytes are available (legacy receive mode)
+    private static AjpResponse sendAndReceivePoll(AJPFuzzer ajpsocket, AjpConnection connection, byte[] data) {
+        AjpPacketSplitter splitter = ajpsocket.getSplitter();
+        ReceiveBuffer received = ReceiveBuffer.acquire(ajpsocket.getMaxResponseSize());
+        boolean[] complete = new boolean[1]; //the last packet is whole and closes the exchange
+        AjpPacketSplitter.Handler handler = packet -> {
+            int pos = packet.position();
+            complete[0] = packet.remaining() >= 5 && packet.get(pos) == 'A' && packet.get(pos + 1) == 'B' && isLastPacket(packet)
+                    && packet.remaining() == 4 + (((packet.get(pos + 2) & 0xFF) << 8) | (packet.get(pos + 3) & 0xFF));
+            if (received.beginPacket(packet.remaining())) {
+                packet.get(packet.position(), received.array(), received.size(), packet.remaining());
+                received.advance(packet.remaining());
+            }
+        };
         int fullSize;
+        boolean closed = false;
+        long start = System.nanoTime();
 
-        DataOutputStream os = new DataOutputStream(ajpsocket.getSocket().getOutputStream());
-        DataInputStream is = new DataInputStream(ajpsocket.getSocket().getInputStream());
+        DataOutputStream os = connection.getOutputStream();
+        DataInputStream is = connection.getInputStream();
 
         try {
             //Send
@@ -39,54 +145,165 @@ public class Utils {
             //Wait
             Thread.sleep(1200);
 
-            //Receive. Be aware, we may receive multiple packets.
+            //Receive. Be aware, we may receive multiple packets, split by their length header
+            splitter.reset();
             while (is.available() > 0) {
 
-                fullSize = is.read(buffReply);
+                ByteBuffer buffer = splitter.buffer();
+                fullSize = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
 
                 if (fullSize > 0) {
-
-                    //Reduce size to actual received bytes
-                    byte[] fullReply = new byte[fullSize];
-                    System.arraycopy(buffReply, 0, fullReply, 0, fullReply.length);
-
-                    //Iterate through all received bytes to extract response packets
-                    ArrayList<Byte> replyBuffer = new ArrayList<>();
-
-                    for (int pc = 0; pc < fullReply.length; pc++) {
-
-                        //New AJP Response packet
-                        if (pc + 1 < fullReply.length) {
-                            if (fullReply[pc] == 'A' && fullReply[pc + 1] == 'B') {
-                                if (!replyBuffer.isEmpty()) {
-                                    if (verbose) dumpResponse(Utils.fromArrayListToArray(replyBuffer));
-                                }
-                                //Reset
-                                replyBuffer = new ArrayList();
-                            }
-                        }
-                        replyBuffer.add(fullReply[pc]);
-                    }
-
-                    if (!replyBuffer.isEmpty()) {
-                        if (verbose) dumpResponse(Utils.fromArrayListToArray(replyBuffer));
-                    }
+                    buffer.position(buffer.position() + fullSize);
+                    splitter.split(handler);
                 }
                 //Wait
                 Thread.sleep(1200);
             }
+            splitter.drain(handler);
         } catch (IOException ex) {
             System.out.println("[!] Socket read error\n");
-
-            //Re-establish a new socket connection
-            ajpsocket.disconnect();
-            ajpsocket.reconnect();
-
+            closed = true;
+            connection.close(); //the pool opens a new one for the next test
         } catch (InterruptedException ex) {
             Thread.currentThread().interrupt();
         }
 
-        return buffReply;
+        AjpResponse response = received.toResponse(complete[0] && !closed, closed, System.nanoTime() - start);
+        received.release();
+        return response;
+    }
+
+    //Send data, or a conversation when sequence is not null, and read back whole AJP13 packets, see receiveFramed
+    private static AjpResponse sendAndReceiveFramed(AJPFuzzer ajpsocket, AjpConnection connection, byte[] data, AjpSequence sequence) {
+        AjpResponse response;
+        try {
+            if (sequence != null) {
+                response = connection.exchange(sequence, ajpsocket.getReceiveTimeout());
+            } else {
+                response = connection.exchange(data, ajpsocket.getReceiveTimeout());
+            }
+            if (response.isTruncated()) {
+                System.out.println("[!] Response larger than " + ajpsocket.getMaxResponseSize() + " bytes, truncated\n");
+            }
+            if (response.isClosed()) {
+                System.out.println("[!] Connection closed by the remote AJP13 service\n");
+            }
+        } catch (IOException ex) {
+            System.out.println("[!] Socket read error\n");
+            response = new AjpResponse(new byte[0], new int[0], false, false, true, 0);
+        }
+        //A closed connection is retired by the pool, and a new one opened for the next test
+        return response;
+    }
+
+    /*
+     * Read whole AJP13 packets ('AB' + 2 bytes length + payload), up to maxSize bytes in total.
+     * Stop at the first packet closing the exchange (EndResponse, GetBodyChunk or CPong),
+     * when the connection is closed, or as soon as the receive deadline expires.
+     * Packets beyond maxSize are read and discarded, to keep the stream in sync.
+     */
+    protected static AjpResponse receiveFramed(Socket socket, DataInputStream is, int receiveTimeout, int maxSize) throws IOException {
+        return receiveFramed(socket, is, receiveTimeout, maxSize, 1);
+    }
+
+    //Same as receiveFramed, stopping after the given number of packets closing an exchange (see AjpSequence)
+    protected static AjpResponse receiveFramed(Socket socket, DataInputStream is, int receiveTimeout, int maxSize, int replies) throws IOException {
+        int socketTimeout = socket.getSoTimeout();
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + receiveTimeout;
+        byte[] header = new byte[4];
+        ReceiveBuffer received = ReceiveBuffer.acquire(maxSize);
+        boolean complete = false;
+        boolean closed = false;
+        int closing = 0;
+
+        try {
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                socket.setSoTimeout((int) remaining);
+                is.readFully(header);
+
+                int packetSize;
+                if (header[0] != 'A' || header[1] != 'B') {
+                    //Not an AJP13 response packet, keep whatever is already buffered and stop
+                    packetSize = header.length + is.available();
+                    complete = true;
+                } else {
+                    packetSize = header.length + (((header[2] & 0xFF) << 8) | (header[3] & 0xFF));
+                }
+
+                if (received.beginPacket(packetSize)) {
+                    int offset = received.size();
+                    System.arraycopy(header, 0, received.array(), offset, header.length);
+                    is.readFully(received.array(), offset + header.length, packetSize - header.length);
+                    received.advance(packetSize);
+                    if (packetSize > 4 && isLastPacket(ByteBuffer.wrap(received.array(), offset, packetSize))) {
+                        complete = ++closing >= replies;
+                    }
+                } else {
+                    //Over the size limit: discard the packet, only looking at its type
+                    int type = packetSize > header.length ? is.readUnsignedByte() : -1;
+                    is.skipNBytes(Math.max(0, packetSize - header.length - 1));
+                    if (type == END_RESPONSE || type == GET_BODY_CHUNK || type == CPONG_REPLY) {
+                        complete = ++closing >= replies;
+                    }
+                }
+
+                if (complete) {
+                    break;
+                }
+            }
+        } catch (SocketTimeoutException ex) {
+            //Deadline reached, return what we have
+        } catch (EOFException ex) {
+            closed = true;
+        } finally {
+            if (!socket.isClosed()) {
+                socket.setSoTimeout(socketTimeout);
+            }
+        }
+
+        AjpResponse response = received.toResponse(complete, closed, System.nanoTime() - start);
+        received.release();
+        return response;
+    }
+
+    //Name of a single AJP13 response packet, starting at the buffer position
+    protected static String describePacket(ByteBuffer packet) {
+        int pos = packet.position();
+        if (packet.remaining() < 5 || packet.get(pos) != 'A' || packet.get(pos + 1) != 'B') {
+            return packet.remaining() + " unframed bytes";
+        }
+        switch (packet.get(pos + 4)) {
+            case SEND_BODY_CHUNK:
+                return "SendBodyChunk";
+            case SEND_HEADERS:
+                if (packet.remaining() >= 7) {
+                    return "SendHeaders " + (((packet.get(pos + 5) & 0xFF) << 8) | (packet.get(pos + 6) & 0xFF));
+                }
+                return "SendHeaders";
+            case END_RESPONSE:
+                return "EndResponse";
+            case GET_BODY_CHUNK:
+                return "GetBodyChunk";
+            case CPONG_REPLY:
+                return "CPong";
+            default:
+                return "type " + (packet.get(pos + 4) & 0xFF);
+        }
+    }
+
+    //True if the packet closes an exchange: the container now waits for the web server
+    protected static boolean isLastPacket(ByteBuffer packet) {
+        int pos = packet.position();
+        if (packet.remaining() < 5 || packet.get(pos) != 'A' || packet.get(pos + 1) != 'B') {
+            return true;
+        }
+        byte type = packet.get(pos + 4);
+        return type == END_RESPONSE || type == GET_BODY_CHUNK || type == CPONG_REPLY;
     }
 
     protected static void sendAndReceiveVerbose(AJPFuzzer ajpsocket, byte[] data, String testCase) throws UnsupportedEncodingException, IOException {
@@ -112,8 +329,7 @@ public class Utils {
     }
 
     //Flip a random bit in a random byte from the input array
-    protected static byte[] flipBit(byte[] data) {
-        Random rand = new Random();
+    protected static byte[] flipBit(byte[] data, RandomGenerator rand) {
         int rN = rand.nextInt(data.length);
         int rB = rand.nextInt(8) + 1;
         data[rN] = (byte) (data[rN] ^ (1 << rB));
@@ -121,8 +337,7 @@ public class Utils {
     }
 
     //Randomly slice a byte array
-    protected static byte[] sliceAll(byte[] data) {
-        Random rand = new Random();
+    protected static byte[] sliceAll(byte[] data, RandomGenerator rand) {
         int start = rand.nextInt(data.length);
         int stop = rand.nextInt(data.length);
         byte[] slice;
@@ -135,8 +350,7 @@ public class Utils {
     }
 
     //Randomly slice a byte array, always starting from index 0
-    protected static byte[] sliceFromBegin(byte[] data) {
-        Random rand = new Random();
+    protected static byte[] sliceFromBegin(byte[] data, RandomGenerator rand) {
         int stop = rand.nextInt(data.length);
         byte[] slice = Arrays.copyOfRange(data, 0, stop);
         return slice;
@@ -147,17 +361,7 @@ public class Utils {
         return (OS.contains("win"));
     }
 
-    private static byte[] fromArrayListToArray(ArrayList myList) {
-        byte[] bytesArray = new byte[myList.size()];
-        for (int i = 0; i < myList.size(); i++) {
-            bytesArray[i] = (byte) myList.get(i);
-        }
-        return bytesArray;
-    }
-
     protected static String replaceFuzz(String stringToReplace, String currentSingle){
-        final String fuzzKey = "FUZZ";
-        String result  = "";
-        return stringToReplace.replace(fuzzKey, currentSingle);
+        return stringToReplace.replace(FUZZ_KEY, currentSingle);
     }
 }
\ No newline at end of file
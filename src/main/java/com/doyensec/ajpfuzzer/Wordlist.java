@@ -0,0 +1,104 @@
+/*
+ * AJPFuzzer - Wordlist.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/*
+ * Lazily read a fuzzing list, one line at a time, through a sliding memory-mapped window.
+ * Line boundaries are found on demand, so memory use stays flat whatever the file size.
+ * Lines are numbered from 0 and reading can resume at any line index.
+ */
+public class Wordlist implements PayloadSource<String> {
+
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+    private long lineIndex;
+    private byte[] line = new byte[256];
+
+    public Wordlist(Path path) throws IOException {
+        this(path, 0);
+    }
+
+    public Wordlist(Path path, long startLine) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        while (lineIndex < startLine && position < fileSize) {
+            skipLine();
+        }
+    }
+
+    //Index of the line returned by the next call to next()
+    @Override
+    public long getIndex() {
+        return lineIndex;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < fileSize;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        int length = 0;
+        while (position < fileSize) {
+            byte b = nextByte();
+            if (b == '\n') {
+                break;
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, length * 2);
+            }
+            line[length++] = b;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        lineIndex++;
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void skipLine() {
+        while (position < fileSize && nextByte() != '\n') {
+            //skip
+        }
+        lineIndex++;
+    }
+
+    private byte nextByte() {
+        if (window == null || position - windowStart >= window.limit()) {
+            try {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, fileSize - windowStart));
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Cannot map the fuzzing list at offset " + position, ex);
+            }
+        }
+        return window.get((int) (position++ - windowStart));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
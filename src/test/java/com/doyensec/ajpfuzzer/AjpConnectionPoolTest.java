@@ -0,0 +1,122 @@
+/*
+ * AJPFuzzer - AjpConnectionPoolTest.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Retirement policy of pooled connections against the loopback MockContainer: a connection
+ * taken again from the pool is the same object when it was kept, a new one when it was retired.
+ */
+public class AjpConnectionPoolTest {
+
+    private static final int TIMEOUT = 2000;
+
+    private final MockContainer mock = new MockContainer();
+    private final AJPFuzzer ajpsocket = new AJPFuzzer();
+    private AjpConnectionPool pool;
+
+    @BeforeEach
+    public void start() throws IOException {
+        mock.start(0);
+        ajpsocket.setHost("127.0.0.1");
+        ajpsocket.setPort(mock.getPort());
+        pool = new AjpConnectionPool(ajpsocket);
+    }
+
+    @AfterEach
+    public void stop() {
+        pool.close();
+        mock.close();
+    }
+
+    @Test
+    public void reusedUntilError() throws IOException {
+        AjpConnection first = exchange(TIMEOUT);
+        for (int i = 0; i < 10; i++) {
+            assertSame(first, exchange(TIMEOUT));
+        }
+        assertTrue(first.isConnected());
+    }
+
+    @Test
+    public void freshConnectionPerTest() throws IOException {
+        pool.setPolicy(AjpConnectionPool.Policy.FRESH, 1);
+        AjpConnection first = exchange(TIMEOUT);
+        assertFalse(first.isConnected());
+        assertNotSame(first, exchange(TIMEOUT));
+    }
+
+    @Test
+    public void retiredAfterMaxUses() throws IOException {
+        pool.setPolicy(AjpConnectionPool.Policy.REUSE, 3);
+        AjpConnection first = exchange(TIMEOUT);
+        assertSame(first, exchange(TIMEOUT));
+        assertSame(first, exchange(TIMEOUT));
+        assertFalse(first.isConnected());
+        AjpConnection second = exchange(TIMEOUT);
+        assertNotSame(first, second);
+        assertTrue(second.isConnected());
+    }
+
+    @Test
+    public void retiredWhenIncomplete() throws IOException {
+        mock.setFaults(0, 0, 1);
+        AjpConnection first = exchange(200);
+        assertFalse(first.isConnected());
+        mock.setFaults(0, 0, 0);
+        assertNotSame(first, exchange(TIMEOUT));
+    }
+
+    @Test
+    public void retiredWhenReset() throws IOException {
+        AjpConnection first = exchange(TIMEOUT);
+        mock.setFaults(0, 1, 0);
+        AjpConnection connection = pool.acquire();
+        assertSame(first, connection);
+        AjpResponse response = null;
+        try {
+            response = connection.exchange(AjpConnectionTest.request("/", 0), TIMEOUT);
+        } catch (IOException ex) {
+            //Reset reported as an error
+        }
+        pool.release(connection, response);
+        assertFalse(first.isConnected());
+        mock.setFaults(0, 0, 0);
+        assertNotSame(first, exchange(TIMEOUT));
+    }
+
+    @Test
+    public void retiredOnError() throws IOException {
+        AjpConnection connection = pool.acquire();
+        pool.release(connection, null);
+        assertFalse(connection.isConnected());
+    }
+
+    @Test
+    public void closeRetiresIdleConnections() throws IOException {
+        AjpConnection first = exchange(TIMEOUT);
+        pool.close();
+        assertFalse(first.isConnected());
+        assertNotSame(first, exchange(TIMEOUT));
+    }
+
+    //One exchange on a pooled connection, released according to the policy
+    private AjpConnection exchange(int timeout) throws IOException {
+        AjpConnection connection = pool.acquire();
+        AjpResponse response = connection.exchange(AjpConnectionTest.request("/", 0), timeout);
+        pool.release(connection, response);
+        return connection;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * AJPFuzzer - AjpConnectionTest.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Exchanges with the loopback MockContainer: replies, pipelining, streamed bodies and injected faults.
+ */
+public class AjpConnectionTest {
+
+    private static final byte[] CPING = {0x12, 0x34, 0, 1, 10};
+    private static final int TIMEOUT = 2000;
+
+    private final MockContainer mock = new MockContainer();
+    private AjpConnection connection;
+
+    @BeforeEach
+    public void start() throws IOException {
+        mock.start(0);
+        connection = new AjpConnection("127.0.0.1", mock.getPort(), 1024 * 1024);
+    }
+
+    @AfterEach
+    public void stop() {
+        connection.close();
+        mock.close();
+    }
+
+    @Test
+    public void forwardRequest() throws IOException {
+        AjpResponse response = connection.exchange(request("/index.html", 0), TIMEOUT);
+        assertTrue(response.isComplete());
+        assertEquals(200, response.getStatusCode());
+        assertEquals(16, response.getBody().length);
+        assertEquals(Utils.END_RESPONSE, response.getPacketType(response.getPacketCount() - 1));
+        assertTrue(connection.isConnected());
+    }
+
+    @Test
+    public void cping() throws IOException {
+        AjpResponse response = connection.exchange(CPING, TIMEOUT);
+        assertEquals(1, response.getPacketCount());
+        assertEquals(Utils.CPONG_REPLY, response.getPacketType(0));
+    }
+
+    @Test
+    public void pipelinedSequence() throws IOException {
+        AjpSequence sequence = new AjpSequence().add("ForwardRequest", request("/", 0)).add("CPing", CPING);
+        AjpResponse response = connection.exchange(sequence, TIMEOUT);
+        assertTrue(response.isComplete());
+        assertEquals(Utils.CPONG_REPLY, response.getPacketType(response.getPacketCount() - 1));
+        assertTrue(AjpSequence.describeReplies(response).contains(" | 2: "));
+    }
+
+    @Test
+    public void streamedBody() throws IOException {
+        try (BodyStream body = BodyStream.pattern("A".getBytes(), 100000, BodyStream.MAX_CHUNK)) {
+            AjpSequence sequence = new AjpSequence().add("ForwardRequest", request("/upload", 100000)).stream(body);
+            AjpResponse response = connection.exchange(sequence, TIMEOUT);
+            assertTrue(response.isComplete());
+            assertEquals(200, response.getStatusCode());
+            assertTrue(body.isComplete());
+            for (int i = 0; i < response.getPacketCount(); i++) {
+                assertTrue(response.getPacketType(i) != Utils.GET_BODY_CHUNK);
+            }
+        }
+    }
+
+    @Test
+    public void oversizedReplyTruncated() throws IOException {
+        mock.setReply(200, 200000, 8184);
+        connection = new AjpConnection("127.0.0.1", mock.getPort(), 16384);
+        AjpResponse response = connection.exchange(request("/big", 0), TIMEOUT);
+        assertTrue(response.isTruncated());
+        assertTrue(response.getBytes().length <= 16384);
+        assertEquals(200, response.getStatusCode());
+    }
+
+    @Test
+    public void resetClosesTheConnection() {
+        mock.setFaults(0, 1, 0);
+        try {
+            AjpResponse response = connection.exchange(request("/", 0), TIMEOUT);
+            assertTrue(response.isClosed());
+            assertFalse(response.isComplete());
+        } catch (IOException ex) {
+            //Reset reported as an error
+        }
+        assertFalse(connection.isConnected());
+    }
+
+    @Test
+    public void hangEndsAtTheDeadline() throws IOException {
+        mock.setFaults(0, 0, 1);
+        long start = System.nanoTime();
+        AjpResponse response = connection.exchange(request("/", 0), 300);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals(0, response.getPacketCount());
+        assertFalse(response.isComplete());
+        assertTrue(elapsed >= 250 && elapsed < TIMEOUT, elapsed + " ms");
+    }
+
+    @Test
+    public void crashStopsTheContainer() throws IOException {
+        mock.setCrashMarker("BOOM");
+        try {
+            AjpResponse response = connection.exchange(request("/BOOM", 0), TIMEOUT);
+            assertFalse(response.isComplete());
+        } catch (IOException ex) {
+            //Reset reported as an error
+        }
+        assertFalse(mock.isRunning());
+    }
+
+    //GET, or POST with a Content-Length
+    static byte[] request(String uri, int contentLength) {
+        String headers = contentLength > 0 ? "Content-Length:" + contentLength : "";
+        return FuzzTemplate.compile(contentLength > 0 ? 4 : 2, "HTTP/1.1", uri, "127.0.0.1", "127.0.0.1", "localhost", 8009, false, headers, "", Utils.FUZZ_KEY).toBytes("");
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * AJPFuzzer - AjpPacketSplitterTest.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Replies arrive in arbitrary TCP segments: packets must come out whole, whatever the split.
+ */
+public class AjpPacketSplitterTest {
+
+    private static final byte[] CPONG = {'A', 'B', 0, 1, 9};
+    private static final byte[] END_RESPONSE = {'A', 'B', 0, 2, 5, 1};
+
+    private final AjpPacketSplitter splitter = new AjpPacketSplitter(ByteBuffer.allocate(AjpPacketSplitter.MAX_PACKET_SIZE));
+    private final List<byte[]> packets = new ArrayList<>();
+
+    @Test
+    public void severalPacketsInOneRead() throws IOException {
+        receive(concat(CPONG, END_RESPONSE));
+        assertEquals(2, packets.size());
+        assertArrayEquals(CPONG, packets.get(0));
+        assertArrayEquals(END_RESPONSE, packets.get(1));
+    }
+
+    @Test
+    public void packetSplitAtEveryOffset() throws IOException {
+        byte[] data = concat(END_RESPONSE, CPONG);
+        for (int cut = 1; cut < data.length; cut++) {
+            packets.clear();
+            splitter.reset();
+            receive(slice(data, 0, cut));
+            receive(slice(data, cut, data.length));
+            assertEquals(2, packets.size(), "cut at " + cut);
+            assertArrayEquals(END_RESPONSE, packets.get(0));
+            assertArrayEquals(CPONG, packets.get(1));
+        }
+    }
+
+    @Test
+    public void partialHeaderWaitsForMore() throws IOException {
+        receive(new byte[]{'A', 'B', 0});
+        assertEquals(0, packets.size());
+        receive(new byte[]{1, 9});
+        assertEquals(1, packets.size());
+        assertArrayEquals(CPONG, packets.get(0));
+    }
+
+    @Test
+    public void largePacketByteByByte() throws IOException {
+        byte[] chunk = new byte[4 + 8000];
+        chunk[0] = 'A';
+        chunk[1] = 'B';
+        chunk[2] = (byte) (8000 >> 8);
+        chunk[3] = (byte) 8000;
+        chunk[4] = 3;
+        for (byte b : chunk) {
+            receive(new byte[]{b});
+        }
+        assertEquals(1, packets.size());
+        assertArrayEquals(chunk, packets.get(0));
+    }
+
+    @Test
+    public void notAjpHandedOutAsIs() throws IOException {
+        byte[] garbage = "HTTP/1.1 400 Bad Request".getBytes();
+        receive(garbage);
+        assertEquals(1, packets.size());
+        assertArrayEquals(garbage, packets.get(0));
+    }
+
+    @Test
+    public void drainHandsOutIncompletePacket() throws IOException {
+        byte[] truncated = slice(END_RESPONSE, 0, 5);
+        receive(truncated);
+        assertEquals(0, packets.size());
+        splitter.drain(packet -> packets.add(toArray(packet)));
+        assertEquals(1, packets.size());
+        assertArrayEquals(truncated, packets.get(0));
+        splitter.drain(packet -> packets.add(toArray(packet)));
+        assertEquals(1, packets.size());
+    }
+
+    private void receive(byte[] data) throws IOException {
+        splitter.buffer().put(data);
+        splitter.split(packet -> packets.add(toArray(packet)));
+    }
+
+    private static byte[] toArray(ByteBuffer packet) {
+        byte[] bytes = new byte[packet.remaining()];
+        packet.get(packet.position(), bytes);
+        return bytes;
+    }
+
+    private static byte[] slice(byte[] data, int from, int to) {
+        byte[] part = new byte[to - from];
+        System.arraycopy(data, from, part, 0, part.length);
+        return part;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] both = new byte[a.length + b.length];
+        System.arraycopy(a, 0, both, 0, a.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * AJPFuzzer - BodyStreamTest.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Body packets as answered to GetBodyChunk: framing, sizes and end of the body.
+ */
+public class BodyStreamTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void chunksFollowTheRequests() throws IOException {
+        try (BodyStream body = BodyStream.pattern("A".getBytes(), 10000, BodyStream.MAX_CHUNK)) {
+            ByteBuffer packet = body.nextPacket(BodyStream.MAX_CHUNK);
+            assertEquals(6 + BodyStream.MAX_CHUNK, packet.remaining());
+            assertEquals(0x12, packet.get(0));
+            assertEquals(0x34, packet.get(1));
+            assertEquals(BodyStream.MAX_CHUNK + 2, u16(packet, 2));
+            assertEquals(BodyStream.MAX_CHUNK, u16(packet, 4));
+
+            packet = body.nextPacket(100);
+            assertEquals(106, packet.remaining());
+            assertEquals(100, u16(packet, 4));
+
+            packet = body.nextPacket(BodyStream.MAX_CHUNK);
+            assertEquals(10000 - BodyStream.MAX_CHUNK - 100, u16(packet, 4));
+            assertTrue(body.isComplete());
+            assertEquals(10000, body.getSent());
+        }
+    }
+
+    @Test
+    public void zeroBytesRequestedIsNotTheEnd() throws IOException {
+        try (BodyStream body = BodyStream.pattern("A".getBytes(), 10000, BodyStream.MAX_CHUNK)) {
+            ByteBuffer packet = body.nextPacket(0);
+            assertEquals(BodyStream.MAX_CHUNK, u16(packet, 4));
+            assertEquals(BodyStream.MAX_CHUNK, body.getSent());
+        }
+    }
+
+    @Test
+    public void emptyPacketOnceOver() throws IOException {
+        try (BodyStream body = BodyStream.pattern("A".getBytes(), 10, 4)) {
+            assertEquals(4, u16(body.nextPacket(BodyStream.MAX_CHUNK), 4));
+            assertEquals(4, u16(body.nextPacket(BodyStream.MAX_CHUNK), 4));
+            assertEquals(2, u16(body.nextPacket(BodyStream.MAX_CHUNK), 4));
+            ByteBuffer end = body.nextPacket(BodyStream.MAX_CHUNK);
+            assertArrayEquals(new byte[]{0x12, 0x34, 0, 0}, bytes(end));
+        }
+    }
+
+    @Test
+    public void fileWrapsAround() throws IOException {
+        Path file = Files.writeString(directory.resolve("body.bin"), "abc");
+        try (BodyStream body = BodyStream.file(file, 7, BodyStream.MAX_CHUNK)) {
+            ByteBuffer packet = body.nextPacket(BodyStream.MAX_CHUNK);
+            assertEquals("abcabca", new String(bytes(packet), 6, 7));
+        }
+        try (BodyStream body = BodyStream.file(file, -1, BodyStream.MAX_CHUNK)) {
+            assertEquals(3, body.getLength());
+        }
+    }
+
+    private static int u16(ByteBuffer packet, int offset) {
+        return ((packet.get(packet.position() + offset) & 0xFF) << 8) | (packet.get(packet.position() + offset + 1) & 0xFF);
+    }
+
+    private static byte[] bytes(ByteBuffer packet) {
+        byte[] bytes = new byte[packet.remaining()];
+        packet.get(packet.position(), bytes);
+        return bytes;
+    }
+}
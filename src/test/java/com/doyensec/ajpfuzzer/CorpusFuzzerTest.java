@@ -0,0 +1,88 @@
+/*
+ * AJPFuzzer - CorpusFuzzerTest.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Energy scheduling of the corpus: productive entries are picked more often, picks wear them out.
+ */
+public class CorpusFuzzerTest {
+
+    private static final int PICKS = 20000;
+
+    @Test
+    public void energyGrowsWithFindsAndDecaysWithPicks() {
+        CorpusFuzzer.Entry entry = entry(0, 0);
+        assertEquals(1, entry.energy());
+        assertTrue(entry(1, 0).energy() > entry.energy());
+        assertTrue(entry(3, 0).energy() > entry(1, 0).energy());
+        assertTrue(entry(0, 3).energy() < entry.energy());
+        assertTrue(entry(3, 100).energy() < entry(3, 10).energy());
+    }
+
+    @Test
+    public void productiveEntriesPickedMore() {
+        CorpusFuzzer.Entry productive = entry(5, 0);
+        List<CorpusFuzzer.Entry> corpus = List.of(entry(0, 0), productive, entry(0, 0));
+        //Energy 21 against 1 and 1
+        assertEquals(21.0 / 23, share(corpus, productive), 0.02);
+    }
+
+    @Test
+    public void wornOutEntriesPickedLess() {
+        CorpusFuzzer.Entry fresh = entry(0, 0);
+        List<CorpusFuzzer.Entry> corpus = List.of(entry(0, 99), fresh, entry(0, 99));
+        //Energy 1 against 0.1 and 0.1
+        assertEquals(1 / 1.2, share(corpus, fresh), 0.02);
+    }
+
+    @Test
+    public void everyEntryPicked() {
+        List<CorpusFuzzer.Entry> corpus = new ArrayList<>();
+        corpus.add(entry(100, 0));
+        for (int i = 0; i < 8; i++) {
+            corpus.add(entry(0, 0));
+        }
+        for (CorpusFuzzer.Entry entry : corpus.subList(1, corpus.size())) {
+            assertTrue(share(corpus, entry) > 0, "never picked");
+        }
+    }
+
+    @Test
+    public void sameSeedSamePicks() {
+        List<CorpusFuzzer.Entry> corpus = List.of(entry(0, 0), entry(2, 0), entry(0, 5), entry(1, 1));
+        FuzzRandom first = new FuzzRandom(42);
+        FuzzRandom second = new FuzzRandom(42);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(CorpusFuzzer.pick(corpus, first), CorpusFuzzer.pick(corpus, second));
+        }
+    }
+
+    //Share of the picks going to the entry, with a fixed scheduler seed
+    private static double share(List<CorpusFuzzer.Entry> corpus, CorpusFuzzer.Entry entry) {
+        FuzzRandom scheduler = new FuzzRandom(1);
+        int picked = 0;
+        for (int i = 0; i < PICKS; i++) {
+            if (CorpusFuzzer.pick(corpus, scheduler) == entry) {
+                picked++;
+            }
+        }
+        return (double) picked / PICKS;
+    }
+
+    private static CorpusFuzzer.Entry entry(int finds, long picks) {
+        CorpusFuzzer.Entry entry = new CorpusFuzzer.Entry(new byte[]{0x12, 0x34, 0, 1, 10}, "#0");
+        entry.finds = finds;
+        entry.picks = picks;
+        return entry;
+    }
+}
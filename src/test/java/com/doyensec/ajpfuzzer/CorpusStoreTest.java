@@ -0,0 +1,118 @@
+/*
+ * AJPFuzzer - CorpusStoreTest.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Content-addressed corpus directories: storing, reloading, merging and minimising.
+ */
+public class CorpusStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void keptOnceAndReloaded() throws IOException {
+        Path corpus = directory.resolve("corpus");
+        try (CorpusStore store = CorpusStore.open(corpus)) {
+            assertTrue(store.add(bytes("first"), "(22) genericfuzz", "line 1", "f1"));
+            assertTrue(store.add(bytes("second"), "(27) corpusfuzz", null, null));
+            assertFalse(store.add(bytes("first"), "(23) parallelfuzz", "line 9", "f1"));
+        }
+        try (CorpusStore store = CorpusStore.open(corpus)) {
+            assertEquals(2, store.size());
+            assertTrue(store.contains(bytes("second")));
+            CorpusStore.Input first = store.inputs().get(0);
+            assertEquals(CorpusStore.hash(bytes("first")), first.getHash());
+            assertEquals("(22) genericfuzz", first.getTestCase());
+            assertEquals("line 1", first.getPayload());
+            assertEquals("f1", first.getFingerprint());
+            assertArrayEquals(bytes("first"), store.read(first));
+            assertNull(store.inputs().get(1).getPayload());
+        }
+    }
+
+    @Test
+    public void mergeCopiesMissingInputs() throws IOException {
+        try (CorpusStore other = CorpusStore.open(directory.resolve("other"))) {
+            other.add(bytes("shared"), "test", null, "f1");
+            other.add(bytes("theirs"), "test", null, "f2");
+        }
+        try (CorpusStore store = CorpusStore.open(directory.resolve("corpus"))) {
+            store.add(bytes("shared"), "test", null, "f1");
+            store.add(bytes("ours"), "test", null, "f3");
+            assertEquals(1, store.merge(directory.resolve("other")));
+            assertEquals(0, store.merge(directory.resolve("other")));
+            assertEquals(3, store.size());
+            assertTrue(store.contains(bytes("theirs")));
+        }
+        try (CorpusStore store = CorpusStore.open(directory.resolve("corpus"))) {
+            assertEquals(3, store.size());
+            assertArrayEquals(bytes("theirs"), store.read(store.inputs().get(2)));
+        }
+    }
+
+    @Test
+    public void minimizeKeepsTheSmallestOfEachBehavior() throws IOException {
+        Path corpus = directory.resolve("corpus");
+        try (CorpusStore store = CorpusStore.open(corpus)) {
+            store.add(bytes("a long input"), "test", null, "f1");
+            store.add(bytes("abc"), "test", null, "f1");
+            store.add(bytes("other"), "test", null, "f2");
+            store.add(bytes("no fingerprint at all"), "test", null, null);
+            assertEquals(1, store.minimize());
+            assertEquals(0, store.minimize());
+            store.add(bytes("added afterwards"), "test", null, "f3");
+        }
+        try (CorpusStore store = CorpusStore.open(corpus)) {
+            List<String> kept = store.inputs().stream().map(input -> read(store, input)).collect(Collectors.toList());
+            assertEquals(List.of("abc", "other", "no fingerprint at all", "added afterwards"), kept);
+        }
+        try (Stream<Path> files = Files.list(corpus.resolve("inputs"))) {
+            assertEquals(4, files.count());
+        }
+    }
+
+    @Test
+    public void malformedIndexLinesSkipped() throws IOException {
+        Path corpus = directory.resolve("corpus");
+        try (CorpusStore store = CorpusStore.open(corpus)) {
+            store.add(bytes("input"), "test", null, "f1");
+        }
+        Files.writeString(corpus.resolve("index.jsonl"), "{\"hash\":\"cut by a cra\n", StandardOpenOption.APPEND);
+        try (CorpusStore store = CorpusStore.open(corpus)) {
+            assertEquals(1, store.size());
+            assertTrue(store.add(bytes("next"), "test", null, "f2"));
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes();
+    }
+
+    private static String read(CorpusStore store, CorpusStore.Input input) {
+        try {
+            return new String(store.read(input));
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * AJPFuzzer - CrashMinimizerTest.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+/*
+ * ddmin against a predicate standing for the target: no network, no restart command.
+ */
+public class CrashMinimizerTest {
+
+    private static final List<Integer> INPUTS = IntStream.range(0, 16).boxed().collect(Collectors.toList());
+
+    @Test
+    public void singleCulprit() {
+        assertEquals(List.of(11), CrashMinimizer.ddmin(INPUTS, candidate -> candidate.contains(11)));
+    }
+
+    @Test
+    public void twoInputsTogether() {
+        List<Integer> minimal = CrashMinimizer.ddmin(INPUTS, candidate -> candidate.contains(3) && candidate.contains(12));
+        assertEquals(List.of(3, 12), minimal);
+    }
+
+    @Test
+    public void orderIsKept() {
+        //The crash needs input 5 followed later by input 2
+        List<Integer> inputs = List.of(7, 5, 9, 1, 2, 8);
+        List<Integer> minimal = CrashMinimizer.ddmin(inputs, candidate -> {
+            int first = candidate.indexOf(5);
+            return first >= 0 && candidate.subList(first, candidate.size()).contains(2);
+        });
+        assertEquals(List.of(5, 2), minimal);
+    }
+
+    @Test
+    public void everyInputNeeded() {
+        List<Integer> inputs = List.of(1, 2, 3, 4);
+        assertEquals(inputs, CrashMinimizer.ddmin(inputs, candidate -> candidate.size() == 4));
+    }
+
+    @Test
+    public void minimalBytes() {
+        List<Byte> bytes = new ArrayList<>();
+        for (byte b : "GET /aaaaaaaa%00bbbbbbbb HTTP/1.1".getBytes()) {
+            bytes.add(b);
+        }
+        List<Byte> minimal = CrashMinimizer.ddmin(bytes, candidate -> {
+            StringBuilder sb = new StringBuilder();
+            candidate.forEach(b -> sb.append((char) (byte) b));
+            return sb.indexOf("%00") >= 0;
+        });
+        assertEquals(3, minimal.size());
+    }
+
+    @Test
+    public void testsAreBounded() {
+        int[] tests = new int[1];
+        List<Integer> inputs = IntStream.range(0, 256).boxed().collect(Collectors.toList());
+        CrashMinimizer.ddmin(inputs, candidate -> {
+            tests[0]++;
+            return candidate.contains(100) && candidate.contains(200);
+        });
+        assertTrue(tests[0] < 256 * 2, tests[0] + " tests");
+    }
+
+    @Test
+    public void stopsOnceExhausted() {
+        int[] tests = new int[1];
+        List<Integer> minimal = CrashMinimizer.ddmin(INPUTS, candidate -> {
+            tests[0]++;
+            return candidate.contains(11);
+        }, () -> tests[0] >= 3);
+        assertEquals(3, tests[0]);
+        assertTrue(minimal.contains(11));
+        assertTrue(minimal.size() < INPUTS.size());
+    }
+}
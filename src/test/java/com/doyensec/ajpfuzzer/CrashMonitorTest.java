@@ -0,0 +1,121 @@
+/*
+ * AJPFuzzer - CrashMonitorTest.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Input history and crash probes against the loopback MockContainer. The history is left empty
+ * where a crash is detected, so that no crash directory is written.
+ */
+public class CrashMonitorTest {
+
+    private static final AjpResponse REPLIED = new AjpResponse(new byte[]{'A', 'B', 0, 1, 9}, new int[]{0}, true, false, false, 0);
+
+    private final MockContainer mock = new MockContainer();
+    private final AJPFuzzer ajpsocket = new AJPFuzzer();
+    private int port;
+
+    @BeforeEach
+    public void start() throws IOException {
+        mock.start(0);
+        port = mock.getPort();
+        ajpsocket.crashDetect(4, 3);
+    }
+
+    @AfterEach
+    public void stop() {
+        mock.close();
+    }
+
+    @Test
+    public void historyKeepsTheLastInputs() {
+        CrashMonitor monitor = new CrashMonitor(ajpsocket, "127.0.0.1", port);
+        for (int i = 0; i < 6; i++) {
+            monitor.sent(new byte[]{(byte) i});
+        }
+        List<byte[]> history = monitor.history();
+        assertEquals(4, history.size());
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(new byte[]{(byte) (i + 2)}, history.get(i));
+        }
+    }
+
+    @Test
+    public void historyKeptAcrossConnectionsWhileSilent() throws TargetDownException {
+        CrashMonitor monitor = new CrashMonitor(ajpsocket, "127.0.0.1", port);
+        monitor.sent(new byte[]{1});
+        monitor.check("test", null);
+        monitor.clear();
+        assertEquals(1, monitor.history().size());
+        monitor.check("test", REPLIED);
+        monitor.clear();
+        assertEquals(0, monitor.history().size());
+    }
+
+    @Test
+    public void probeAfterConsecutiveSilentExchanges() throws TargetDownException {
+        CrashMonitor monitor = new CrashMonitor(ajpsocket, "127.0.0.1", port);
+        mock.close();
+        monitor.check("test", null);
+        monitor.check("test", null);
+        TargetDownException down = assertThrows(TargetDownException.class, () -> monitor.check("test", null));
+        assertEquals(CrashMonitor.UNREACHABLE, down.getFailure());
+    }
+
+    @Test
+    public void replyResetsTheCount() throws TargetDownException {
+        CrashMonitor monitor = new CrashMonitor(ajpsocket, "127.0.0.1", port);
+        mock.close();
+        monitor.check("test", null);
+        monitor.check("test", null);
+        monitor.check("test", REPLIED);
+        monitor.check("test", null);
+        monitor.check("test", null);
+    }
+
+    @Test
+    public void hangingRequestsTargetStillAlive() throws TargetDownException {
+        mock.setFaults(0, 0, 1);
+        CrashMonitor monitor = new CrashMonitor(ajpsocket, "127.0.0.1", port);
+        for (int i = 0; i < 6; i++) {
+            monitor.check("test", null);
+        }
+        assertNull(CrashMonitor.probe("127.0.0.1", port));
+    }
+
+    @Test
+    public void crashedTargetUnreachable() throws IOException {
+        mock.setCrashMarker("BOOM");
+        try (AjpConnection connection = new AjpConnection("127.0.0.1", port, 1024)) {
+            connection.exchange(AjpConnectionTest.request("/BOOM", 0), 1000);
+        } catch (IOException ex) {
+            //Reset reported as an error
+        }
+        assertFalse(mock.isRunning());
+        assertEquals(CrashMonitor.UNREACHABLE, CrashMonitor.probe("127.0.0.1", port));
+    }
+
+    @Test
+    public void disabled() throws TargetDownException {
+        ajpsocket.crashDetect(0, 1);
+        CrashMonitor monitor = new CrashMonitor(ajpsocket, "127.0.0.1", port);
+        mock.close();
+        monitor.sent(new byte[]{1});
+        monitor.check("test", null);
+        assertEquals(0, monitor.history().size());
+    }
+}
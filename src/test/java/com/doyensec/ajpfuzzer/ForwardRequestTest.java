@@ -0,0 +1,86 @@
+/*
+ * AJPFuzzer - ForwardRequestTest.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+/*
+ * decode(encode(x)) must give back x byte for byte, for well-formed and broken messages alike:
+ * structfuzz mutates decoded requests and sends them encoded again.
+ */
+public class ForwardRequestTest {
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+        "2|HTTP/1.1|/test.html|127.0.0.1|127.0.0.1|server.name.test|8009|false|''|''",
+        "4|HTTP/1.1|/api/|10.0.0.1|client|server.name.test|8443|true|Content-Type:text/plain,Content-Length:12,X-Custom:value|context:/app,ssl_key_size:256",
+        "2|HTTP/1.0|/a?b=c|127.0.0.1|127.0.0.1|localhost|80|false|Cookie:AAAA=BBBB,host:example|servlet_path:/x,my.attribute:y,jvm_route:node1"
+    })
+    public void roundTrip(int method, String protocol, String requestUri, String remoteAddr, String remoteHost, String serverName,
+                          int serverPort, boolean isSsl, String headers, String attributes) {
+        byte[] packet = FuzzTemplate.compile(method, protocol, requestUri, remoteAddr, remoteHost, serverName, serverPort, isSsl, headers, attributes, Utils.FUZZ_KEY).toBytes("");
+        ForwardRequest request = ForwardRequest.decode(packet);
+        assertNotNull(request);
+        assertTrue(request.terminated);
+        assertEquals(0, request.trailer.length);
+        assertArrayEquals(packet, request.encode());
+        assertArrayEquals(packet, request.copy().encode());
+    }
+
+    @Test
+    public void contentLength() {
+        byte[] packet = FuzzTemplate.compile(4, "HTTP/1.1", "/", "a", "b", "c", 80, false, "Content-Length:1234", "", Utils.FUZZ_KEY).toBytes("");
+        assertEquals(1234, ForwardRequest.decode(packet).contentLength());
+        packet = FuzzTemplate.compile(4, "HTTP/1.1", "/", "a", "b", "c", 80, false, "content-length:77", "", Utils.FUZZ_KEY).toBytes("");
+        assertEquals(77, ForwardRequest.decode(packet).contentLength());
+        packet = FuzzTemplate.compile(2, "HTTP/1.1", "/", "a", "b", "c", 80, false, "", "", Utils.FUZZ_KEY).toBytes("");
+        assertEquals(-1, ForwardRequest.decode(packet).contentLength());
+    }
+
+    @Test
+    public void truncatedKeptInTrailer() {
+        byte[] packet = FuzzTemplate.compile(2, "HTTP/1.1", "/", "a", "b", "c", 80, false, "X-A:1,X-B:2", "context:/app", Utils.FUZZ_KEY).toBytes("");
+        for (int length = 6; length < packet.length; length++) {
+            byte[] truncated = Arrays.copyOf(packet, length);
+            ForwardRequest request = ForwardRequest.decode(truncated);
+            if (request != null) {
+                assertArrayEquals(truncated, request.encode(), "truncated at " + length);
+            }
+        }
+    }
+
+    @Test
+    public void notForwardRequest() {
+        assertNull(ForwardRequest.decode(new byte[]{0x12, 0x34, 0, 1, 10}));
+        assertNull(ForwardRequest.decode(new byte[]{'A', 'B', 0, 2, 2, 2}));
+        assertNull(ForwardRequest.decode(new byte[]{0x12, 0x34, 0, 3, 2, 2, 0}));
+    }
+
+    @Test
+    public void mutantsRoundTrip() {
+        byte[] packet = FuzzTemplate.compile(4, "HTTP/1.1", "/api/", "127.0.0.1", "127.0.0.1", "server", 8009, true,
+                "Content-Type:text/plain,Content-Length:12,X-Custom:value", "context:/app,ssl_key_size:256", Utils.FUZZ_KEY).toBytes("");
+        ForwardRequest original = ForwardRequest.decode(packet);
+        ForwardRequestMutator mutator = new ForwardRequestMutator(new FuzzRandom(1337));
+        for (int i = 0; i < 2000; i++) {
+            byte[] mutant = mutator.mutate(original.copy());
+            ForwardRequest decoded = ForwardRequest.decode(mutant);
+            if (decoded != null) {
+                assertArrayEquals(mutant, decoded.encode(), "mutant " + i);
+            }
+        }
+        assertArrayEquals(packet, original.encode());
+    }
+}
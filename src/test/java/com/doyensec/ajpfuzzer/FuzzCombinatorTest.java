@@ -0,0 +1,104 @@
+/*
+ * AJPFuzzer - FuzzCombinatorTest.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Combinations of the FUZZ1, FUZZ2, ... lists, in each mode.
+ */
+public class FuzzCombinatorTest {
+
+    @TempDir
+    Path directory;
+
+    private Path letters;
+    private Path digits;
+    private Path single;
+    private Path empty;
+
+    @BeforeEach
+    public void lists() throws IOException {
+        letters = Files.writeString(directory.resolve("letters.txt"), "a\nb\nc\n");
+        digits = Files.writeString(directory.resolve("digits.txt"), "1\n2\n");
+        single = Files.writeString(directory.resolve("single.txt"), "z");
+        empty = Files.writeString(directory.resolve("empty.txt"), "");
+    }
+
+    @Test
+    public void sniperSendsTheBaseOnce() throws IOException {
+        assertEquals(List.of(
+                List.of("a", "1", "z"),
+                List.of("b", "1", "z"),
+                List.of("c", "1", "z"),
+                List.of("a", "2", "z")),
+                all(FuzzCombinator.Mode.SNIPER, letters, digits, single));
+    }
+
+    @Test
+    public void pitchforkStopsAtTheShortestList() throws IOException {
+        assertEquals(List.of(
+                List.of("a", "1"),
+                List.of("b", "2")),
+                all(FuzzCombinator.Mode.PITCHFORK, letters, digits));
+    }
+
+    @Test
+    public void clusterbombLastListFastest() throws IOException {
+        assertEquals(List.of(
+                List.of("a", "1"), List.of("a", "2"),
+                List.of("b", "1"), List.of("b", "2"),
+                List.of("c", "1"), List.of("c", "2")),
+                all(FuzzCombinator.Mode.CLUSTERBOMB, letters, digits));
+    }
+
+    @Test
+    public void emptyListNoCombination() throws IOException {
+        for (FuzzCombinator.Mode mode : FuzzCombinator.Mode.values()) {
+            assertEquals(List.of(), all(mode, letters, empty), mode.name());
+        }
+    }
+
+    @Test
+    public void indexCountsCombinations() throws IOException {
+        try (FuzzCombinator combinator = new FuzzCombinator(FuzzCombinator.Mode.CLUSTERBOMB, letters, digits)) {
+            for (int i = 0; i < 6; i++) {
+                assertEquals(i, combinator.getIndex());
+                combinator.next();
+            }
+            assertThrows(NoSuchElementException.class, combinator::next);
+        }
+    }
+
+    @Test
+    public void modeAndMarkers() {
+        assertEquals(FuzzCombinator.Mode.CLUSTERBOMB, FuzzCombinator.Mode.parse("cluster-bomb"));
+        assertEquals(FuzzCombinator.Mode.SNIPER, FuzzCombinator.Mode.parse("Sniper"));
+        assertArrayEquals(new String[]{"FUZZ1", "FUZZ2", "FUZZ3"}, FuzzCombinator.markers(3));
+    }
+
+    private static List<List<String>> all(FuzzCombinator.Mode mode, Path... paths) throws IOException {
+        List<List<String>> combinations = new ArrayList<>();
+        try (FuzzCombinator combinator = new FuzzCombinator(mode, paths)) {
+            while (combinator.hasNext()) {
+                combinations.add(combinator.next());
+            }
+        }
+        return combinations;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * AJPFuzzer - FuzzTemplateTest.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.LinkedList;
+import java.util.List;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import com.doyensec.ajp13.ForwardRequestMessage;
+import com.doyensec.ajp13.Pair;
+
+/*
+ * FuzzTemplate must send the bytes libajp13 ForwardRequestMessage gives for the same message,
+ * as genericfuzz did before templates (see legacyMessage).
+ */
+public class FuzzTemplateTest {
+
+    private static final String[] PAYLOADS = {"", "a", "../../etc/passwd", "%00", "host", "Content-Length", "secret", "servlet_path", StringUtils.repeat("X", 9000)};
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+        "2|HTTP/1.1|/test.html|127.0.0.1|127.0.0.1|server.name.test|8009|false|Cookie:AAAA=BBBB|secret:FUZZ",
+        "2|HTTP/1.1|/FUZZ|127.0.0.1|127.0.0.1|127.0.0.1|8009|false|''|''",
+        "4|HTTP/1.1|/api/|FUZZ|127.0.0.1|server.name.test|8009|true|Content-Type:FUZZ,User-Agent:test|context:/FUZZ",
+        "2|FUZZ|/|127.0.0.1|FUZZ.example|FUZZ|443|true|FUZZ:value|FUZZ:value",
+        "2|HTTP/1.1|/a/FUZZ/b/FUZZ|127.0.0.1|127.0.0.1|localhost|80|false|X-FUZZ-Header:FUZZ|ssl_key_size:256,jvm_route:FUZZ"
+    })
+    public void sameBytesAsLibajp13(int method, String protocol, String requestUri, String remoteAddr, String remoteHost, String serverName,
+                                    int serverPort, boolean isSsl, String headers, String attributes) {
+        FuzzTemplate template = FuzzTemplate.compile(method, protocol, requestUri, remoteAddr, remoteHost, serverName, serverPort, isSsl, headers, attributes, Utils.FUZZ_KEY);
+        for (String payload : PAYLOADS) {
+            assertArrayEquals(legacyMessage(method, protocol, requestUri, remoteAddr, remoteHost, serverName, serverPort, isSsl, headers, attributes, payload),
+                    template.toBytes(payload), "payload '" + payload + "'");
+        }
+    }
+
+    @Test
+    public void headerNameCodedOncePayloadIsIn() {
+        FuzzTemplate template = FuzzTemplate.compile(2, "HTTP/1.1", "/", "a", "b", "c", 80, false, "FUZZ:v", "", Utils.FUZZ_KEY);
+        ForwardRequest coded = ForwardRequest.decode(template.toBytes("host"));
+        assertEquals(0xA00B, coded.headers.get(0).code);
+        ForwardRequest named = ForwardRequest.decode(template.toBytes("X-Host"));
+        assertEquals(-1, named.headers.get(0).code);
+        assertEquals("X-Host", new String(named.headers.get(0).name.value));
+    }
+
+    @Test
+    public void attributeNameCodedOncePayloadIsIn() {
+        FuzzTemplate template = FuzzTemplate.compile(2, "HTTP/1.1", "/", "a", "b", "c", 80, false, "", "FUZZ:v", Utils.FUZZ_KEY);
+        ForwardRequest coded = ForwardRequest.decode(template.toBytes("servlet_path"));
+        assertEquals(0x02, coded.attributes.get(0).code);
+        assertEquals(null, coded.attributes.get(0).name);
+        ForwardRequest named = ForwardRequest.decode(template.toBytes("my.attribute"));
+        assertEquals(AjpCodes.ATTRIBUTE_REQ_ATTRIBUTE, named.attributes.get(0).code);
+        assertEquals("my.attribute", new String(named.attributes.get(0).name.value));
+    }
+
+    @Test
+    public void oversizeStringRejected() {
+        FuzzTemplate template = FuzzTemplate.compile(2, "HTTP/1.1", "/FUZZ", "a", "b", "c", 80, false, "", "", Utils.FUZZ_KEY);
+        template.toBytes(StringUtils.repeat("A", 60000));
+        assertThrows(IllegalArgumentException.class, () -> template.toBytes(StringUtils.repeat("A", FuzzTemplate.MAX_STRING)));
+        assertThrows(IllegalArgumentException.class, () -> FuzzTemplate.compile(2, "HTTP/1.1", StringUtils.repeat("A", 70000), "a", "b", "c", 80, false, "", "", Utils.FUZZ_KEY));
+    }
+
+    @Test
+    public void oversizePacketRejected() {
+        FuzzTemplate template = FuzzTemplate.compile(2, "HTTP/1.1", "/FUZZ", "a", "b", "c", 80, false, "X-A:FUZZ", "", Utils.FUZZ_KEY);
+        assertThrows(IllegalArgumentException.class, () -> template.toBytes(StringUtils.repeat("A", 40000)));
+    }
+
+    //The message genericfuzz built with libajp13, replacing FUZZ in every element
+    private static byte[] legacyMessage(int method, String protocol, String requestUri, String remoteAddr, String remoteHost, String serverName,
+                                        int serverPort, boolean isSsl, String headers, String attributes, String payload) {
+        List<Pair<String, String>> headersList = null;
+        if (headers.contains(":")) {
+            headersList = new LinkedList<>();
+            for (String header : headers.split(",")) {
+                String[] nameValue = header.split(":");
+                headersList.add(Pair.make(Utils.replaceFuzz(nameValue[0], payload), Utils.replaceFuzz(nameValue[1], payload)));
+            }
+        }
+        List<Pair<String, String>> attributesList = null;
+        if (attributes.contains(":")) {
+            attributesList = new LinkedList<>();
+            for (String attribute : attributes.split(",")) {
+                String[] nameValue = attribute.split(":");
+                attributesList.add(Pair.make(Utils.replaceFuzz(nameValue[0], payload), Utils.replaceFuzz(nameValue[1], payload)));
+            }
+        }
+        return new ForwardRequestMessage(method, Utils.replaceFuzz(protocol, payload), Utils.replaceFuzz(requestUri, payload), Utils.replaceFuzz(remoteAddr, payload),
+                Utils.replaceFuzz(remoteHost, payload), Utils.replaceFuzz(serverName, payload), serverPort, isSsl, headersList, attributesList).getBytes();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * AJPFuzzer - LatencyHistogramTest.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * Bucket boundaries and percentiles of the log-linear histogram.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void exactBelowSixteen() {
+        for (int value = 0; value < 16; value++) {
+            assertEquals(value, LatencyHistogram.index(value));
+            assertEquals(value, LatencyHistogram.upperBound(value));
+        }
+    }
+
+    @Test
+    public void everyValueInItsBucket() {
+        int previous = -1;
+        for (long value = 0; value < (1L << 40); value = value < 4096 ? value + 1 : value + value / 7) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(index >= previous, "index of " + value);
+            assertTrue(LatencyHistogram.upperBound(index) >= value, "upper bound of " + value);
+            if (index > 0) {
+                assertTrue(LatencyHistogram.upperBound(index - 1) < value, "previous bucket of " + value);
+            }
+            //16 sub-buckets per power of two: about 6% relative error
+            assertTrue(LatencyHistogram.upperBound(index) - value <= value / 16, "error for " + value);
+            previous = index;
+        }
+    }
+
+    @Test
+    public void hugeValuesInTheLastBucket() {
+        int last = LatencyHistogram.index(Long.MAX_VALUE);
+        assertEquals(last, LatencyHistogram.index(1L << 45));
+        assertEquals(new LatencyHistogram().snapshot().length - 1, last);
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros);
+        }
+        long[] counts = histogram.snapshot();
+        assertEquals(1, LatencyHistogram.percentile(counts, 0));
+        assertBetween(500, 500 + 500 / 16, LatencyHistogram.percentile(counts, 0.5));
+        assertBetween(990, 990 + 990 / 16, LatencyHistogram.percentile(counts, 0.99));
+        assertBetween(1000, 1000 + 1000 / 16, LatencyHistogram.percentile(counts, 1));
+    }
+
+    @Test
+    public void emptyAndNegative() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(-1, LatencyHistogram.percentile(histogram.snapshot(), 0.5));
+        histogram.record(-5);
+        assertEquals(0, LatencyHistogram.percentile(histogram.snapshot(), 0.5));
+    }
+
+    @Test
+    public void countsOverAnInterval() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.record(100);
+        long[] before = histogram.snapshot();
+        histogram.record(5);
+        histogram.record(100000);
+        long[] interval = LatencyHistogram.difference(histogram.snapshot(), before);
+        assertEquals(1, LatencyHistogram.countUpTo(interval, 15));
+        assertEquals(2, LatencyHistogram.countUpTo(interval, 200000));
+        assertEquals(3, LatencyHistogram.countUpTo(histogram.snapshot(), 1000));
+        assertArrayEquals(new long[before.length], LatencyHistogram.difference(before, before));
+    }
+
+    private static void assertBetween(long low, long high, long value) {
+        assertTrue(value >= low && value <= high, value + " not in [" + low + ", " + high + "]");
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * AJPFuzzer - NioFuzzerTest.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * niofuzz against the loopback MockContainer: every payload must be accounted for, whatever the
+ * container does with it (reply, reset, no reply, oversized reply), and the run must end.
+ */
+public class NioFuzzerTest {
+
+    private static final int PAYLOADS = 60;
+
+    @TempDir
+    Path directory;
+
+    private final MockContainer mock = new MockContainer();
+    private final AJPFuzzer ajpsocket = new AJPFuzzer();
+    private Path list;
+    private FuzzTemplate template;
+
+    @BeforeEach
+    public void start() throws IOException {
+        mock.start(0);
+        ajpsocket.resultLog("off");
+        ajpsocket.setHost("127.0.0.1");
+        ajpsocket.setPort(mock.getPort());
+        ajpsocket.receiveTimeout(300);
+        list = Files.writeString(directory.resolve("list.txt"), IntStream.range(0, PAYLOADS).mapToObj(i -> "p" + i).collect(Collectors.joining("\n")));
+        template = FuzzTemplate.compile(2, "HTTP/1.1", "/FUZZ", "127.0.0.1", "127.0.0.1", "localhost", 8009, false, "", "", Utils.FUZZ_KEY);
+    }
+
+    @AfterEach
+    public void stop() {
+        mock.close();
+    }
+
+    @Test
+    public void everyPayloadAnswered() throws IOException {
+        NioFuzzer<String> fuzzer = run(4);
+        assertEquals(PAYLOADS, fuzzer.getDone());
+        assertEquals(0, fuzzer.getErrors());
+    }
+
+    @Test
+    public void resetsAndHangs() throws IOException {
+        mock.setFaults(0, 0.2, 0.2);
+        NioFuzzer<String> fuzzer = run(4);
+        assertEquals(PAYLOADS, fuzzer.getDone());
+        assertTrue(fuzzer.getErrors() < PAYLOADS);
+    }
+
+    @Test
+    public void everyRequestHangs() throws IOException {
+        mock.setFaults(0, 0, 1);
+        NioFuzzer<String> fuzzer = run(8);
+        assertEquals(PAYLOADS, fuzzer.getDone());
+        assertEquals(0, fuzzer.getErrors());
+    }
+
+    @Test
+    public void oversizedReplies() throws IOException {
+        mock.setReply(200, 500000, 8184);
+        ajpsocket.maxResponse(AjpPacketSplitter.MAX_PACKET_SIZE);
+        NioFuzzer<String> fuzzer = run(4);
+        assertEquals(PAYLOADS, fuzzer.getDone());
+        assertEquals(0, fuzzer.getErrors());
+    }
+
+    private NioFuzzer<String> run(int connections) {
+        NioFuzzer<String> fuzzer = new NioFuzzer<>(ajpsocket, connections);
+        assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+            try (Wordlist payloads = new Wordlist(list)) {
+                fuzzer.run(payloads, template::encode, "(25) niofuzz");
+            }
+        });
+        return fuzzer;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * AJPFuzzer - RateLimiterTest.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Token bucket pacing and adaptive rates. Adaptation works on one second windows, each
+ * adaptive test waits a few of them.
+ */
+public class RateLimiterTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void unlimitedByDefault() {
+        RateLimiter limiter = new RateLimiter();
+        assertFalse(limiter.isLimited());
+        assertEquals("unlimited", limiter.describe());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, limiter.reserve(new RateLimiter.Bucket()));
+        }
+    }
+
+    @Test
+    public void globalPacing() {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setRates(100, 0);
+        assertTrue(limiter.isLimited());
+        long start = System.nanoTime();
+        for (int i = 0; i < 50; i++) {
+            limiter.acquire(null);
+        }
+        //The first request goes at once, then one every 10 ms
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsed >= 450 && elapsed < 1500, elapsed + " ms");
+    }
+
+    @Test
+    public void connectionsPacedSeparately() {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setRates(0, 50);
+        RateLimiter.Bucket first = new RateLimiter.Bucket();
+        RateLimiter.Bucket second = new RateLimiter.Bucket();
+        assertEquals(0, limiter.reserve(first));
+        long wait = limiter.reserve(first);
+        assertTrue(wait > 15 * MS && wait <= 20 * MS, wait + " ns");
+        assertEquals(0, limiter.reserve(second));
+    }
+
+    @Test
+    public void slowerTargetSlowsDown() throws InterruptedException {
+        RateLimiter limiter = adaptive();
+        window(limiter, 1, false);
+        assertTrue(limiter.describe().contains("100% of the maximum"), limiter.describe());
+        window(limiter, 10, false);
+        assertTrue(limiter.describe().contains("50% of the maximum"), limiter.describe());
+        window(limiter, 1, false);
+        assertTrue(limiter.describe().contains("60% of the maximum"), limiter.describe());
+    }
+
+    @Test
+    public void resetsSlowDown() throws InterruptedException {
+        RateLimiter limiter = adaptive();
+        window(limiter, 1, false);
+        window(limiter, 1, true);
+        assertTrue(limiter.describe().contains("50% of the maximum"), limiter.describe());
+        //Past the burst, requests are spaced by 1/500 s
+        long wait;
+        do {
+            wait = limiter.reserve(null);
+        } while (wait == 0);
+        assertEquals(2 * MS, limiter.reserve(null) - wait, 0.2 * MS);
+    }
+
+    private static RateLimiter adaptive() {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setRates(1000, 0);
+        limiter.setAdaptive(true);
+        return limiter;
+    }
+
+    //One adaptation window of exchanges with the given latency (ms), or reset without reply
+    private static void window(RateLimiter limiter, long latency, boolean reset) throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            limiter.record(reset ? null : reply(latency));
+        }
+        Thread.sleep(1050);
+        limiter.record(reset ? null : reply(latency));
+    }
+
+    private static AjpResponse reply(long latency) {
+        return new AjpResponse(new byte[]{'A', 'B', 0, 1, 9}, new int[]{0}, true, false, false, latency * MS);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * AJPFuzzer - WordlistTest.java
+ *
+ * Copyright (c) 2017 Luca Carettoni - Doyensec LLC.
+ */
+package com.doyensec.ajpfuzzer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Lines of a fuzzing list, and resuming from a line index (genericfuzz <list> <line>).
+ */
+public class WordlistTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void linesAndIndex() throws IOException {
+        Path list = Files.writeString(directory.resolve("list.txt"), "one\r\n\ntwo\nthree");
+        try (Wordlist wordlist = new Wordlist(list)) {
+            List<String> lines = new ArrayList<>();
+            List<Long> indexes = new ArrayList<>();
+            while (wordlist.hasNext()) {
+                indexes.add(wordlist.getIndex());
+                lines.add(wordlist.next());
+            }
+            assertEquals(List.of("one", "", "two", "three"), lines);
+            assertEquals(List.of(0L, 1L, 2L, 3L), indexes);
+            assertThrows(NoSuchElementException.class, wordlist::next);
+        }
+    }
+
+    @Test
+    public void resumeFromLine() throws IOException {
+        Path list = Files.writeString(directory.resolve("list.txt"), "a\nb\nc\nd\n");
+        try (Wordlist wordlist = new Wordlist(list, 2)) {
+            assertEquals(2, wordlist.getIndex());
+            assertEquals("c", wordlist.next());
+            assertEquals(3, wordlist.getIndex());
+            assertEquals("d", wordlist.next());
+            assertFalse(wordlist.hasNext());
+        }
+    }
+
+    @Test
+    public void resumePastTheEnd() throws IOException {
+        Path list = Files.writeString(directory.resolve("list.txt"), "a\nb\n");
+        try (Wordlist wordlist = new Wordlist(list, 10)) {
+            assertFalse(wordlist.hasNext());
+        }
+    }
+
+    @Test
+    public void longLinesAndUtf8() throws IOException {
+        String longLine = "X".repeat(100000);
+        Path list = Files.writeString(directory.resolve("list.txt"), longLine + "\ndéjà vu\n");
+        try (Wordlist wordlist = new Wordlist(list, 1)) {
+            assertEquals("déjà vu", wordlist.next());
+        }
+        try (Wordlist wordlist = new Wordlist(list)) {
+            assertEquals(longLine, wordlist.next());
+        }
+    }
+}